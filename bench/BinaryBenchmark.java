@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+
+/**
+ * Compares the NMEA text output with the #BinaryEncoder records:
+ * bytes per fix and the cost of encoding and decoding.  This runs on
+ * a desktop JVM; see "make bench".
+ */
+public class BinaryBenchmark {
+    private static final int N = 200000;
+
+    static volatile long sink;
+
+    private static void makeFix(Fix fix, int i) {
+        fix.time = 1318982400000L + i * 100L;
+        fix.latitude = 48.1173 + i * 1e-6;
+        fix.longitude = 11.5166 - i * 1e-6;
+        fix.hasAltitude = true;
+        fix.altitude = 545.4;
+        fix.hasSpeed = true;
+        fix.speed = 5.2f;
+        fix.hasBearing = true;
+        fix.bearing = 84.4f;
+        fix.accuracy = 3.5f;
+        fix.satellites = 8;
+        fix.provider = Fix.PROVIDER_GPS;
+    }
+
+    private static void makeSatellites(SatelliteStatus status, int n) {
+        status.clear();
+        for (int i = 0; i < n; ++i)
+            status.add(i + 1, (i * 7) % 90, (i * 37) % 360, 20 + i % 25,
+                       i % 3 == 0);
+    }
+
+    /**
+     * A minimal NMEA parser, as a consumer would use it: split the
+     * GGA sentence and parse the coordinates.
+     */
+    private static double parseGga(String line) {
+        String[] fields = line.split(",");
+        double lat = Double.parseDouble(fields[2]);
+        double lon = Double.parseDouble(fields[4]);
+        double alt = fields[9].length() > 0 ? Double.parseDouble(fields[9]) : 0;
+        return lat + lon + alt;
+    }
+
+    private static void report(String name, long bytes, long nanos, int n) {
+        System.out.println(name + ": " + (bytes / n) + " bytes, " +
+                           (nanos / n) + " ns");
+    }
+
+    private static void runFixes(int round) throws IOException {
+        Fix fix = new Fix();
+        StringBuilder sb = new StringBuilder(256);
+        BinaryEncoder encoder = new BinaryEncoder();
+        BinaryDecoder decoder = new BinaryDecoder();
+
+        String[] text = new String[N];
+        byte[][] records = new byte[N][];
+
+        long bytes = 0, start = System.nanoTime();
+        for (int i = 0; i < N; ++i) {
+            makeFix(fix, i);
+            sb.setLength(0);
+            NMEA.appendGga(sb, fix, NMEA.DEFAULT_DECIMALS);
+            sb.append('\n');
+            NMEA.appendGll(sb, fix, NMEA.DEFAULT_DECIMALS);
+            sb.append('\n');
+            NMEA.appendRmc(sb, fix, NMEA.DEFAULT_DECIMALS);
+            sb.append('\n');
+            text[i] = sb.toString();
+            bytes += text[i].length();
+        }
+        long textEncode = System.nanoTime() - start;
+
+        long binaryBytes = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < N; ++i) {
+            makeFix(fix, i);
+            records[i] = encoder.encodeFix(fix);
+            binaryBytes += records[i].length;
+        }
+        long binaryEncode = System.nanoTime() - start;
+
+        double total = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < N; ++i)
+            total += parseGga(text[i]);
+        long textDecode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < N; ++i) {
+            decoder.decode(records[i], 0, records[i].length);
+            total += decoder.fix.latitude + decoder.fix.longitude +
+                decoder.fix.altitude;
+        }
+        long binaryDecode = System.nanoTime() - start;
+
+        sink += (long)total;
+
+        if (round > 0) {
+            report("fix text encode (GGA+GLL+RMC)", bytes, textEncode, N);
+            report("fix binary encode", binaryBytes, binaryEncode, N);
+            report("fix text decode (GGA only)", bytes, textDecode, N);
+            report("fix binary decode", binaryBytes, binaryDecode, N);
+        }
+    }
+
+    private static void runSatellites(int round, int count)
+        throws IOException {
+        SatelliteStatus status = new SatelliteStatus();
+        StringBuilder sb = new StringBuilder(1024);
+        BinaryEncoder encoder = new BinaryEncoder();
+        BinaryDecoder decoder = new BinaryDecoder();
+        makeSatellites(status, count);
+
+        final int n = N / 10;
+        long bytes = 0, start = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            sb.setLength(0);
+            NMEA.appendGsa(sb, status, null);
+            sb.append('\n');
+            int pages = NMEA.countGsvPages(status);
+            for (int page = 1; page <= pages; ++page) {
+                NMEA.appendGsv(sb, status, page);
+                sb.append('\n');
+            }
+            bytes += sb.toString().length();
+        }
+        long textEncode = System.nanoTime() - start;
+
+        long binaryBytes = 0;
+        byte[] record = null;
+        start = System.nanoTime();
+        for (int i = 0; i < n; ++i) {
+            record = encoder.encodeSatellites(status);
+            binaryBytes += record.length;
+        }
+        long binaryEncode = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < n; ++i)
+            decoder.decode(record, 0, record.length);
+        long binaryDecode = System.nanoTime() - start;
+        sink += decoder.satellites.count;
+
+        if (round > 0) {
+            report("satellites(" + count + ") text encode", bytes, textEncode, n);
+            report("satellites(" + count + ") binary encode", binaryBytes, binaryEncode, n);
+            report("satellites(" + count + ") binary decode", binaryBytes, binaryDecode, n);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        /* round 0 warms up the JIT */
+        for (int round = 0; round < 2; ++round) {
+            runFixes(round);
+            runSatellites(round, 12);
+            runSatellites(round, 36);
+        }
+    }
+}
@@ -0,0 +1,879 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A load generator and soak test for the server side: a #TCPServer
+ * fed by the #Dispatcher and #FanOut stages, with a synthetic fix
+ * source (#SimulatedProvider) instead of a #Source, and a swarm of consumer connections
+ * (some of them deliberately slow or stalled) which parse and verify
+ * everything they receive.  It runs headless on a desktop JVM; see
+ * "make soak".
+ *
+ * Each fix epoch begins with a proprietary $PBLUSW sentence carrying
+ * a sequence number and the System.nanoTime() of the fix; since the
+ * consumers run in the same process, this yields the fix-to-receive
+ * latency.
+ */
+public class SwarmHarness implements Server.Listener {
+    private static final String PROBE = "$PBLUSW,";
+
+    private static final String TRACE_FILE = "swarm-trace.json";
+
+    /** the response of a server which refuses the connection */
+    private static final String REFUSED = "BlueNMEA: ";
+
+    /** connection types */
+    private static final int NORMAL = 0;
+    private static final int SLOW = 1;
+    private static final int STALLED = 2;
+    private static final String[] TYPE_NAMES = { "normal", "slow", "stalled" };
+
+    /* options */
+    int nClients = 1000, nSlow = 20, nStalled = 10;
+    int rate = 10;
+    int pattern = SimulatedProvider.CIRCLE;
+    long seed = 1;
+    int nSatellites = 12;
+    double dropoutsPerHour = 0;
+    int slowBytesPerSecond = 200;
+    long durationSeconds = 60, reportSeconds = 10;
+    int port = 4360;
+
+    /** trace one of this many fixes; 0 disables tracing */
+    int traceInterval = 0;
+
+    /** all consumers connect from the loopback address, so the
+        admission limits are off unless configured */
+    int maxConnections = Integer.MAX_VALUE;
+    int maxPerAddress = Integer.MAX_VALUE;
+    long memoryBudget = Long.MAX_VALUE;
+    final Admission admission = new Admission();
+
+    /** the #PushClient's batching window in milliseconds, or -1 to
+        disable push mode */
+    int pushWindow = -1;
+    boolean pushDeflate;
+    int pushDropSeconds;
+
+    /** null unless push mode is enabled */
+    PushClient pushClient;
+    Collector collector;
+
+    final TimerWheel wheel =
+        new TimerWheel(TimerWheel.SYSTEM_CLOCK, 100000000L, 256);
+    final Trace trace = new Trace(Trace.DEFAULT_CAPACITY);
+    final FanOut fanOut = new FanOut(trace);
+    final Dispatcher dispatcher = new Dispatcher(fanOut);
+
+    /** the server side of the connections */
+    final Registry<Integer, Client> clients =
+        new Registry<Integer, Client>(Client.class);
+
+    /** failed clients are closed on this thread, because
+        Client.close() joins the client's thread, which may be the
+        one reporting the failure */
+    final BlockingQueue<Client> reaperQueue = new LinkedBlockingQueue<Client>();
+
+    /** counters of the server side; protected by "this" */
+    long accepted, failed, failedLinesDropped;
+
+    /** the sequence number of the last fix epoch published */
+    volatile long publishedSeq;
+
+    /** the consumer side; only accessed by the main thread */
+    final List<Consumer> consumers = new ArrayList<Consumer>();
+    Selector selector;
+
+    final Histogram[] latency = {
+        new Histogram(), new Histogram(), new Histogram(),
+    };
+    final Histogram[] totalLatency = {
+        new Histogram(), new Histogram(), new Histogram(),
+    };
+
+    /**
+     * A latency histogram with logarithmic buckets: values below 64
+     * microseconds are exact, larger ones have a relative error
+     * below 1/32.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int LINEAR = 2 << SUB_BITS;
+
+        final long[] buckets = new long[LINEAR + (64 - SUB_BITS) * (1 << SUB_BITS)];
+        long count, max;
+
+        private static int index(long micros) {
+            if (micros < LINEAR)
+                return (int)micros;
+
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int)(micros >> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * (1 << SUB_BITS) + sub;
+        }
+
+        /** the lower bound of the bucket */
+        private static long value(int index) {
+            if (index < LINEAR)
+                return index;
+
+            index -= LINEAR;
+            int exponent = index / (1 << SUB_BITS) + SUB_BITS + 1;
+            int sub = index % (1 << SUB_BITS);
+            return (long)((1 << SUB_BITS) | sub) << (exponent - SUB_BITS);
+        }
+
+        void add(long micros) {
+            ++buckets[index(micros)];
+            ++count;
+            if (micros > max)
+                max = micros;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < buckets.length; ++i)
+                buckets[i] += other.buckets[i];
+            count += other.count;
+            if (other.max > max)
+                max = other.max;
+        }
+
+        long percentile(double p) {
+            long rank = (long)Math.ceil(count * p / 100);
+            long sum = 0;
+            for (int i = 0; i < buckets.length; ++i) {
+                sum += buckets[i];
+                if (sum >= rank && sum > 0)
+                    return Math.min(value(i), max);
+            }
+
+            return max;
+        }
+
+        void clear() {
+            java.util.Arrays.fill(buckets, 0);
+            count = max = 0;
+        }
+
+        /** from Object */
+        @Override public String toString() {
+            if (count == 0)
+                return "no samples";
+
+            return "p50=" + formatMicros(percentile(50)) +
+                " p90=" + formatMicros(percentile(90)) +
+                " p99=" + formatMicros(percentile(99)) +
+                " p99.9=" + formatMicros(percentile(99.9)) +
+                " max=" + formatMicros(max);
+        }
+    }
+
+    static String formatMicros(long micros) {
+        return micros < 10000
+            ? micros + "us"
+            : micros / 1000 + "ms";
+    }
+
+    /**
+     * One consumer connection, reading and verifying NMEA lines.
+     */
+    final class Consumer {
+        final int type;
+        final SocketChannel channel;
+
+        /** the current incomplete line */
+        final StringBuilder line = new StringBuilder(128);
+
+        /** the read budget of a slow consumer, in bytes */
+        double budget;
+
+        boolean closed;
+
+        long bytes, lines, badLines;
+
+        /** has the server refused this connection? */
+        boolean refused;
+
+        /** the first and last probe sequence numbers received, and
+            the number of GGA sentences received in between */
+        long firstSeq = -1, lastSeq = -1, ggaCount;
+
+        Consumer(int _type, SocketChannel _channel) {
+            type = _type;
+            channel = _channel;
+        }
+
+        /**
+         * @param max the maximum number of bytes to read
+         */
+        void read(ByteBuffer buffer, int max) throws IOException {
+            buffer.clear();
+            buffer.limit(Math.min(max, buffer.capacity()));
+            int n = channel.read(buffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            bytes += n;
+            budget -= n;
+
+            for (int i = 0; i < n; ++i) {
+                char ch = (char)(buffer.get(i) & 0xff);
+                if (ch == '\n') {
+                    onLine(line);
+                    line.setLength(0);
+                } else
+                    line.append(ch);
+            }
+        }
+
+        private void onLine(StringBuilder s) {
+            ++lines;
+
+            if (lines == 1 && startsWith(s, REFUSED)) {
+                refused = true;
+                return;
+            }
+
+            if (!verify(s)) {
+                ++badLines;
+                return;
+            }
+
+            if (startsWith(s, PROBE)) {
+                int comma = s.indexOf(",", PROBE.length());
+                long seq = Long.parseLong(s.substring(PROBE.length(), comma));
+                long nanos = Long.parseLong(s.substring(comma + 1, s.length() - 3));
+                latency[type].add((System.nanoTime() - nanos) / 1000);
+
+                if (firstSeq < 0)
+                    firstSeq = seq;
+                lastSeq = seq;
+            } else if (firstSeq >= 0 && startsWith(s, "$GPGGA,"))
+                ++ggaCount;
+        }
+
+        /**
+         * @return the number of fix epochs which this consumer should
+         * have received, but did not
+         */
+        long lostFixes() {
+            return firstSeq < 0 ? 0 : lastSeq - firstSeq + 1 - ggaCount;
+        }
+
+        void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    static boolean startsWith(StringBuilder s, String prefix) {
+        if (s.length() < prefix.length())
+            return false;
+
+        for (int i = 0; i < prefix.length(); ++i)
+            if (s.charAt(i) != prefix.charAt(i))
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Checks the framing and the checksum of one NMEA sentence.
+     */
+    static boolean verify(StringBuilder s) {
+        final int length = s.length();
+        if (length < 4 || s.charAt(0) != '$' || s.charAt(length - 3) != '*')
+            return false;
+
+        int checksum = 0;
+        for (int i = 1; i < length - 3; ++i)
+            checksum ^= s.charAt(i);
+
+        return Character.digit(s.charAt(length - 2), 16) == (checksum >> 4) &&
+            Character.digit(s.charAt(length - 1), 16) == (checksum & 0xf);
+    }
+
+    /**
+     * A stand-in for the remote collector of a #PushClient.  It
+     * accepts one connection at a time, verifies each sentence and
+     * measures the latency of the probes, which includes the
+     * batching window.  Every #pushDropSeconds, it drops the
+     * connection to exercise the reconnect.
+     */
+    final class Collector implements Runnable {
+        final ServerSocket serverSocket;
+
+        /** protected by "this" */
+        final Histogram latency = new Histogram();
+        long lines, badLines, connections;
+
+        Collector() throws IOException {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress("127.0.0.1", port + 1));
+        }
+
+        private void receive(Socket s) throws IOException {
+            final long drop = pushDropSeconds > 0
+                ? System.nanoTime() + pushDropSeconds * 1000000000L
+                : Long.MAX_VALUE;
+
+            InputStream is = s.getInputStream();
+            if (pushDeflate)
+                is = new InflaterInputStream(is);
+            is = new BufferedInputStream(is);
+
+            final StringBuilder line = new StringBuilder(128);
+            int ch;
+            while ((ch = is.read()) >= 0) {
+                if (ch != '\n') {
+                    line.append((char)ch);
+                    continue;
+                }
+
+                final long now = System.nanoTime();
+                synchronized(this) {
+                    ++lines;
+                    if (!verify(line))
+                        ++badLines;
+                    else if (startsWith(line, PROBE)) {
+                        int comma = line.indexOf(",", PROBE.length());
+                        long nanos = Long.parseLong(line.substring(comma + 1, line.length() - 3));
+                        latency.add((now - nanos) / 1000);
+                    }
+                }
+
+                line.setLength(0);
+
+                if (now >= drop)
+                    return;
+            }
+        }
+
+        /** from Runnable */
+        @Override public void run() {
+            while (true) {
+                Socket s;
+                try {
+                    s = serverSocket.accept();
+                } catch (IOException e) {
+                    /* closed */
+                    return;
+                }
+
+                synchronized(this) {
+                    ++connections;
+                }
+
+                try {
+                    receive(s);
+                } catch (IOException e) {
+                }
+
+                try {
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        synchronized void report(StringBuilder sb) {
+            sb.append("\n  push: ").append(pushClient.getUplinkSummary())
+                .append("\n  collector: connections=").append(connections)
+                .append(" lines=").append(lines)
+                .append(" bad=").append(badLines)
+                .append(" latency ").append(latency);
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /** from Server.Listener */
+    @Override public void onNewClient(Client client) {
+        synchronized(this) {
+            ++accepted;
+        }
+
+        client.setTimerWheel(wheel);
+        clients.add(client.id, client);
+        fanOut.add(client);
+    }
+
+    /** from Client.Listener */
+    @Override public void onClientFailure(Client client, Throwable t) {
+        if (clients.remove(client.id) == null)
+            /* already reported */
+            return;
+
+        fanOut.remove(client);
+
+        synchronized(this) {
+            ++failed;
+            failedLinesDropped += linesDropped(client);
+        }
+
+        reaperQueue.add(client);
+    }
+
+    private static long linesDropped(Client client) {
+        if (!(client instanceof ThreadedStreamClient))
+            return 0;
+
+        ThreadedStreamClient c = (ThreadedStreamClient)client;
+        synchronized(c) {
+            return c.scheduler.getLinesDropped();
+        }
+    }
+
+    private final Runnable reaper = new Runnable() {
+            @Override public void run() {
+                try {
+                    while (true)
+                        reaperQueue.take().close();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+
+    /**
+     * Encodes the #SimulatedProvider's output into epochs, like
+     * #Source does.
+     */
+    private final FixProvider.Listener encoder = new FixProvider.Listener() {
+            private final StringBuilder sb = new StringBuilder(128);
+            private long seq;
+
+            @Override public void onFix(Fix fix) {
+                final long now = System.nanoTime();
+                final String[] lines = new String[4];
+                sb.setLength(0);
+                sb.append(PROBE).append(++seq).append(',').append(now);
+                NMEA.appendChecksum(sb, 0);
+                lines[0] = sb.toString();
+                sb.setLength(0);
+                NMEA.appendGga(sb, fix, NMEA.DEFAULT_DECIMALS);
+                lines[1] = sb.toString();
+                sb.setLength(0);
+                NMEA.appendGll(sb, fix, NMEA.DEFAULT_DECIMALS);
+                lines[2] = sb.toString();
+                sb.setLength(0);
+                NMEA.appendRmc(sb, fix, NMEA.DEFAULT_DECIMALS);
+                lines[3] = sb.toString();
+
+                final long traceId = trace.sample();
+                final long encoded = System.nanoTime();
+                if (traceId != 0) {
+                    trace.record(traceId, Trace.RECEIVED, Trace.PIPELINE, now);
+                    trace.record(traceId, Trace.ENCODED, Trace.PIPELINE,
+                                 encoded);
+                }
+
+                publishedSeq = seq;
+                dispatcher.publish(new Epoch(lines, null, null, null,
+                                             now, encoded, traceId));
+            }
+
+            @Override public void onSatellites(SatelliteStatus satellites) {
+                final long now = System.nanoTime();
+                final int pages = NMEA.countGsvPages(satellites);
+                final String[] lines = new String[1 + pages];
+                sb.setLength(0);
+                NMEA.appendGsa(sb, satellites, null);
+                lines[0] = sb.toString();
+                for (int page = 1; page <= pages; ++page) {
+                    sb.setLength(0);
+                    NMEA.appendGsv(sb, satellites, page);
+                    lines[page] = sb.toString();
+                }
+
+                dispatcher.publish(new Epoch(lines, null, null, null,
+                                             now, System.nanoTime(), 0));
+            }
+
+            @Override public void onUnavailable() {}
+            @Override public void onAvailable() {}
+        };
+
+    /**
+     * Paces the simulator.  It is stepped on this thread instead of
+     * using SimulatedProvider.start(), so the generated sequence
+     * does not depend on the harness's timing.
+     */
+    private final Runnable feeder = new Runnable() {
+            @Override public void run() {
+                final SimulatedProvider simulator =
+                    new SimulatedProvider(seed, pattern, rate, nSatellites,
+                                          dropoutsPerHour, 10);
+                final long period = 1000000000L / rate;
+                long next = System.nanoTime();
+
+                while (true) {
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay / 1000000,
+                                         (int)(delay % 1000000));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    } else if (Thread.interrupted())
+                        break;
+
+                    next += period;
+                    simulator.step(encoder);
+                }
+            }
+        };
+
+    private void connect() throws IOException {
+        selector = Selector.open();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        for (int i = 0; i < nClients; ++i) {
+            int type = i < nStalled
+                ? STALLED
+                : (i < nStalled + nSlow ? SLOW : NORMAL);
+
+            SocketChannel channel = SocketChannel.open();
+            if (type != NORMAL)
+                /* fill up quickly; a slow reader with a large
+                   receive buffer would only measure how long it
+                   takes to fill it */
+                channel.socket().setReceiveBufferSize(4096);
+            channel.connect(address);
+            channel.configureBlocking(false);
+
+            Consumer c = new Consumer(type, channel);
+            consumers.add(c);
+            if (type == NORMAL)
+                channel.register(selector, SelectionKey.OP_READ, c);
+        }
+    }
+
+    private void poll(ByteBuffer buffer, long elapsedNanos) throws IOException {
+        selector.select(10);
+
+        for (Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+             i.hasNext();) {
+            SelectionKey key = i.next();
+            i.remove();
+
+            Consumer c = (Consumer)key.attachment();
+            c.read(buffer, buffer.capacity());
+            if (c.closed)
+                key.cancel();
+        }
+
+        /* slow consumers read a little, without waiting for
+           readiness */
+        final double refill = slowBytesPerSecond * elapsedNanos / 1e9;
+        for (Consumer c : consumers) {
+            if (c.type != SLOW || c.closed)
+                continue;
+
+            c.budget = Math.min(c.budget + refill, slowBytesPerSecond);
+            if (c.budget >= 1)
+                c.read(buffer, (int)c.budget);
+        }
+    }
+
+    private void report(long elapsedSeconds, boolean total) {
+        long[] lines = new long[3], bad = new long[3];
+        long[] lost = new long[3], expected = new long[3];
+        int[] open = new int[3], refused = new int[3];
+
+        for (Consumer c : consumers) {
+            lines[c.type] += c.lines;
+            bad[c.type] += c.badLines;
+            lost[c.type] += c.lostFixes();
+            if (c.firstSeq >= 0)
+                expected[c.type] += c.lastSeq - c.firstSeq + 1;
+            if (!c.closed)
+                ++open[c.type];
+            if (c.refused)
+                ++refused[c.type];
+        }
+
+        long serverDropped = 0;
+        final Client[] live = clients.snapshot();
+        for (int i = 0; i < live.length; ++i)
+            serverDropped += linesDropped(live[i]);
+
+        final Runtime runtime = Runtime.getRuntime();
+        final StringBuilder sb = new StringBuilder();
+        sb.append(total ? "TOTAL " : "").append(elapsedSeconds).append("s:");
+
+        synchronized(this) {
+            sb.append(" epochs=").append(publishedSeq)
+                .append(" accepted=").append(accepted)
+                .append(" live=").append(live.length)
+                .append(" failed=").append(failed)
+                .append(" server_lines_dropped=")
+                .append(serverDropped + failedLinesDropped);
+        }
+
+        sb.append(" threads=")
+            .append(ManagementFactory.getThreadMXBean().getThreadCount())
+            .append(" heap=")
+            .append((runtime.totalMemory() - runtime.freeMemory()) >> 20)
+            .append("MB\n  ").append(dispatcher.getMetrics())
+            .append("\n  admission: ").append(admission.getStats());
+
+        if (collector != null)
+            collector.report(sb);
+
+        for (int type = NORMAL; type <= STALLED; ++type) {
+            if (open[type] == 0 && lines[type] == 0 && refused[type] == 0)
+                continue;
+
+            Histogram h = total ? totalLatency[type] : latency[type];
+            sb.append("\n  ").append(TYPE_NAMES[type])
+                .append(": open=").append(open[type])
+                .append(" refused=").append(refused[type])
+                .append(" lines=").append(lines[type])
+                .append(" bad=").append(bad[type])
+                .append(" lost_fixes=")
+                .append(expected[type] > 0
+                        ? String.format("%.2f%%", 100. * lost[type] / expected[type])
+                        : "-")
+                .append(" latency ").append(h);
+        }
+
+        System.out.println(sb);
+
+        if (!total) {
+            for (int type = NORMAL; type <= STALLED; ++type) {
+                totalLatency[type].add(latency[type]);
+                latency[type].clear();
+            }
+        }
+    }
+
+    int run() throws IOException, InterruptedException {
+        Logger.setBackend(new Logger.StderrBackend(Logger.WARN));
+
+        wheel.start();
+
+        Thread reaperThread = new Thread(reaper, "reaper");
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+
+        admission.setLimits(maxConnections, maxPerAddress,
+                            Admission.DEFAULT_QUEUE_BUDGET, memoryBudget);
+        TCPServer server = new TCPServer(this, admission, port);
+        connect();
+
+        if (pushWindow >= 0) {
+            collector = new Collector();
+            Thread collectorThread = new Thread(collector, "collector");
+            collectorThread.setDaemon(true);
+            collectorThread.start();
+
+            pushClient = new PushClient(this, "127.0.0.1", port + 1,
+                                        pushWindow, pushDeflate);
+            pushClient.setTimerWheel(wheel);
+            fanOut.add(pushClient);
+            pushClient.start();
+        }
+
+        /* wait until the server has accepted or refused all
+           connections, so the first report is not distorted */
+        for (int i = 0; i < 100; ++i) {
+            Admission.Stats stats = admission.getStats();
+            if (stats.accepted + stats.refused() >= nClients)
+                break;
+            Thread.sleep(100);
+        }
+
+        Thread feederThread = new Thread(feeder, "feeder");
+        feederThread.start();
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(16384);
+        final long start = System.nanoTime();
+        long last = start, nextReport = start + reportSeconds * 1000000000L;
+        final long end = durationSeconds > 0
+            ? start + durationSeconds * 1000000000L
+            : Long.MAX_VALUE;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end)
+                break;
+
+            poll(buffer, now - last);
+            last = now;
+
+            if (now >= nextReport) {
+                report((now - start) / 1000000000L, false);
+                nextReport += reportSeconds * 1000000000L;
+            }
+        }
+
+        feederThread.interrupt();
+        feederThread.join();
+
+        report((System.nanoTime() - start) / 1000000000L, false);
+        report((System.nanoTime() - start) / 1000000000L, true);
+
+        if (traceInterval > 0) {
+            Writer out = new BufferedWriter(new FileWriter(TRACE_FILE));
+            try {
+                trace.writeJson(out);
+            } finally {
+                out.close();
+            }
+            System.out.println("trace written to " + TRACE_FILE);
+        }
+
+        long bad = 0;
+        for (Consumer c : consumers) {
+            bad += c.badLines;
+            c.close();
+        }
+
+        if (pushClient != null) {
+            fanOut.remove(pushClient);
+            pushClient.close();
+            collector.close();
+        }
+
+        server.close();
+        for (Client c : clients.snapshot()) {
+            fanOut.remove(c);
+            c.close();
+        }
+        dispatcher.close();
+        wheel.close();
+
+        return bad > 0 ? 1 : 0;
+    }
+
+    private static void usage() {
+        System.err.println("Usage: SwarmHarness [--clients N] [--slow N] [--stalled N]\n" +
+                           "    [--rate HZ] [--slow-rate BYTES_PER_SECOND]\n" +
+                           "    [--pattern 0=line|1=circle|2=figure-eight] [--seed N]\n" +
+                           "    [--satellites N] [--dropouts PER_HOUR]\n" +
+                           "    [--duration SECONDS (0=forever)] [--report SECONDS]\n" +
+                           "    [--port PORT] [--trace SAMPLE_INTERVAL]\n" +
+                           "    [--max-clients N] [--max-per-address N] [--memory-budget KB]\n" +
+                           "    [--push WINDOW_MS] [--deflate 0|1] [--push-drop SECONDS]");
+        System.exit(2);
+    }
+
+    public static void main(String[] args)
+        throws IOException, InterruptedException {
+        SwarmHarness h = new SwarmHarness();
+
+        for (int i = 0; i < args.length; ++i) {
+            if (i + 1 >= args.length)
+                usage();
+
+            String option = args[i];
+            int value = 0;
+            try {
+                value = Integer.parseInt(args[++i]);
+            } catch (NumberFormatException e) {
+                usage();
+            }
+
+            if (option.equals("--clients"))
+                h.nClients = value;
+            else if (option.equals("--slow"))
+                h.nSlow = value;
+            else if (option.equals("--stalled"))
+                h.nStalled = value;
+            else if (option.equals("--rate") && value > 0 &&
+                     value <= SimulatedProvider.MAX_RATE)
+                h.rate = value;
+            else if (option.equals("--pattern") &&
+                     value >= SimulatedProvider.LINE &&
+                     value <= SimulatedProvider.FIGURE_EIGHT)
+                h.pattern = value;
+            else if (option.equals("--seed"))
+                h.seed = value;
+            else if (option.equals("--satellites") && value >= 0 &&
+                     value <= SatelliteStatus.MAX_SATELLITES)
+                h.nSatellites = value;
+            else if (option.equals("--dropouts") && value >= 0)
+                h.dropoutsPerHour = value;
+            else if (option.equals("--slow-rate") && value > 0)
+                h.slowBytesPerSecond = value;
+            else if (option.equals("--duration"))
+                h.durationSeconds = value;
+            else if (option.equals("--report") && value > 0)
+                h.reportSeconds = value;
+            else if (option.equals("--port"))
+                h.port = value;
+            else if (option.equals("--trace") && value >= 0)
+                h.traceInterval = value;
+            else if (option.equals("--max-clients") && value >= 0)
+                h.maxConnections = value;
+            else if (option.equals("--max-per-address") && value >= 0)
+                h.maxPerAddress = value;
+            else if (option.equals("--memory-budget") && value >= 0)
+                h.memoryBudget = value * 1024L;
+            else if (option.equals("--push") && value >= 0)
+                h.pushWindow = value;
+            else if (option.equals("--deflate"))
+                h.pushDeflate = value != 0;
+            else if (option.equals("--push-drop") && value >= 0)
+                h.pushDropSeconds = value;
+            else
+                usage();
+        }
+
+        if (h.nSlow + h.nStalled > h.nClients)
+            usage();
+
+        h.trace.setSampleInterval(h.traceInterval);
+
+        System.exit(h.run());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Measures the track compression: how many fixes the
+ * #TrackSimplifier keeps, the size of the #TrackEncoder stream
+ * compared to fixed-size records and NMEA text, and the throughput
+ * of encoding, decoding and export.  This runs on a desktop JVM; see
+ * "make bench".
+ */
+public class TrackBenchmark {
+    private static final int N = 1000000;
+
+    static volatile long sink;
+
+    /** counts the characters written, without keeping them */
+    private static final class CountingWriter extends Writer {
+        long count;
+
+        @Override public void write(char[] buffer, int offset, int length) {
+            count += length;
+        }
+
+        @Override public Writer append(CharSequence s) {
+            count += s.length();
+            return this;
+        }
+
+        @Override public void write(String s) {
+            count += s.length();
+        }
+
+        @Override public void flush() {}
+        @Override public void close() {}
+    }
+
+    /**
+     * A boat at 1 Hz: long straight legs at 3 m/s with GPS noise,
+     * occasional turns, and some time at anchor.
+     */
+    private static final class Boat {
+        final java.util.Random random = new java.util.Random(42);
+        double latitude = 54.3, longitude = 10.1, bearing = 45;
+        long time = 1318982400000L;
+        int leg;
+
+        void next(Fix fix) {
+            time += 1000;
+
+            if (--leg <= 0) {
+                leg = 60 + random.nextInt(600);
+                bearing = random.nextInt(360);
+            }
+
+            final boolean anchored = (time / 3600000) % 5 == 0;
+            final double speed = anchored ? 0 : 3;
+            final double rad = Math.toRadians(bearing);
+            latitude += speed * Math.cos(rad) / 111194.9;
+            longitude += speed * Math.sin(rad) /
+                (111194.9 * Math.cos(Math.toRadians(latitude)));
+
+            fix.time = time;
+            fix.latitude = latitude + random.nextGaussian() * 1e-5;
+            fix.longitude = longitude + random.nextGaussian() * 1e-5;
+            fix.hasAltitude = true;
+            fix.altitude = 2 + random.nextGaussian();
+            fix.hasSpeed = true;
+            fix.speed = (float)speed;
+            fix.hasBearing = !anchored;
+            fix.bearing = (float)bearing;
+            fix.accuracy = 3;
+            fix.satellites = 9;
+            fix.provider = Fix.PROVIDER_GPS;
+        }
+    }
+
+    private static void run(int round, double tolerance) throws IOException {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream(N * 4);
+        final TrackEncoder encoder = new TrackEncoder(stream);
+        final int[] kept = new int[1];
+
+        TrackSimplifier simplifier = new TrackSimplifier(new TrackSimplifier.Listener() {
+                @Override public void onPoint(Fix fix) throws IOException {
+                    encoder.write(fix);
+                    ++kept[0];
+                }
+            }, tolerance, TrackSimplifier.DEFAULT_WINDOW);
+
+        Boat boat = new Boat();
+        Fix fix = new Fix();
+        StringBuilder sb = new StringBuilder(256);
+        long nmeaBytes = 0;
+        for (int i = 0; i < 1000; ++i) {
+            boat.next(fix);
+            sb.setLength(0);
+            NMEA.appendGga(sb, fix, NMEA.DEFAULT_DECIMALS);
+            NMEA.appendRmc(sb, fix, NMEA.DEFAULT_DECIMALS);
+            nmeaBytes += sb.length() + 4;
+        }
+        nmeaBytes = nmeaBytes * N / 1000;
+
+        boat = new Boat();
+        long start = System.nanoTime();
+        for (int i = 0; i < N; ++i) {
+            boat.next(fix);
+            simplifier.add(fix);
+        }
+        simplifier.flush();
+        long encodeNanos = System.nanoTime() - start;
+
+        byte[] encoded = stream.toByteArray();
+
+        start = System.nanoTime();
+        TrackDecoder decoder = new TrackDecoder(new ByteArrayInputStream(encoded));
+        int decoded = 0;
+        while (decoder.next(fix)) {
+            sink += fix.time;
+            ++decoded;
+        }
+        long decodeNanos = System.nanoTime() - start;
+
+        CountingWriter nmea = new CountingWriter();
+        start = System.nanoTime();
+        TrackExport.writeNmea(new TrackDecoder(new ByteArrayInputStream(encoded)),
+                              nmea, NMEA.DEFAULT_DECIMALS);
+        long nmeaNanos = System.nanoTime() - start;
+
+        CountingWriter gpx = new CountingWriter();
+        start = System.nanoTime();
+        TrackExport.writeGpx(new TrackDecoder(new ByteArrayInputStream(encoded)),
+                             gpx);
+        long gpxNanos = System.nanoTime() - start;
+
+        if (decoded != kept[0])
+            throw new IOException("Decoded " + decoded + " of " + kept[0]);
+
+        if (round == 0)
+            return;
+
+        final long fixedBytes = (long)N * TrackStore.RECORD_SIZE;
+        System.out.println("tolerance " + tolerance + " m: kept " + kept[0] +
+                           " of " + N + " fixes, " +
+                           (double)encoded.length / kept[0] + " bytes/fix");
+        System.out.println("  size: " + encoded.length + " bytes; " +
+                           "ratio " + fixedBytes / encoded.length +
+                           ":1 vs. records, " +
+                           nmeaBytes / encoded.length + ":1 vs. NMEA");
+        System.out.println("  simplify+encode: " + encodeNanos / N + " ns/fix, " +
+                           (long)N * 1000000000L / encodeNanos + " fixes/s");
+        System.out.println("  decode: " + decodeNanos / Math.max(decoded, 1) +
+                           " ns/fix");
+        System.out.println("  export NMEA: " + nmeaNanos / Math.max(decoded, 1) +
+                           " ns/fix, " + nmea.count + " chars");
+        System.out.println("  export GPX: " + gpxNanos / Math.max(decoded, 1) +
+                           " ns/fix, " + gpx.count + " chars");
+    }
+
+    public static void main(String[] args) throws IOException {
+        /* round 0 warms up the JIT */
+        for (int round = 0; round < 2; ++round) {
+            run(round, 0);
+            run(round, 2);
+            run(round, 5);
+            run(round, 20);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.util.HashMap;
+
+/**
+ * Decides whether the servers accept a new connection.  Each
+ * connection costs a writer thread and a send queue, so without a
+ * limit, a client which reconnects in a loop could exhaust the
+ * phone's memory or threads.  Connections are limited in total, per
+ * remote address, and by a memory budget: each connection is charged
+ * its queue budget plus #CONNECTION_OVERHEAD.
+ *
+ * One instance is shared by all servers.  Methods are thread-safe.
+ */
+final class Admission {
+    static final int DEFAULT_MAX_CONNECTIONS = 32;
+    static final int DEFAULT_MAX_PER_ADDRESS = 4;
+
+    /** the default number of bytes a connection may have queued */
+    static final int DEFAULT_QUEUE_BUDGET = 16 * 1024;
+
+    static final long DEFAULT_MEMORY_BUDGET = 2 * 1024 * 1024;
+
+    /** the estimated memory of a connection besides its queue: the
+        writer thread's stack, the socket and the client objects */
+    static final int CONNECTION_OVERHEAD = 32 * 1024;
+
+    /**
+     * Thrown by admit() when a connection is refused; the message is
+     * the reason, which the server may send to the peer.
+     */
+    static final class RefusedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        RefusedException(String reason) {
+            super(reason);
+        }
+    }
+
+    /**
+     * An admitted connection.  It must be released when the
+     * connection is closed; releasing it again has no effect.
+     */
+    final class Ticket {
+        final String address;
+
+        /** the number of bytes the connection may have queued */
+        final int queueBudget;
+
+        private boolean released;
+
+        private Ticket(String _address, int _queueBudget) {
+            address = _address;
+            queueBudget = _queueBudget;
+        }
+
+        void release() {
+            synchronized(Admission.this) {
+                if (released)
+                    return;
+
+                released = true;
+                --live;
+                reservedBytes -= queueBudget + CONNECTION_OVERHEAD;
+
+                Integer n = perAddress.get(address);
+                if (n == null || n <= 1)
+                    perAddress.remove(address);
+                else
+                    perAddress.put(address, n - 1);
+            }
+        }
+    }
+
+    /**
+     * A copy of the counters.
+     */
+    static final class Stats {
+        final int live;
+        final long reservedBytes;
+        final long accepted;
+        final long refusedTotal, refusedAddress, refusedMemory;
+
+        Stats(int _live, long _reservedBytes, long _accepted,
+              long _refusedTotal, long _refusedAddress, long _refusedMemory) {
+            live = _live;
+            reservedBytes = _reservedBytes;
+            accepted = _accepted;
+            refusedTotal = _refusedTotal;
+            refusedAddress = _refusedAddress;
+            refusedMemory = _refusedMemory;
+        }
+
+        long refused() {
+            return refusedTotal + refusedAddress + refusedMemory;
+        }
+
+        @Override public String toString() {
+            return "live=" + live + " reserved=" + reservedBytes / 1024 +
+                "kB accepted=" + accepted +
+                " refused: limit=" + refusedTotal +
+                " address=" + refusedAddress +
+                " memory=" + refusedMemory;
+        }
+    }
+
+    /* the limits; protected by "this" */
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxPerAddress = DEFAULT_MAX_PER_ADDRESS;
+    private int queueBudget = DEFAULT_QUEUE_BUDGET;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    /* the state and counters; protected by "this" */
+    private final HashMap<String, Integer> perAddress =
+        new HashMap<String, Integer>();
+    private int live;
+    private long reservedBytes;
+    private long accepted, refusedTotal, refusedAddress, refusedMemory;
+
+    /**
+     * Changes the limits.  Connections which have already been
+     * admitted are not affected.
+     *
+     * @param _queueBudget the number of bytes a connection may have
+     * queued; its oldest data is dropped beyond that
+     * @param _memoryBudget the total memory charged to all
+     * connections
+     */
+    synchronized void setLimits(int _maxConnections, int _maxPerAddress,
+                                int _queueBudget, long _memoryBudget) {
+        if (_maxConnections < 0 || _maxPerAddress < 0 ||
+            _queueBudget <= 0 || _memoryBudget < 0)
+            throw new IllegalArgumentException("Invalid admission limits");
+
+        maxConnections = _maxConnections;
+        maxPerAddress = _maxPerAddress;
+        queueBudget = _queueBudget;
+        memoryBudget = _memoryBudget;
+    }
+
+    /**
+     * Admits a new connection.
+     *
+     * @param address the remote address without the port, so all
+     * connections from one host are counted together
+     */
+    synchronized Ticket admit(String address) throws RefusedException {
+        if (live >= maxConnections) {
+            ++refusedTotal;
+            throw new RefusedException("too many connections");
+        }
+
+        Integer n = perAddress.get(address);
+        if (n != null && n >= maxPerAddress) {
+            ++refusedAddress;
+            throw new RefusedException("too many connections from " +
+                                       address);
+        }
+
+        final int cost = queueBudget + CONNECTION_OVERHEAD;
+        if (reservedBytes + cost > memoryBudget) {
+            ++refusedMemory;
+            throw new RefusedException("out of memory budget");
+        }
+
+        ++accepted;
+        ++live;
+        reservedBytes += cost;
+        perAddress.put(address, n != null ? n + 1 : 1);
+        return new Ticket(address, queueBudget);
+    }
+
+    synchronized Stats getStats() {
+        return new Stats(live, reservedBytes, accepted,
+                         refusedTotal, refusedAddress, refusedMemory);
+    }
+}
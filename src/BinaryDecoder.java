@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The reference decoder for the format written by #BinaryEncoder.
+ * It works on a byte stream which may contain partial records:
+ * decode() consumes one complete record at a time.
+ *
+ * An instance is not thread-safe.
+ */
+final class BinaryDecoder {
+    /** the type of the most recently decoded record */
+    int type;
+
+    /** the most recently decoded fix */
+    final Fix fix = new Fix();
+
+    /** the most recently decoded satellite snapshot */
+    final SatelliteStatus satellites = new SatelliteStatus();
+
+    private final CRC32 crc = new CRC32();
+
+    static int getU8(byte[] b, int offset) {
+        return b[offset] & 0xff;
+    }
+
+    static int getI8(byte[] b, int offset) {
+        return b[offset];
+    }
+
+    static int getU16(byte[] b, int offset) {
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+    }
+
+    static int getI32(byte[] b, int offset) {
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8) |
+            ((b[offset + 2] & 0xff) << 16) | ((b[offset + 3] & 0xff) << 24);
+    }
+
+    static long getI64(byte[] b, int offset) {
+        return (getI32(b, offset) & 0xffffffffL) |
+            ((long)getI32(b, offset + 4) << 32);
+    }
+
+    /**
+     * Decodes the record at the specified buffer position into #fix
+     * or #satellites (depending on #type).
+     *
+     * @return the number of bytes consumed, or 0 if the buffer does
+     * not yet contain a complete record
+     * @throws IOException if the record is malformed
+     */
+    int decode(byte[] b, int offset, int length) throws IOException {
+        if (length < BinaryEncoder.HEADER_SIZE)
+            return 0;
+
+        if (getU8(b, offset) != BinaryEncoder.VERSION)
+            throw new IOException("Unsupported version " + getU8(b, offset));
+
+        int payloadLength = getU16(b, offset + 2);
+        int recordLength = BinaryEncoder.HEADER_SIZE + payloadLength +
+            BinaryEncoder.TRAILER_SIZE;
+        if (length < recordLength)
+            return 0;
+
+        crc.reset();
+        crc.update(b, offset, BinaryEncoder.HEADER_SIZE + payloadLength);
+        if ((int)crc.getValue() !=
+            getI32(b, offset + BinaryEncoder.HEADER_SIZE + payloadLength))
+            throw new IOException("CRC mismatch");
+
+        type = getU8(b, offset + 1);
+        int p = offset + BinaryEncoder.HEADER_SIZE;
+        switch (type) {
+        case BinaryEncoder.TYPE_FIX:
+            if (payloadLength < BinaryEncoder.FIX_PAYLOAD)
+                throw new IOException("Fix record too short");
+
+            decodeFix(b, p, fix);
+            break;
+
+        case BinaryEncoder.TYPE_SATELLITES:
+            decodeSatellites(b, p, payloadLength);
+            break;
+
+        default:
+            /* unknown record types are skipped */
+            break;
+        }
+
+        return recordLength;
+    }
+
+    /**
+     * Decodes a #BinaryEncoder.FIX_PAYLOAD at the specified offset.
+     */
+    static void decodeFix(byte[] b, int p, Fix fix) {
+        fix.time = getI64(b, p);
+        fix.latitude = getI32(b, p + 8) / 1e7;
+        fix.longitude = getI32(b, p + 12) / 1e7;
+
+        int altitude = getI32(b, p + 16);
+        fix.hasAltitude = altitude != BinaryEncoder.UNKNOWN_I32;
+        fix.altitude = fix.hasAltitude ? altitude / 1000. : 0;
+
+        int speed = getU16(b, p + 20);
+        fix.hasSpeed = speed != BinaryEncoder.UNKNOWN_U16;
+        fix.speed = fix.hasSpeed ? speed / 100f : 0;
+
+        int bearing = getU16(b, p + 22);
+        fix.hasBearing = bearing != BinaryEncoder.UNKNOWN_U16;
+        fix.bearing = fix.hasBearing ? bearing / 100f : 0;
+
+        fix.accuracy = (getI32(b, p + 24) & 0xffffffffL) / 1000f;
+
+        int satellites = getU8(b, p + 28);
+        fix.satellites = satellites != BinaryEncoder.UNKNOWN_U8
+            ? satellites : -1;
+        fix.provider = getU8(b, p + 29);
+        fix.hdop = getU16(b, p + 30) / 100f;
+        fix.estimated = false;
+    }
+
+    private void decodeSatellites(byte[] b, int p, int payloadLength)
+        throws IOException {
+        int n = getU8(b, p);
+        if (payloadLength < 1 + n * BinaryEncoder.SATELLITE_SIZE)
+            throw new IOException("Satellite record too short");
+
+        satellites.clear();
+        ++p;
+        for (int i = 0; i < n; ++i, p += BinaryEncoder.SATELLITE_SIZE)
+            satellites.add(getU16(b, p), getI8(b, p + 2), getU16(b, p + 3),
+                           getU8(b, p + 5),
+                           (getU8(b, p + 6) & BinaryEncoder.FLAG_USED_IN_FIX) != 0);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.util.zip.CRC32;
+
+/**
+ * Encodes fixes and satellite snapshots in a compact binary format
+ * for machine consumers which do not want to parse NMEA.
+ *
+ * Each record is little-endian with a fixed layout:
+ *
+ * <pre>
+ *  0  u8   version (#VERSION)
+ *  1  u8   type (#TYPE_FIX or #TYPE_SATELLITES)
+ *  2  u16  payload length
+ *  4  ...  payload
+ *  n  u32  CRC-32 (IEEE 802.3) of bytes 0..n-1
+ * </pre>
+ *
+ * Fix payload (#FIX_PAYLOAD bytes):
+ *
+ * <pre>
+ *  0  i64  time [ms since 1970-01-01 UTC]
+ *  8  i32  latitude [1e-7 degrees]
+ * 12  i32  longitude [1e-7 degrees]
+ * 16  i32  altitude [mm], #UNKNOWN_I32 if unknown
+ * 20  u16  speed [cm/s], #UNKNOWN_U16 if unknown
+ * 22  u16  bearing [1/100 degrees], #UNKNOWN_U16 if unknown
+ * 24  u32  accuracy [mm]
+ * 28  u8   satellites used, #UNKNOWN_U8 if unknown
+ * 29  u8   provider (Fix.PROVIDER_*)
+ * 30  u16  HDOP [1/100], 0 if unknown
+ * </pre>
+ *
+ * Satellite payload: u8 count, followed by #SATELLITE_SIZE bytes
+ * per satellite:
+ *
+ * <pre>
+ *  0  u16  PRN
+ *  2  i8   elevation [degrees]
+ *  3  u16  azimuth [degrees]
+ *  5  u8   SNR [dB]
+ *  6  u8   flags (#FLAG_USED_IN_FIX)
+ * </pre>
+ *
+ * An instance is not thread-safe, because it reuses its buffer.
+ */
+final class BinaryEncoder {
+    static final int VERSION = 1;
+
+    static final int TYPE_FIX = 1;
+    static final int TYPE_SATELLITES = 2;
+
+    static final int HEADER_SIZE = 4;
+    static final int TRAILER_SIZE = 4;
+    static final int FIX_PAYLOAD = 32;
+    static final int SATELLITE_SIZE = 7;
+
+    static final int UNKNOWN_I32 = Integer.MIN_VALUE;
+    static final int UNKNOWN_U16 = 0xffff;
+    static final int UNKNOWN_U8 = 0xff;
+
+    static final int FLAG_USED_IN_FIX = 0x01;
+
+    private final byte[] buffer =
+        new byte[HEADER_SIZE + 1 + SatelliteStatus.MAX_SATELLITES * SATELLITE_SIZE
+                 + TRAILER_SIZE];
+    private final CRC32 crc = new CRC32();
+
+    static void putU8(byte[] b, int offset, int value) {
+        b[offset] = (byte)value;
+    }
+
+    static void putU16(byte[] b, int offset, int value) {
+        b[offset] = (byte)value;
+        b[offset + 1] = (byte)(value >> 8);
+    }
+
+    static void putI32(byte[] b, int offset, int value) {
+        b[offset] = (byte)value;
+        b[offset + 1] = (byte)(value >> 8);
+        b[offset + 2] = (byte)(value >> 16);
+        b[offset + 3] = (byte)(value >> 24);
+    }
+
+    static void putI64(byte[] b, int offset, long value) {
+        putI32(b, offset, (int)value);
+        putI32(b, offset + 4, (int)(value >> 32));
+    }
+
+    private static int clampU16(long value) {
+        return value < 0 ? 0 : (value >= UNKNOWN_U16 ? UNKNOWN_U16 - 1 : (int)value);
+    }
+
+    /**
+     * Writes header and trailer around the payload which is already
+     * in #buffer, and returns a copy of the complete record.
+     */
+    private byte[] finish(int type, int payloadLength) {
+        putU8(buffer, 0, VERSION);
+        putU8(buffer, 1, type);
+        putU16(buffer, 2, payloadLength);
+
+        int length = HEADER_SIZE + payloadLength;
+        crc.reset();
+        crc.update(buffer, 0, length);
+        putI32(buffer, length, (int)crc.getValue());
+        length += TRAILER_SIZE;
+
+        byte[] record = new byte[length];
+        System.arraycopy(buffer, 0, record, 0, length);
+        return record;
+    }
+
+    byte[] encodeFix(Fix fix) {
+        putFix(buffer, HEADER_SIZE, fix);
+        return finish(TYPE_FIX, FIX_PAYLOAD);
+    }
+
+    /**
+     * Writes the #FIX_PAYLOAD of a fix at the specified offset.
+     */
+    static void putFix(byte[] b, int p, Fix fix) {
+        putI64(b, p, fix.time);
+        putI32(b, p + 8, (int)Math.round(fix.latitude * 1e7));
+        putI32(b, p + 12, (int)Math.round(fix.longitude * 1e7));
+        putI32(b, p + 16, fix.hasAltitude
+               ? (int)Math.round(fix.altitude * 1000)
+               : UNKNOWN_I32);
+        putU16(b, p + 20, fix.hasSpeed
+               ? clampU16(Math.round(fix.speed * 100.))
+               : UNKNOWN_U16);
+        putU16(b, p + 22, fix.hasBearing
+               ? clampU16(Math.round(fix.bearing * 100.) % 36000)
+               : UNKNOWN_U16);
+        putI32(b, p + 24, (int)Math.min(Math.round(fix.accuracy * 1000.),
+                                        0xffffffffL));
+        putU8(b, p + 28, fix.satellites >= 0
+              ? Math.min(fix.satellites, UNKNOWN_U8 - 1)
+              : UNKNOWN_U8);
+        putU8(b, p + 29, fix.provider);
+        putU16(b, p + 30, clampU16(Math.round(fix.hdop * 100.)));
+    }
+
+    byte[] encodeSatellites(SatelliteStatus status) {
+        final byte[] b = buffer;
+        final int n = status.count;
+
+        putU8(b, HEADER_SIZE, n);
+
+        int p = HEADER_SIZE + 1;
+        for (int i = 0; i < n; ++i, p += SATELLITE_SIZE) {
+            putU16(b, p, status.prn[i]);
+            putU8(b, p + 2, Math.round(status.elevation[i]));
+            putU16(b, p + 3, (Math.round(status.azimuth[i]) % 360 + 360) % 360);
+            putU8(b, p + 5, Math.max(0, Math.min(255, Math.round(status.snr[i]))));
+            putU8(b, p + 6, status.usedInFix[i] ? FLAG_USED_IN_FIX : 0);
+        }
+
+        return finish(TYPE_SATELLITES, 1 + n * SATELLITE_SIZE);
+    }
+}
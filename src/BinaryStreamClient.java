@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.util.LinkedList;
+import java.io.OutputStream;
+
+/**
+ * A client which receives #BinaryEncoder records instead of NMEA
+ * sentences.  Like #ThreadedStreamClient, it writes on its own
+ * thread.
+ */
+class BinaryStreamClient extends QueuedWriterClient<byte[]>
+    implements FanOut.RecordListener {
+    /** the maximum number of queued records; the oldest ones are
+        dropped when the client is too slow */
+    private static final int MAX_QUEUE = 32;
+
+    LinkedList<byte[]> queue = new LinkedList<byte[]>();
+
+    /** counters; protected by "this" */
+    private long sent, dropped, bytesSent;
+
+    /** the bytes in #queue, and the limit; protected by "this" */
+    private int queuedBytes, maxQueuedBytes = Integer.MAX_VALUE;
+
+    public BinaryStreamClient(Listener _listener, OutputStream _stream) {
+        super(_listener, _stream);
+    }
+
+    /** from Client */
+    @Override protected synchronized void setQueueBudget(int bytes) {
+        maxQueuedBytes = bytes;
+    }
+
+    /** from Client */
+    @Override public synchronized Stats getStats() {
+        return new Stats(sent, dropped, bytesSent, queue.size());
+    }
+
+    /** from FanOut.NMEAListener */
+    @Override public void onLine(String line) {
+        /* not used: the Source sends records instead */
+    }
+
+    /** from FanOut.RecordListener */
+    @Override public void onRecord(byte[] record) {
+        synchronized(this) {
+            while (!queue.isEmpty() &&
+                   (queue.size() >= MAX_QUEUE ||
+                    queuedBytes + record.length > maxQueuedBytes)) {
+                queuedBytes -= queue.removeFirst().length;
+                ++dropped;
+            }
+
+            queue.add(record);
+            queuedBytes += record.length;
+
+            /* wake up the thread */
+            notify();
+        }
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected byte[] poll() {
+        if (queue.isEmpty())
+            return null;
+
+        byte[] record = queue.removeFirst();
+        queuedBytes -= record.length;
+        return record;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected byte[] encode(byte[] record) {
+        return record;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected void onWritten(byte[] record, int length, long nanos) {
+        ++sent;
+        bytesSent += length;
+    }
+}
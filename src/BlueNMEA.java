@@ -20,7 +20,12 @@ package name.kellermann.max.bluenmea;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 
 import android.app.Activity;
 import android.app.Dialog;
@@ -33,7 +38,6 @@ import android.widget.TextView;
 import android.widget.Button;
 import android.widget.RadioGroup;
 import android.widget.ListView;
-import android.widget.ArrayAdapter;
 import android.widget.AdapterView;
 import android.view.View;
 import android.view.Menu;
@@ -41,6 +45,7 @@ import android.view.MenuItem;
 import android.view.MenuInflater;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.DialogInterface;
 import android.location.GpsStatus;
 import android.location.Location;
@@ -82,20 +87,257 @@ class ScanThread extends Thread {
     }
 }
 
+/**
+ * Brings up the native bridge and the servers, which involves slow
+ * Bluetooth stack calls, so the activity does not need to wait for
+ * them.  Each result is sent to the handler as a message; arg1 is
+ * the time it took in milliseconds.
+ */
+class StartupThread extends Thread {
+    /** obj is the #Bridge or null if unavailable */
+    public static final int BRIDGE = 1;
+
+    /** obj is the #Server or null; the "status" string is in the
+        data #Bundle */
+    public static final int TCP = 2;
+    public static final int BINARY_TCP = 3;
+    public static final int LOCAL = 4;
+    public static final int BLUETOOTH = 5;
+
+    /** obj is the #TrackRecorder or null */
+    public static final int TRACK = 6;
+
+    /** obj is the #GeofenceEngine or null */
+    public static final int GEOFENCES = 7;
+
+    /** obj is the #WebServer or null; the "status" string is in the
+        data #Bundle */
+    public static final int WEB = 8;
+
+    /** arg1 is the total startup time in milliseconds */
+    public static final int DONE = 9;
+
+    /** obj is the #PushClient or null; the "status" string is in the
+        data #Bundle */
+    public static final int PUSH = 10;
+
+    /** the geofence definitions in the files directory, see
+        #GeofenceEngine.read() */
+    public static final String GEOFENCES_NAME = "geofences.txt";
+
+    /** the collector which the NMEA stream is pushed to, see
+        #PushClient.read() */
+    public static final String PUSH_NAME = "push.txt";
+
+    public static final int TCP_PORT = 4352;
+    public static final int BINARY_TCP_PORT = 4353;
+    public static final int WEB_PORT = 4354;
+
+    Server.Listener listener;
+    Handler handler;
+
+    /** shared by all servers */
+    Admission admission;
+
+    /** the application's files directory */
+    File filesDirectory;
+
+    /** the port of the #WebServer, or 0 to disable it */
+    int webPort;
+
+    public StartupThread(Server.Listener _listener, Handler _handler,
+                         Admission _admission, File _filesDirectory,
+                         int _webPort) {
+        listener = _listener;
+        handler = _handler;
+        admission = _admission;
+        filesDirectory = _filesDirectory;
+        webPort = _webPort;
+    }
+
+    private static int elapsedMillis(long start) {
+        return (int)((System.nanoTime() - start) / 1000000);
+    }
+
+    private void send(int what, Object obj, String status, long start) {
+        Message msg = handler.obtainMessage(what, elapsedMillis(start), 0, obj);
+        if (status != null) {
+            Bundle b = new Bundle();
+            b.putString("status", status);
+            msg.setData(b);
+        }
+
+        handler.sendMessage(msg);
+    }
+
+    @Override public void run() {
+        final long begin = System.nanoTime();
+        long start = begin;
+
+        Bridge bridge = new Bridge();
+        if (!bridge.loaded || !bridge.available())
+            bridge = null;
+        send(BRIDGE, bridge, null, start);
+
+        start = System.nanoTime();
+        try {
+            Server tcp = new TCPServer(listener, admission, TCP_PORT);
+            send(TCP, tcp, "listening on port " + TCP_PORT, start);
+        } catch (IOException e) {
+            send(TCP, null, "failed: " + e.getMessage(), start);
+        }
+
+        start = System.nanoTime();
+        try {
+            Server binaryTcp = new TCPServer(listener, admission,
+                                             BINARY_TCP_PORT, true);
+            send(BINARY_TCP, binaryTcp,
+                 "binary on port " + BINARY_TCP_PORT, start);
+        } catch (IOException e) {
+            send(BINARY_TCP, null, null, start);
+        }
+
+        start = System.nanoTime();
+        try {
+            Server local = new LocalServer(listener, admission,
+                                           LocalServer.DEFAULT_NAME);
+            send(LOCAL, local,
+                 "listening on @" + LocalServer.DEFAULT_NAME, start);
+        } catch (IOException e) {
+            send(LOCAL, null, "failed: " + e.getMessage(), start);
+        }
+
+        if (webPort > 0) {
+            start = System.nanoTime();
+            try {
+                Server web = new WebServer(listener, admission, webPort);
+                send(WEB, web, "listening on port " + webPort, start);
+            } catch (IOException e) {
+                send(WEB, null, "failed: " + e.getMessage(), start);
+            }
+        }
+
+        start = System.nanoTime();
+        try {
+            Server bluetoothServer = new ToothServer(listener, admission);
+            send(BLUETOOTH, bluetoothServer, "listening", start);
+        } catch (Exception e) {
+            send(BLUETOOTH, null, "failed: " + e.getMessage(), start);
+        } catch (VerifyError e) {
+            send(BLUETOOTH, null, "not available", start);
+        }
+
+        start = System.nanoTime();
+        try {
+            TrackRecorder track =
+                new TrackRecorder(new File(filesDirectory, "track"),
+                                  TrackRecorder.DEFAULT_TOLERANCE);
+            send(TRACK, track, track.getStore().size() + " fixes", start);
+        } catch (IOException e) {
+            send(TRACK, null, "failed: " + e.getMessage(), start);
+        }
+
+        start = System.nanoTime();
+        File file = new File(filesDirectory, GEOFENCES_NAME);
+        if (file.exists()) {
+            try {
+                FileReader reader = new FileReader(file);
+                try {
+                    GeofenceEngine geofences =
+                        new GeofenceEngine(GeofenceEngine.read(reader));
+                    send(GEOFENCES, geofences,
+                         geofences.size() + " geofences", start);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                send(GEOFENCES, null, "failed: " + e.getMessage(), start);
+            }
+        }
+
+        start = System.nanoTime();
+        file = new File(filesDirectory, PUSH_NAME);
+        if (file.exists()) {
+            try {
+                FileReader reader = new FileReader(file);
+                try {
+                    PushClient push = PushClient.read(listener, reader);
+                    send(PUSH, push, push.toString(), start);
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                send(PUSH, null, "failed: " + e.getMessage(), start);
+            }
+        }
+
+        send(DONE, null, null, begin);
+    }
+}
+
 public class BlueNMEA extends Activity
-    implements RadioGroup.OnCheckedChangeListener,
-               Source.StatusListener, Client.Listener,
+    implements RadioGroup.OnCheckedChangeListener, Client.Listener,
                Server.Listener {
     private static final String TAG = "BlueNMEA";
 
     static final int SCANNING_DIALOG = 0;
 
+    /** the dashboard is refreshed at most this often (2 Hz) */
+    static final long DASHBOARD_INTERVAL_MS = 500;
+
+    /** the rate (Hz) of dead-reckoned fixes when enabled in the
+        menu */
+    static final int UPSAMPLE_RATE = 5;
+
+    /** the parameters of the menu item "Simulate" */
+    static final long SIMULATOR_SEED = 1;
+    static final int SIMULATOR_RATE = 10;
+    static final int SIMULATOR_SATELLITES = 12;
+
+    /** the file in getFilesDir() written by "Save trace" */
+    static final String TRACE_FILE = "trace.json";
+
+    /** the coordinate decimals with the menu item "Precise
+        coordinates" */
+    static final int PRECISE_DECIMALS = 6;
+
+    /** the trace sample interval with the menu item "Cheap" */
+    static final int TRACE_CHEAP_INTERVAL = 100;
+
+    /* keys in #preferences */
+    static final String PREF_PRECISE_COORDINATES = "precise_coordinates";
+    static final String PREF_EVERY_SATELLITE_STATUS = "every_satellite_status";
+    static final String PREF_TRACE_SAMPLE_INTERVAL = "trace_sample_interval";
+    /** the port of the #WebServer, or 0 to disable it */
+    static final String PREF_WEB_PORT = "web_port";
+
+    /** the #FixStage behind the menu item "Reject position jumps" */
+    final JumpFilter jumpFilter =
+        new JumpFilter(JumpFilter.DEFAULT_MAX_SPEED);
+
     Bridge bridge;
 
     /** the Bluetooth peer; null if none is connected */
     Client bluetoothClient;
 
-    Server tcp, bluetoothServer;
+    /** streams to the collector in #StartupThread.PUSH_NAME; null if
+        there is none */
+    PushClient pushClient;
+
+    Server tcp, binaryTcp, local, web, bluetoothServer;
+
+    /** limits the connections to all servers */
+    final Admission admission = new Admission();
+
+    /** records the track; null until opened by #StartupThread or if
+        that failed */
+    TrackRecorder track;
+
+    /** loaded by #StartupThread; null if there are none */
+    GeofenceEngine geofences;
+
+    /** subscribe all NMEA clients to the geofence alerts? */
+    boolean geofenceAlerts;
 
     /** the name of the currently selected location provider */
     String locationProvider;
@@ -104,11 +346,23 @@ public class BlueNMEA extends Activity
 
     Source source;
 
+    /** the settings which survive a restart */
+    SharedPreferences preferences;
+
+    /** has onDestroy() been called?  Results of the #StartupThread
+        which arrive after that are closed instead of adopted */
+    boolean destroyed;
+
     RadioGroup locationProviderGroup;
-    TextView providerStatus, bluetoothClientStatus, bluetoothServerStatus, tcpStatus;
+    TextView providerStatus, pipelineStatus, bluetoothClientStatus,
+        bluetoothServerStatus, tcpStatus, localStatus, webStatus;
+
+    /** all connected clients, keyed by Client.id */
+    final Registry<Integer, Client> clients =
+        new Registry<Integer, Client>(Client.class);
+    ClientListAdapter clientListAdapter;
 
-    ArrayList<Client> clients = new ArrayList<Client>();
-    ArrayAdapter clientListAdapter;
+    Button connectButton;
 
     private void ExceptionAlert(Throwable exception, String title) {
         AlertDialog dialog = new AlertDialog.Builder(this).create();
@@ -123,49 +377,70 @@ public class BlueNMEA extends Activity
     }
 
     private void addClient(Client client) {
-        clients.add(client);
-        clientListAdapter.add(client.toString());
+        client.setTimerWheel(source.getTimerWheel());
+        clients.add(client.id, client);
         source.addListener(client);
+
+        if (geofenceAlerts && !(client instanceof FanOut.RecordListener))
+            source.addAlertListener(client);
     }
 
     private void removeClient(Client client) {
+        source.removeAlertListener(client);
         source.removeListener(client);
-        clients.remove(client);
-        clientListAdapter.remove(client.toString());
+        clients.remove(client.id);
     }
 
     /** from Activity */
     @Override public void onCreate(Bundle savedInstanceState) {
+        final long start = System.nanoTime();
+
         super.onCreate(savedInstanceState);
 
         setContentView(R.layout.main);
 
         providerStatus = (TextView)findViewById(R.id.providerStatus);
         providerStatus.setText(R.string.status_unknown);
+        pipelineStatus = (TextView)findViewById(R.id.pipelineStatus);
         bluetoothClientStatus = (TextView)findViewById(R.id.bluetoothClientStatus);
         bluetoothClientStatus.setText("not connected");
         bluetoothServerStatus = (TextView)findViewById(R.id.bluetoothServerStatus);
         bluetoothServerStatus.setText("not initialized");
         tcpStatus = (TextView)findViewById(R.id.tcpStatus);
+        tcpStatus.setText("starting");
+        localStatus = (TextView)findViewById(R.id.localStatus);
+        localStatus.setText("starting");
+        webStatus = (TextView)findViewById(R.id.webStatus);
+        webStatus.setText("starting");
 
         locationProviderGroup = (RadioGroup)findViewById(R.id.provider);
         locationProviderGroup.setOnCheckedChangeListener(this);
 
-        Button button;
-
-        button = (Button) findViewById(R.id.connectButton);
-        button.setOnClickListener(new View.OnClickListener() {
+        connectButton = (Button) findViewById(R.id.connectButton);
+        connectButton.setOnClickListener(new View.OnClickListener() {
                 @Override public void onClick(View v) {
                     onConnectButtonClicked();
                 }
             });
 
+        /* shown as soon as the StartupThread has found the native
+           library */
+        connectButton.setVisibility(View.GONE);
+
         locationProvider = LocationManager.GPS_PROVIDER;
         locationManager = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
-        source = new Source(locationManager, this);
-
-        clientListAdapter =
-            new ArrayAdapter(this, android.R.layout.simple_list_item_1);
+        /* the dashboard polls the status, so no listener is
+           needed */
+        source = new Source(locationManager, null);
+
+        preferences = getPreferences(MODE_PRIVATE);
+        if (preferences.getBoolean(PREF_PRECISE_COORDINATES, false))
+            source.setCoordinateDecimals(PRECISE_DECIMALS);
+        if (preferences.getBoolean(PREF_EVERY_SATELLITE_STATUS, false))
+            setEverySatelliteStatus(true);
+        source.setTraceSampleInterval(getTraceSampleInterval());
+
+        clientListAdapter = new ClientListAdapter(this);
         ListView clientList = (ListView)findViewById(R.id.clients);
         clientList.setAdapter(clientListAdapter);
 
@@ -173,7 +448,7 @@ public class BlueNMEA extends Activity
                 @Override public void onItemClick(AdapterView<?> parent,
                                                   View view, int position,
                                                   long id) {
-                    final Client client = clients.get(position);
+                    final Client client = clientListAdapter.getItem(position);
 
                     AlertDialog.Builder builder = new AlertDialog.Builder(BlueNMEA.this);
                     builder.setMessage("Do you want to disconnect the client " + client + "?")
@@ -181,7 +456,7 @@ public class BlueNMEA extends Activity
                         .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                                 public void onClick(DialogInterface dialog,
                                                     int id) {
-                                    if (!clients.contains(client))
+                                    if (!clients.contains(client.id))
                                         return;
 
                                     removeClient(client);
@@ -197,29 +472,45 @@ public class BlueNMEA extends Activity
                 }
             });
 
-        bridge = new Bridge();
-        if (!bridge.loaded || !bridge.available()) {
-            bridge = null;
-            bluetoothClientStatus.setText("not available");
-            button.setVisibility(View.GONE);
-        }
+        /* loading the native library and setting up the servers
+           may block in the Bluetooth stack; don't delay the first
+           frame */
+        final int webPort = getWebPort();
+        if (webPort <= 0)
+            webStatus.setText("disabled");
+        new StartupThread(this, startupHandler, admission, getFilesDir(),
+                          webPort).start();
+
+        Log.i(TAG, "startup: onCreate took " +
+              (System.nanoTime() - start) / 1000000 + " ms");
+    }
 
-        try {
-            int port = 4352;
-            tcp = new TCPServer(this, port);
-            tcpStatus.setText("listening on port " + port);
-        } catch (IOException e) {
-            tcpStatus.setText("failed: " + e.getMessage());
+    /** from Activity */
+    @Override protected void onDestroy() {
+        destroyed = true;
+
+        /* stop accepting before the source goes away, so no client
+           is added to a dead Looper; this also frees the ports and
+           the local socket name for the next onCreate() */
+        closeQuietly(tcp);
+        closeQuietly(binaryTcp);
+        closeQuietly(local);
+        closeQuietly(web);
+        closeQuietly(bluetoothServer);
+        tcp = binaryTcp = local = web = bluetoothServer = null;
+
+        /* this includes the push client, which would otherwise keep
+           reconnecting */
+        for (Client client : clients.snapshot()) {
+            removeClient(client);
+            client.close();
         }
 
-        try {
-            bluetoothServer = new ToothServer(this);
-            bluetoothServerStatus.setText("listening");
-        } catch (Exception e) {
-            bluetoothServerStatus.setText("failed: " + e.getMessage());
-        } catch (VerifyError e) {
-            bluetoothServerStatus.setText("not available");
-        }
+        source.close();
+
+        closeQuietly(track);
+
+        super.onDestroy();
     }
 
     /** from Activity */
@@ -229,9 +520,58 @@ public class BlueNMEA extends Activity
         return true;
     }
 
+    /**
+     * Sends every satellite status to the clients, or (the default)
+     * only those which differ noticeably from the last one sent.
+     */
+    private void setEverySatelliteStatus(boolean every) {
+        if (every)
+            source.setSatelliteThresholds(0, 0, 0, 0);
+        else
+            source.setSatelliteThresholds(SatelliteDiffer.DEFAULT_ELEVATION_DELTA,
+                                          SatelliteDiffer.DEFAULT_AZIMUTH_DELTA,
+                                          SatelliteDiffer.DEFAULT_SNR_DELTA,
+                                          SatelliteDiffer.DEFAULT_MAX_INTERVAL_NANOS);
+    }
+
+    private int getWebPort() {
+        return preferences.getInt(PREF_WEB_PORT, StartupThread.WEB_PORT);
+    }
+
+    private int getTraceSampleInterval() {
+        return preferences.getInt(PREF_TRACE_SAMPLE_INTERVAL,
+                                  Trace.DEFAULT_SAMPLE_INTERVAL);
+    }
+
+    /**
+     * Chooses how many fixes are traced for "Save pipeline trace";
+     * 0 disables tracing.
+     */
+    private void setTraceSampleInterval(int interval) {
+        preferences.edit()
+            .putInt(PREF_TRACE_SAMPLE_INTERVAL, interval)
+            .commit();
+        source.setTraceSampleInterval(interval);
+    }
+
     /** from Activity */
     @Override public boolean onPrepareOptionsMenu(Menu menu) {
         menu.findItem(R.id.disconnect_all).setEnabled(!clients.isEmpty());
+        menu.findItem(R.id.record_track).setEnabled(track != null);
+        menu.findItem(R.id.geofence_alerts).setEnabled(geofences != null);
+        menu.findItem(R.id.web_server).setChecked(getWebPort() > 0);
+        menu.findItem(R.id.precise_coordinates)
+            .setChecked(preferences.getBoolean(PREF_PRECISE_COORDINATES, false));
+        menu.findItem(R.id.every_satellite_status)
+            .setChecked(preferences.getBoolean(PREF_EVERY_SATELLITE_STATUS,
+                                               false));
+
+        final int traceInterval = getTraceSampleInterval();
+        menu.findItem(traceInterval == 0
+                      ? R.id.trace_off
+                      : (traceInterval == TRACE_CHEAP_INTERVAL
+                         ? R.id.trace_cheap
+                         : R.id.trace_default)).setChecked(true);
         return true;
     }
 
@@ -239,19 +579,137 @@ public class BlueNMEA extends Activity
     @Override public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
         case R.id.disconnect_all:
-            ArrayList<Client> copy = new ArrayList<Client>(clients);
-            for (Client client : copy) {
+            for (Client client : clients.snapshot()) {
                 removeClient(client);
                 client.close();
             }
 
             return true;
 
+        case R.id.web_server:
+            item.setChecked(!item.isChecked());
+            preferences.edit()
+                .putInt(PREF_WEB_PORT,
+                        item.isChecked() ? StartupThread.WEB_PORT : 0)
+                .commit();
+            if (!item.isChecked()) {
+                /* the connected browsers stay until they disconnect */
+                closeQuietly(web);
+                web = null;
+                webStatus.setText("disabled");
+            } else if (web == null)
+                /* the servers are only set up by the #StartupThread */
+                webStatus.setText("enabled on next start");
+            return true;
+
+        case R.id.adaptive_interval:
+            item.setChecked(!item.isChecked());
+            source.setAdaptiveInterval(item.isChecked());
+            return true;
+
+        case R.id.upsample:
+            item.setChecked(!item.isChecked());
+            source.setUpsampleRate(item.isChecked() ? UPSAMPLE_RATE : 0);
+            return true;
+
+        case R.id.simulate:
+            item.setChecked(!item.isChecked());
+            source.setFixProvider(item.isChecked()
+                                  ? new SimulatedProvider(SIMULATOR_SEED,
+                                                          SimulatedProvider.FIGURE_EIGHT,
+                                                          SIMULATOR_RATE,
+                                                          SIMULATOR_SATELLITES,
+                                                          0, 0)
+                                  : null);
+            return true;
+
+        case R.id.jump_filter:
+            item.setChecked(!item.isChecked());
+            if (item.isChecked())
+                source.addStage(jumpFilter);
+            else
+                source.removeStage(jumpFilter);
+            return true;
+
+        case R.id.precise_coordinates:
+            item.setChecked(!item.isChecked());
+            preferences.edit()
+                .putBoolean(PREF_PRECISE_COORDINATES, item.isChecked())
+                .commit();
+            source.setCoordinateDecimals(item.isChecked()
+                                         ? PRECISE_DECIMALS
+                                         : NMEA.DEFAULT_DECIMALS);
+            return true;
+
+        case R.id.every_satellite_status:
+            item.setChecked(!item.isChecked());
+            preferences.edit()
+                .putBoolean(PREF_EVERY_SATELLITE_STATUS, item.isChecked())
+                .commit();
+            setEverySatelliteStatus(item.isChecked());
+            return true;
+
+        case R.id.record_track:
+            item.setChecked(!item.isChecked());
+            source.setTrackRecorder(item.isChecked() ? track : null);
+            return true;
+
+        case R.id.trace_off:
+            setTraceSampleInterval(0);
+            return true;
+
+        case R.id.trace_cheap:
+            setTraceSampleInterval(TRACE_CHEAP_INTERVAL);
+            return true;
+
+        case R.id.trace_default:
+            setTraceSampleInterval(Trace.DEFAULT_SAMPLE_INTERVAL);
+            return true;
+
+        case R.id.save_trace:
+            saveTrace(source.getTrace(), new File(getFilesDir(), TRACE_FILE));
+            return true;
+
+        case R.id.geofence_alerts:
+            item.setChecked(!item.isChecked());
+            geofenceAlerts = item.isChecked();
+            for (Client client : clients.snapshot()) {
+                if (!geofenceAlerts)
+                    source.removeAlertListener(client);
+                else if (!(client instanceof FanOut.RecordListener))
+                    source.addAlertListener(client);
+            }
+
+            return true;
+
         default:
             return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * Writes the #Trace as Chrome/Perfetto JSON on a background
+     * thread.
+     */
+    private static void saveTrace(final Trace trace, final File file) {
+        new Thread("BlueNMEA trace") {
+            @Override public void run() {
+                try {
+                    Writer out = new BufferedWriter(new FileWriter(file));
+                    try {
+                        trace.writeJson(out);
+                    } finally {
+                        out.close();
+                    }
+
+                    Log.i(TAG, "Trace saved to " + file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save the trace: " + e.getMessage());
+                }
+            }
+        }.start();
+    }
+
     /** from Activity */
     @Override protected void onActivityResult(int requestCode, int resultCode,
                                               Intent intent) {
@@ -279,6 +737,7 @@ public class BlueNMEA extends Activity
 
         bluetoothClient = new Peer(this, bridge, address);
         addClient(bluetoothClient);
+        bluetoothClient.start();
     }
 
     protected void scanFinished(String[] devices) {
@@ -329,6 +788,118 @@ public class BlueNMEA extends Activity
 
     final Handler scanHandler = new ScanHandler();
 
+    /**
+     * Closes a server, client or track; null is ignored.  Errors are
+     * only logged.
+     */
+    private static void closeQuietly(Object obj) {
+        try {
+            if (obj instanceof Server)
+                ((Server)obj).close();
+            else if (obj instanceof Client)
+                ((Client)obj).close();
+            else if (obj instanceof TrackRecorder)
+                ((TrackRecorder)obj).close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close " + obj + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Receives the results of the #StartupThread.
+     */
+    class StartupHandler extends Handler {
+        public void handleMessage(Message msg) {
+            if (destroyed) {
+                /* nobody else would close it */
+                closeQuietly(msg.obj);
+                return;
+            }
+
+            String status = msg.getData() != null
+                ? msg.getData().getString("status")
+                : null;
+
+            switch (msg.what) {
+            case StartupThread.BRIDGE:
+                bridge = (Bridge)msg.obj;
+                if (bridge != null) {
+                    bluetoothClientStatus.setText("not connected");
+                    connectButton.setVisibility(View.VISIBLE);
+                } else
+                    bluetoothClientStatus.setText("not available");
+                Log.i(TAG, "startup: bridge took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.TCP:
+                tcp = (Server)msg.obj;
+                tcpStatus.setText(status);
+                Log.i(TAG, "startup: TCP server took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.BINARY_TCP:
+                binaryTcp = (Server)msg.obj;
+                if (binaryTcp != null && tcp != null)
+                    tcpStatus.setText("listening on port " +
+                                      StartupThread.TCP_PORT + ", " + status);
+                Log.i(TAG, "startup: binary TCP server took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.LOCAL:
+                local = (Server)msg.obj;
+                localStatus.setText(status);
+                Log.i(TAG, "startup: local server took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.WEB:
+                if (getWebPort() <= 0) {
+                    /* disabled while it was starting */
+                    closeQuietly(msg.obj);
+                    break;
+                }
+
+                web = (Server)msg.obj;
+                webStatus.setText(status);
+                Log.i(TAG, "startup: web server took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.BLUETOOTH:
+                bluetoothServer = (Server)msg.obj;
+                bluetoothServerStatus.setText(status);
+                Log.i(TAG, "startup: Bluetooth server took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.TRACK:
+                track = (TrackRecorder)msg.obj;
+                Log.i(TAG, "startup: track store (" + status + ") took " +
+                      msg.arg1 + " ms");
+                break;
+
+            case StartupThread.GEOFENCES:
+                geofences = (GeofenceEngine)msg.obj;
+                source.setGeofences(geofences);
+                Log.i(TAG, "startup: " + status + " took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.PUSH:
+                pushClient = (PushClient)msg.obj;
+                if (pushClient != null) {
+                    addClient(pushClient);
+                    pushClient.start();
+                }
+                Log.i(TAG, "startup: " + status + " took " + msg.arg1 + " ms");
+                break;
+
+            case StartupThread.DONE:
+                Log.i(TAG, "startup: all servers ready after " + msg.arg1 + " ms");
+                break;
+            }
+        }
+    }
+
+    final Handler startupHandler = new StartupHandler();
+
     class ClientHandler extends Handler {
         public static final int REMOVE = 1;
         public static final int ADD = 2;
@@ -342,11 +913,15 @@ public class BlueNMEA extends Activity
                 break;
 
             case REMOVE:
-                if (!clients.contains(client))
+                if (!clients.contains(client.id))
                     return;
 
                 removeClient(client);
 
+                /* close() joins the client's thread, so it is done
+                   here and not on the thread reporting the failure */
+                client.close();
+
                 if (client == bluetoothClient) {
                     bluetoothClient = null;
                     bluetoothClientStatus.setText("disconnected: " +
@@ -360,6 +935,82 @@ public class BlueNMEA extends Activity
 
     final Handler clientHandler = new ClientHandler();
 
+    /**
+     * Refreshes the dashboard from a #MetricsSnapshot every
+     * #DASHBOARD_INTERVAL_MS while the activity is visible.  This is
+     * the only way status and counters reach the UI, so the fix path
+     * never posts anything to the UI thread.
+     */
+    class DashboardHandler extends Handler {
+        public static final int REFRESH = 1;
+
+        /** the snapshot shown last, for calculating rates */
+        MetricsSnapshot previous;
+
+        void start() {
+            removeMessages(REFRESH);
+            sendEmptyMessage(REFRESH);
+        }
+
+        void stop() {
+            removeMessages(REFRESH);
+            previous = null;
+        }
+
+        public void handleMessage(Message msg) {
+            MetricsSnapshot snapshot =
+                new MetricsSnapshot(source, clients.snapshot(),
+                                    admission);
+            show(snapshot, previous);
+            previous = snapshot;
+
+            sendEmptyMessageDelayed(REFRESH, DASHBOARD_INTERVAL_MS);
+        }
+    }
+
+    final DashboardHandler dashboardHandler = new DashboardHandler();
+
+    private void show(MetricsSnapshot snapshot, MetricsSnapshot previous) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(getString(snapshot.providerStatus));
+        final double fixRate = snapshot.getFixRate(previous);
+        if (fixRate >= 0)
+            sb.append(", ").append(Math.round(fixRate * 10) / 10.)
+                .append(" fixes/s");
+        providerStatus.setText(sb.toString());
+
+        sb.setLength(0);
+        for (StageMetrics.Snapshot stage : snapshot.stages) {
+            if (sb.length() > 0)
+                sb.append("; ");
+            sb.append(stage.name).append(' ')
+                .append(stage.averageLatencyNanos() / 1000).append(" us");
+            if (stage.queueDepth > 0)
+                sb.append(", ").append(stage.queueDepth).append(" queued");
+            if (stage.dropped > 0)
+                sb.append(", ").append(stage.dropped).append(" dropped");
+        }
+
+        final long refused = snapshot.admission.refused();
+        if (refused > 0)
+            sb.append("; ").append(refused).append(" connections refused");
+        pipelineStatus.setText(sb.toString());
+
+        clientListAdapter.refresh(snapshot, previous);
+    }
+
+    /** from Activity */
+    @Override protected void onResume() {
+        super.onResume();
+        dashboardHandler.start();
+    }
+
+    /** from Activity */
+    @Override protected void onPause() {
+        dashboardHandler.stop();
+        super.onPause();
+    }
+
     /** from Activity */
     protected Dialog onCreateDialog(int id) {
         switch (id) {
@@ -386,6 +1037,8 @@ public class BlueNMEA extends Activity
             newLocationProvider = LocationManager.GPS_PROVIDER;
         else if (checkedId == R.id.networkProvider)
             newLocationProvider = LocationManager.NETWORK_PROVIDER;
+        else if (checkedId == R.id.fusedProvider)
+            newLocationProvider = Source.FUSED_PROVIDER;
         else
             return;
 
@@ -396,11 +1049,6 @@ public class BlueNMEA extends Activity
         source.setLocationProvider(newLocationProvider);
     }
 
-    /** from Source.StatusListener */
-    @Override public void onStatusChanged(int status) {
-        providerStatus.setText(status);
-    }
-
     /** from Client.Listener */
     @Override public void onClientFailure(Client client, Throwable t) {
         Message msg = clientHandler.obtainMessage(ClientHandler.REMOVE,
@@ -410,8 +1058,6 @@ public class BlueNMEA extends Activity
         msg.setData(b);
 
         clientHandler.sendMessage(msg);
-
-        client.close();
     }
 
     /** from Server.Listener */
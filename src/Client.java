@@ -23,14 +23,50 @@ import java.io.IOException;
 /**
  * A Bluetooth peer device.
  */
-abstract class Client implements Source.NMEAListener {
+abstract class Client implements FanOut.TracedListener {
     interface Listener {
         void onClientFailure(Client client, Throwable t);
     }
 
+    /**
+     * An immutable copy of a client's counters.  An item is whatever
+     * the client sends: a line, a record or a frame.
+     */
+    static final class Stats {
+        final long sent, dropped, bytesSent;
+
+        /** the number of items waiting to be sent */
+        final int queued;
+
+        Stats(long _sent, long _dropped, long _bytesSent, int _queued) {
+            sent = _sent;
+            dropped = _dropped;
+            bytesSent = _bytesSent;
+            queued = _queued;
+        }
+    }
+
+    private static int nextId = 1;
+
+    /** a process-wide unique id of this client, used as the key in
+        the client #Registry */
+    final Integer id;
+
     Listener listener;
 
+    /** set by traceEpoch() for the next line; only accessed by the
+        thread calling onLine() */
+    Trace trace;
+    long pendingTraceId;
+
+    /** the admission of a server connection, or null */
+    private volatile Admission.Ticket ticket;
+
     public Client(Listener _listener) {
+        synchronized(Client.class) {
+            id = nextId++;
+        }
+
         listener = _listener;
     }
 
@@ -38,5 +74,72 @@ abstract class Client implements Source.NMEAListener {
         listener.onClientFailure(this, t);
     }
 
+    /**
+     * Provides the timer wheel of the #Source, which may be used for
+     * deadlines.  Called before the client is added to the #Source.
+     */
+    public void setTimerWheel(TimerWheel wheel) {
+    }
+
+    /**
+     * Called by the server which has admitted this connection,
+     * before the client is announced.
+     */
+    void setTicket(Admission.Ticket _ticket) {
+        ticket = _ticket;
+        setQueueBudget(_ticket.queueBudget);
+    }
+
+    /**
+     * Starts the client's thread, if it has one.  This is called
+     * after setTicket() and after the client has been announced or
+     * added, so a failure can neither release the ticket before it
+     * was set nor be reported before the client was added.
+     */
+    void start() {
+    }
+
+    /**
+     * Limits the number of bytes queued for this client; beyond that,
+     * the oldest data is dropped.
+     */
+    protected void setQueueBudget(int bytes) {
+    }
+
+    /**
+     * Gives back the admission of a server connection; to be called
+     * by close().
+     */
+    protected void releaseTicket() {
+        Admission.Ticket t = ticket;
+        if (t != null)
+            t.release();
+    }
+
+    /** from FanOut.TracedListener */
+    @Override public void traceEpoch(Trace _trace, long traceId) {
+        trace = _trace;
+        pendingTraceId = traceId;
+    }
+
+    /**
+     * Returns the trace id for the line passed to onLine(), or 0 if
+     * it is not traced.  Only the first line of a sampled epoch is
+     * traced.
+     */
+    protected long takeTraceId() {
+        long traceId = pendingTraceId;
+        pendingTraceId = 0;
+        return traceId;
+    }
+
+    /**
+     * Returns the counters, or null if this client has none.  May
+     * be called from any thread.
+     */
+    public Stats getStats() {
+        return null;
+    }
+
     abstract public void close();
 }
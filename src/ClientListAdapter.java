@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows the clients of a #MetricsSnapshot in a ListView, with their
+ * throughput, queue and drops.  The list only changes in refresh(),
+ * so it never changes behind the ListView's back.
+ */
+class ClientListAdapter extends BaseAdapter {
+    final Context context;
+
+    Client[] clients = new Client[0];
+
+    /** the text of each item, formatted by refresh() */
+    String[] texts = new String[0];
+
+    ClientListAdapter(Context _context) {
+        context = _context;
+    }
+
+    /**
+     * Loads a new snapshot.  Must be called on the UI thread.
+     *
+     * @param previous the previous snapshot for calculating rates,
+     * or null
+     */
+    void refresh(MetricsSnapshot snapshot, MetricsSnapshot previous) {
+        clients = snapshot.clients;
+        texts = new String[clients.length];
+
+        final StringBuilder sb = new StringBuilder(128);
+        for (int i = 0; i < clients.length; ++i) {
+            sb.setLength(0);
+            sb.append(clients[i]);
+
+            final Client.Stats stats = snapshot.clientStats[i];
+            if (stats != null) {
+                final double throughput =
+                    snapshot.getThroughput(i, previous);
+                sb.append('\n');
+                if (throughput >= 0)
+                    sb.append(Math.round(throughput)).append(" B/s, ");
+                sb.append(stats.queued).append(" queued, ")
+                    .append(stats.dropped).append(" dropped");
+            }
+
+            texts[i] = sb.toString();
+        }
+
+        notifyDataSetChanged();
+    }
+
+    /** from Adapter */
+    @Override public int getCount() {
+        return clients.length;
+    }
+
+    /** from Adapter */
+    @Override public Client getItem(int position) {
+        return clients[position];
+    }
+
+    /** from Adapter */
+    @Override public long getItemId(int position) {
+        return clients[position].id;
+    }
+
+    /** from Adapter */
+    @Override public boolean hasStableIds() {
+        return true;
+    }
+
+    /** from Adapter */
+    @Override public View getView(int position, View convertView,
+                                  ViewGroup parent) {
+        TextView view = convertView instanceof TextView
+            ? (TextView)convertView
+            : (TextView)View.inflate(context,
+                                     android.R.layout.simple_list_item_1,
+                                     null);
+        view.setText(texts[position]);
+        return view;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Calculates the dilution of precision (PDOP, HDOP, VDOP) from the
+ * geometry of the satellites used in the fix.
+ *
+ * With the line-of-sight unit vectors e_i of the satellites, the
+ * geometry matrix G has the rows (e_i, 1); the diagonal of
+ * (G^T G)^-1 gives the DOP values.  The 4x4 normal matrix is
+ * accumulated and inverted in preallocated primitive arrays.
+ *
+ * The result is cached: update() only recalculates when the set of
+ * used satellites has changed, or when the cached result is older
+ * than #MAX_AGE_NANOS (because the satellites move).
+ *
+ * This class is not thread-safe.
+ */
+final class DOP {
+    /** satellites move about 0.5 degrees per minute, so refresh the
+        geometry once a minute even if the set is unchanged */
+    private static final long MAX_AGE_NANOS = 60000000000L;
+
+    /** is there a valid result? */
+    boolean valid;
+
+    double pdop, hdop, vdop;
+
+    /** the PRNs of the satellites the cached result is based on */
+    private final int[] usedPrn = new int[SatelliteStatus.MAX_SATELLITES];
+    private int usedCount = -1;
+    private long calculatedNanos;
+
+    /** the normal matrix G^T G, row-major */
+    private final double[] a = new double[16];
+
+    /** the inverse of #a */
+    private final double[] inverse = new double[16];
+
+    /**
+     * Has the set of used satellites changed since the last
+     * calculation?  Updates the saved set.
+     */
+    private boolean updateUsedSet(SatelliteStatus status) {
+        boolean changed = false;
+        int n = 0;
+        for (int i = 0; i < status.count; ++i) {
+            if (!status.usedInFix[i])
+                continue;
+
+            if (n >= usedCount || usedPrn[n] != status.prn[i]) {
+                usedPrn[n] = status.prn[i];
+                changed = true;
+            }
+
+            ++n;
+        }
+
+        if (n != usedCount) {
+            usedCount = n;
+            changed = true;
+        }
+
+        return changed;
+    }
+
+    /**
+     * Updates the DOP values from the satellite snapshot if needed.
+     *
+     * @param now the current System.nanoTime()
+     * @return true if the values were recalculated
+     */
+    boolean update(SatelliteStatus status, long now) {
+        if (!updateUsedSet(status) && usedCount >= 0 &&
+            now - calculatedNanos < MAX_AGE_NANOS)
+            return false;
+
+        calculatedNanos = now;
+        calculate(status);
+        return true;
+    }
+
+    /**
+     * Forces a recalculation on the next update() call.
+     */
+    void invalidate() {
+        usedCount = -1;
+        valid = false;
+    }
+
+    private void calculate(SatelliteStatus status) {
+        valid = false;
+
+        final double[] m = a;
+        for (int i = 0; i < 16; ++i)
+            m[i] = 0;
+
+        int n = 0;
+        for (int i = 0; i < status.count; ++i) {
+            if (!status.usedInFix[i])
+                continue;
+
+            double elevation = Math.toRadians(status.elevation[i]);
+            double azimuth = Math.toRadians(status.azimuth[i]);
+            double cosEl = Math.cos(elevation);
+            double x = cosEl * Math.sin(azimuth);
+            double y = cosEl * Math.cos(azimuth);
+            double z = Math.sin(elevation);
+
+            /* accumulate the upper triangle of G^T G */
+            m[0] += x * x; m[1] += x * y; m[2] += x * z; m[3] += x;
+            m[5] += y * y; m[6] += y * z; m[7] += y;
+            m[10] += z * z; m[11] += z;
+            m[15] += 1;
+            ++n;
+        }
+
+        if (n < 4)
+            return;
+
+        /* mirror into the lower triangle */
+        m[4] = m[1]; m[8] = m[2]; m[12] = m[3];
+        m[9] = m[6]; m[13] = m[7];
+        m[14] = m[11];
+
+        if (!invert(m, inverse))
+            return;
+
+        double qxx = inverse[0], qyy = inverse[5], qzz = inverse[10];
+        if (qxx < 0 || qyy < 0 || qzz < 0)
+            return;
+
+        hdop = Math.sqrt(qxx + qyy);
+        vdop = Math.sqrt(qzz);
+        pdop = Math.sqrt(qxx + qyy + qzz);
+        valid = true;
+    }
+
+    /**
+     * Inverts the 4x4 matrix with Gauss-Jordan elimination and
+     * partial pivoting.  The source matrix is destroyed.
+     *
+     * @return false if the matrix is singular
+     */
+    static boolean invert(double[] m, double[] inv) {
+        for (int i = 0; i < 16; ++i)
+            inv[i] = (i % 5 == 0) ? 1 : 0;
+
+        for (int col = 0; col < 4; ++col) {
+            int pivot = col;
+            double max = Math.abs(m[col * 4 + col]);
+            for (int row = col + 1; row < 4; ++row) {
+                double v = Math.abs(m[row * 4 + col]);
+                if (v > max) {
+                    max = v;
+                    pivot = row;
+                }
+            }
+
+            if (max < 1e-12)
+                return false;
+
+            if (pivot != col) {
+                for (int k = 0; k < 4; ++k) {
+                    double t = m[col * 4 + k];
+                    m[col * 4 + k] = m[pivot * 4 + k];
+                    m[pivot * 4 + k] = t;
+
+                    t = inv[col * 4 + k];
+                    inv[col * 4 + k] = inv[pivot * 4 + k];
+                    inv[pivot * 4 + k] = t;
+                }
+            }
+
+            double scale = 1 / m[col * 4 + col];
+            for (int k = 0; k < 4; ++k) {
+                m[col * 4 + k] *= scale;
+                inv[col * 4 + k] *= scale;
+            }
+
+            for (int row = 0; row < 4; ++row) {
+                if (row == col)
+                    continue;
+
+                double factor = m[row * 4 + col];
+                if (factor == 0)
+                    continue;
+
+                for (int k = 0; k < 4; ++k) {
+                    m[row * 4 + k] -= factor * m[col * 4 + k];
+                    inv[row * 4 + k] -= factor * inv[col * 4 + k];
+                }
+            }
+        }
+
+        return true;
+    }
+}
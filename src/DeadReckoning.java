@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Extrapolates the position between two real fixes from the last
+ * fix's speed and bearing.  The trigonometry is done once per real
+ * fix in #reset(); #extrapolate() is two multiplications.
+ *
+ * This class does not allocate and is not thread-safe.
+ */
+final class DeadReckoning {
+    /** meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    /** below this speed (m/s), the bearing is noise and the
+        position is held */
+    private static final float MIN_SPEED = 0.5f;
+
+    /** the last real fix, marked as estimated */
+    private final Fix base = new Fix();
+
+    private boolean valid;
+
+    /** the velocity in degrees per nanosecond */
+    private double latitudeRate, longitudeRate;
+
+    boolean isValid() {
+        return valid;
+    }
+
+    void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Starts extrapolating from a new real fix.
+     */
+    void reset(Fix fix) {
+        base.set(fix);
+        base.estimated = true;
+        valid = true;
+
+        if (!fix.hasSpeed || !fix.hasBearing || fix.speed < MIN_SPEED) {
+            latitudeRate = longitudeRate = 0;
+            return;
+        }
+
+        final double bearing = Math.toRadians(fix.bearing);
+        final double metersPerNano = fix.speed / 1e9;
+        latitudeRate = metersPerNano * Math.cos(bearing) / METERS_PER_DEGREE;
+
+        final double cosLatitude = Math.cos(Math.toRadians(fix.latitude));
+        longitudeRate = cosLatitude > 1e-6
+            ? metersPerNano * Math.sin(bearing) / (METERS_PER_DEGREE * cosLatitude)
+            : 0;
+    }
+
+    /**
+     * Writes the estimated fix to the specified object.
+     *
+     * @param elapsedNanos the time since the real fix
+     */
+    void extrapolate(Fix dest, long elapsedNanos) {
+        dest.set(base);
+        dest.time += elapsedNanos / 1000000;
+
+        double latitude = base.latitude + latitudeRate * elapsedNanos;
+        if (latitude > 90)
+            latitude = 90;
+        else if (latitude < -90)
+            latitude = -90;
+        dest.latitude = latitude;
+
+        double longitude = base.longitude + longitudeRate * elapsedNanos;
+        if (longitude > 180)
+            longitude -= 360;
+        else if (longitude < -180)
+            longitude += 360;
+        dest.longitude = longitude;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.util.LinkedList;
+
+/**
+ * The I/O stage of the output pipeline: a thread which takes
+ * #Epoch objects from a bounded queue and hands them to a #Sink.
+ * This decouples the encoder from listeners which may block (e.g. a
+ * #Peer writing to a Bluetooth socket).
+ */
+final class Dispatcher implements Runnable {
+    interface Sink {
+        /**
+         * Called on the dispatcher thread for each epoch.
+         */
+        void onEpoch(Epoch epoch);
+    }
+
+    /** the maximum number of epochs waiting in the queue; if the
+        sink is slower than that, the oldest ones are dropped */
+    private static final int MAX_QUEUE = 32;
+
+    private final Sink sink;
+    private final LinkedList<Epoch> queue = new LinkedList<Epoch>();
+    private final StageMetrics metrics = new StageMetrics("io");
+    private final Thread thread = new Thread(this, "BlueNMEA I/O");
+
+    private boolean closed = false;
+
+    Dispatcher(Sink _sink) {
+        sink = _sink;
+        thread.start();
+    }
+
+    StageMetrics.Snapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Queues the epoch for delivery.  May be called from any thread.
+     */
+    void publish(Epoch epoch) {
+        synchronized(queue) {
+            if (closed)
+                return;
+
+            if (queue.size() >= MAX_QUEUE) {
+                queue.removeFirst();
+                metrics.dropped();
+            }
+
+            queue.add(epoch);
+            metrics.enqueued();
+
+            queue.notify();
+        }
+    }
+
+    void close() {
+        synchronized(queue) {
+            closed = true;
+            queue.notify();
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** from Runnable */
+    @Override public void run() {
+        while (true) {
+            Epoch epoch;
+            synchronized(queue) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (closed)
+                    return;
+
+                epoch = queue.removeFirst();
+            }
+
+            sink.onEpoch(epoch);
+            metrics.processed(System.nanoTime() - epoch.encodedNanos);
+        }
+    }
+}
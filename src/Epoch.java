@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * The output generated from one provider event (a location fix or a
+ * satellite status update): a set of complete NMEA sentences and
+ * optionally the same data as a binary record.
+ * Instances are immutable, and may be shared between threads and
+ * listeners freely.
+ */
+final class Epoch {
+    /** the decorated NMEA sentences, without newline */
+    final String[] lines;
+
+    /** the #BinaryEncoder record, or null if there are no binary
+        listeners */
+    final byte[] record;
+
+    /** proprietary alert sentences (e.g. #Geofence events) for the
+        alert listeners only, or null */
+    final String[] alerts;
+
+    /** the fix as a JSON object (#WebFrames.fixJson()), or null if
+        this epoch has no fix or there are no web listeners */
+    final String json;
+
+    /** the System.nanoTime() when the provider event was received */
+    final long receivedNanos;
+
+    /** the System.nanoTime() when the encoder finished this epoch */
+    final long encodedNanos;
+
+    /** the #Trace id, or 0 if this epoch is not traced */
+    final long traceId;
+
+    Epoch(String[] _lines, byte[] _record, String[] _alerts, String _json,
+          long _receivedNanos, long _encodedNanos, long _traceId) {
+        lines = _lines;
+        record = _record;
+        alerts = _alerts;
+        json = _json;
+        receivedNanos = _receivedNanos;
+        encodedNanos = _encodedNanos;
+        traceId = _traceId;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * The last stage of the output pipeline: delivers each #Epoch to the
+ * registered listeners, in the representation each of them wants.
+ * It does not depend on the Android API, so the load harness can
+ * drive it without a #Source.
+ */
+final class FanOut implements Dispatcher.Sink {
+    public interface NMEAListener {
+        void onLine(String line);
+    }
+
+    /**
+     * A listener which receives #BinaryEncoder records instead of
+     * NMEA sentences.
+     */
+    public interface RecordListener extends NMEAListener {
+        /**
+         * @param record the encoded record; shared between all
+         * listeners, must not be modified
+         */
+        void onRecord(byte[] record);
+    }
+
+    /**
+     * A listener which receives the epochs as prebuilt WebSocket or
+     * Server-Sent Events frames instead of NMEA sentences.
+     */
+    public interface WebListener extends NMEAListener {
+        /**
+         * @param frames shared between all web listeners
+         */
+        void onFrames(WebFrames frames);
+    }
+
+    /**
+     * A listener which records #Trace events for the lines it
+     * queues and writes.
+     */
+    public interface TracedListener extends NMEAListener {
+        /**
+         * Called before the lines of a sampled epoch are delivered.
+         */
+        void traceEpoch(Trace trace, long traceId);
+    }
+
+    private final Trace trace;
+
+    FanOut(Trace _trace) {
+        trace = _trace;
+    }
+
+    /** listeners are added on the UI thread and iterated on the
+        dispatcher thread; the registry's snapshot array makes that
+        safe without locking */
+    final Registry<NMEAListener, NMEAListener> nmeaListeners =
+        new Registry<NMEAListener, NMEAListener>(NMEAListener.class);
+
+    /** the listeners which have subscribed to the proprietary alert
+        sentences (#Geofence events); they are usually also
+        registered as #NMEAListener */
+    final Registry<NMEAListener, NMEAListener> alertListeners =
+        new Registry<NMEAListener, NMEAListener>(NMEAListener.class);
+
+    /** the binary protocol listeners; records are only encoded
+        while there is at least one */
+    final Registry<NMEAListener, RecordListener> recordListeners =
+        new Registry<NMEAListener, RecordListener>(RecordListener.class);
+
+    /** the web listeners; JSON fixes are only encoded while there is
+        at least one */
+    final Registry<NMEAListener, WebListener> webListeners =
+        new Registry<NMEAListener, WebListener>(WebListener.class);
+
+    /**
+     * @return true if the listener was not registered yet
+     */
+    boolean add(NMEAListener l) {
+        return l instanceof RecordListener
+            ? recordListeners.add(l, (RecordListener)l)
+            : (l instanceof WebListener
+               ? webListeners.add(l, (WebListener)l)
+               : nmeaListeners.add(l, l));
+    }
+
+    /**
+     * @return true if the listener was registered
+     */
+    boolean remove(NMEAListener l) {
+        return l instanceof RecordListener
+            ? recordListeners.remove(l) != null
+            : (l instanceof WebListener
+               ? webListeners.remove(l) != null
+               : nmeaListeners.remove(l) != null);
+    }
+
+    void addAlertListener(NMEAListener l) {
+        alertListeners.add(l, l);
+    }
+
+    void removeAlertListener(NMEAListener l) {
+        alertListeners.remove(l);
+    }
+
+    boolean isEmpty() {
+        return nmeaListeners.isEmpty() && recordListeners.isEmpty() &&
+            webListeners.isEmpty();
+    }
+
+    boolean wantsRecords() {
+        return !recordListeners.isEmpty();
+    }
+
+    boolean wantsJson() {
+        return !webListeners.isEmpty();
+    }
+
+    /** from Dispatcher.Sink */
+    @Override public void onEpoch(Epoch epoch) {
+        final long traceId = epoch.traceId;
+        if (traceId != 0)
+            trace.record(traceId, Trace.DISPATCHED, Trace.PIPELINE);
+
+        final NMEAListener[] listeners = nmeaListeners.snapshot();
+        if (traceId != 0)
+            for (int j = 0; j < listeners.length; ++j)
+                if (listeners[j] instanceof TracedListener)
+                    ((TracedListener)listeners[j]).traceEpoch(trace, traceId);
+
+        final String[] lines = epoch.lines;
+        for (int i = 0; i < lines.length; ++i)
+            for (int j = 0; j < listeners.length; ++j)
+                listeners[j].onLine(lines[i]);
+
+        if (epoch.record != null) {
+            final RecordListener[] binary = recordListeners.snapshot();
+            for (int j = 0; j < binary.length; ++j)
+                binary[j].onRecord(epoch.record);
+        }
+
+        final WebListener[] web = webListeners.snapshot();
+        if (web.length > 0) {
+            /* each frame is built at most once per epoch */
+            final WebFrames frames = new WebFrames(epoch);
+            for (int j = 0; j < web.length; ++j)
+                web[j].onFrames(frames);
+        }
+
+        if (epoch.alerts != null) {
+            final NMEAListener[] alert = alertListeners.snapshot();
+            final String[] alerts = epoch.alerts;
+            for (int i = 0; i < alerts.length; ++i)
+                for (int j = 0; j < alert.length; ++j)
+                    alert[j].onLine(alerts[i]);
+        }
+
+        if (traceId != 0)
+            trace.record(traceId, Trace.DELIVERED, Trace.PIPELINE);
+    }
+}
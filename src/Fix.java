@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A location fix in primitive fields.  This is what the encoders
+ * work with; it is mutable so one instance can be reused for every
+ * fix, and it does not depend on the Android API.
+ */
+final class Fix {
+    static final int PROVIDER_OTHER = 0;
+    static final int PROVIDER_GPS = 1;
+    static final int PROVIDER_NETWORK = 2;
+
+    /** Unix time in milliseconds (UTC) */
+    long time;
+
+    /** degrees; positive is north/east */
+    double latitude, longitude;
+
+    boolean hasAltitude;
+
+    /** meters above the WGS84 ellipsoid */
+    double altitude;
+
+    boolean hasSpeed;
+
+    /** meters per second */
+    float speed;
+
+    boolean hasBearing;
+
+    /** degrees clockwise from true north */
+    float bearing;
+
+    /** estimated accuracy in meters */
+    float accuracy;
+
+    /** horizontal dilution of precision, or 0 if unknown */
+    float hdop;
+
+    /** the number of satellites used, or -1 if unknown */
+    int satellites = -1;
+
+    /** one of the PROVIDER_ constants */
+    int provider = PROVIDER_OTHER;
+
+    /** was this fix extrapolated by #DeadReckoning instead of being
+        measured? */
+    boolean estimated;
+
+    void set(Fix src) {
+        time = src.time;
+        latitude = src.latitude;
+        longitude = src.longitude;
+        hasAltitude = src.hasAltitude;
+        altitude = src.altitude;
+        hasSpeed = src.hasSpeed;
+        speed = src.speed;
+        hasBearing = src.hasBearing;
+        bearing = src.bearing;
+        accuracy = src.accuracy;
+        hdop = src.hdop;
+        satellites = src.satellites;
+        provider = src.provider;
+        estimated = src.estimated;
+    }
+}
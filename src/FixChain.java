@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Runs each fix through a list of #FixStage objects and hands the
+ * survivors to a #Sink, measuring what each stage costs: thread
+ * CPU time (wall-clock time if no #CpuClock is available) and (if
+ * an #AllocationCounter is available) bytes allocated.  A
+ * stage which takes longer than #BUDGET_NANOS for one fix is
+ * counted, and the first such overrun is logged.
+ *
+ * The chain works on #Fix objects it owns (one per stage for
+ * emitted fixes), so it allocates nothing per fix.  This class is
+ * not thread-safe; it is only used on the source thread.
+ */
+final class FixChain {
+    private static final String TAG = "BlueNMEA";
+
+    /** the per-fix CPU budget of one stage */
+    static final long BUDGET_NANOS = 1000000L;
+
+    interface Sink {
+        /**
+         * @param fix owned by the chain, and only valid during this
+         * call
+         */
+        void onFix(Fix fix);
+    }
+
+    /**
+     * Reports how much CPU time the calling thread has used so far.
+     */
+    interface CpuClock {
+        long getThreadCpuNanos();
+    }
+
+    /**
+     * Reports how many bytes the calling thread has allocated so
+     * far.
+     */
+    interface AllocationCounter {
+        long getAllocatedBytes();
+    }
+
+    /**
+     * An immutable copy of the counters of one stage.
+     */
+    static final class Snapshot {
+        final String name;
+        final long fixes, dropped, emitted, overBudget;
+
+        /** the time spent in the stage, see #FixChain */
+        final long totalNanos, maxNanos;
+
+        /** bytes allocated, or -1 if not measured */
+        final long allocatedBytes;
+
+        Snapshot(String _name, long _fixes, long _dropped, long _emitted,
+                 long _overBudget, long _totalNanos, long _maxNanos,
+                 long _allocatedBytes) {
+            name = _name;
+            fixes = _fixes;
+            dropped = _dropped;
+            emitted = _emitted;
+            overBudget = _overBudget;
+            totalNanos = _totalNanos;
+            maxNanos = _maxNanos;
+            allocatedBytes = _allocatedBytes;
+        }
+
+        long averageNanos() {
+            return fixes > 0 ? totalNanos / fixes : 0;
+        }
+
+        /** from Object */
+        @Override public String toString() {
+            return name + ": fixes=" + fixes + " dropped=" + dropped +
+                " emitted=" + emitted +
+                " cost=" + averageNanos() / 1000 + "us" +
+                " max=" + maxNanos / 1000 + "us" +
+                " over_budget=" + overBudget +
+                (allocatedBytes >= 0
+                 ? " alloc=" + (fixes > 0 ? allocatedBytes / fixes : 0) + "B/fix"
+                 : "");
+        }
+    }
+
+    /**
+     * One installed stage with its counters.
+     */
+    private final class Slot implements FixStage.Emitter {
+        final FixStage stage;
+
+        /** the position in #slots */
+        int index;
+
+        /** the copy of an emitted fix */
+        final Fix emitted = new Fix();
+
+        /* counters; written on the source thread, read by
+           snapshot() under the chain's lock */
+        long fixes, dropped, emittedCount, overBudget;
+        long totalNanos, maxNanos, allocatedBytes;
+
+        Slot(FixStage _stage, int _index) {
+            stage = _stage;
+            index = _index;
+        }
+
+        /** from FixStage.Emitter */
+        @Override public void emit(Fix fix) {
+            emitted.set(fix);
+            ++emittedCount;
+
+            /* the time spent downstream is not this stage's cost */
+            final long start = now();
+            final long alloc = allocation != null
+                ? allocation.getAllocatedBytes() : 0;
+
+            run(index + 1, emitted);
+
+            nestedNanos += now() - start;
+            if (allocation != null)
+                nestedBytes += allocation.getAllocatedBytes() - alloc;
+        }
+    }
+
+    private final Sink sink;
+    private final CpuClock cpuClock;
+    private final AllocationCounter allocation;
+
+    /** copy-on-write, so a stage may be removed while the chain is
+        running */
+    private volatile Slot[] slots = new Slot[0];
+
+    /** the chain's copy of the incoming fix */
+    private final Fix input = new Fix();
+
+    /** time and allocations of nested emit() calls, to be subtracted
+        from the emitting stage */
+    private long nestedNanos, nestedBytes;
+
+    /**
+     * @param _cpuClock measures the CPU time, or null to measure the
+     * wall-clock time instead
+     * @param _allocation measures allocations, or null
+     */
+    FixChain(Sink _sink, CpuClock _cpuClock, AllocationCounter _allocation) {
+        sink = _sink;
+        cpuClock = _cpuClock;
+        allocation = _allocation;
+    }
+
+    private long now() {
+        return cpuClock != null
+            ? cpuClock.getThreadCpuNanos()
+            : System.nanoTime();
+    }
+
+    boolean isEmpty() {
+        return slots.length == 0;
+    }
+
+    synchronized void add(FixStage stage) {
+        Slot[] n = new Slot[slots.length + 1];
+        System.arraycopy(slots, 0, n, 0, slots.length);
+        n[slots.length] = new Slot(stage, slots.length);
+        slots = n;
+    }
+
+    synchronized boolean remove(FixStage stage) {
+        for (int i = 0; i < slots.length; ++i) {
+            if (slots[i].stage == stage) {
+                Slot[] n = new Slot[slots.length - 1];
+                System.arraycopy(slots, 0, n, 0, i);
+                System.arraycopy(slots, i + 1, n, i, n.length - i);
+                for (int j = i; j < n.length; ++j)
+                    n[j].index = j;
+                slots = n;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Runs a fix through all stages.  The fix is copied first, so
+     * the caller's object is not modified.
+     */
+    void process(Fix fix) {
+        if (slots.length == 0) {
+            sink.onFix(fix);
+            return;
+        }
+
+        input.set(fix);
+        run(0, input);
+    }
+
+    private void run(int from, Fix fix) {
+        final Slot[] s = slots;
+        for (int i = from; i < s.length; ++i) {
+            final Slot slot = s[i];
+
+            final long savedNanos = nestedNanos, savedBytes = nestedBytes;
+            nestedNanos = nestedBytes = 0;
+
+            final long alloc = allocation != null
+                ? allocation.getAllocatedBytes() : 0;
+            final long start = now();
+
+            final boolean keep = slot.stage.process(fix, slot);
+
+            final long nanos = now() - start - nestedNanos;
+            final long bytes = allocation != null
+                ? allocation.getAllocatedBytes() - alloc - nestedBytes
+                : 0;
+
+            nestedNanos = savedNanos;
+            nestedBytes = savedBytes;
+
+            synchronized(this) {
+                ++slot.fixes;
+                slot.totalNanos += nanos;
+                if (nanos > slot.maxNanos)
+                    slot.maxNanos = nanos;
+                slot.allocatedBytes += bytes;
+                if (!keep)
+                    ++slot.dropped;
+                if (nanos > BUDGET_NANOS && slot.overBudget++ == 0)
+                    Logger.w(TAG, "Stage '" + slot.stage.getName() +
+                             "' took " + nanos / 1000 + "us for one fix");
+            }
+
+            if (!keep)
+                return;
+        }
+
+        sink.onFix(fix);
+    }
+
+    synchronized Snapshot[] snapshot() {
+        Snapshot[] result = new Snapshot[slots.length];
+        for (int i = 0; i < slots.length; ++i) {
+            Slot s = slots[i];
+            result[i] = new Snapshot(s.stage.getName(), s.fixes, s.dropped,
+                                     s.emittedCount, s.overBudget,
+                                     s.totalNanos, s.maxNanos,
+                                     allocation != null ? s.allocatedBytes : -1);
+        }
+
+        return result;
+    }
+}
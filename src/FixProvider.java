@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A source of fixes and satellite status other than the Android
+ * LocationManager, e.g. the #SimulatedProvider.  It does not depend
+ * on the Android API.
+ */
+interface FixProvider {
+    interface Listener {
+        /**
+         * @param fix the new fix; owned by the provider, and only
+         * valid during this call
+         */
+        void onFix(Fix fix);
+
+        /**
+         * @param satellites the satellites in view; owned by the
+         * provider, and only valid during this call
+         */
+        void onSatellites(SatelliteStatus satellites);
+
+        /**
+         * The provider has lost its fix.
+         */
+        void onUnavailable();
+
+        /**
+         * The provider has recovered from #onUnavailable().
+         */
+        void onAvailable();
+    }
+
+    /**
+     * Starts delivering to the listener.  The provider chooses the
+     * thread which invokes the listener.
+     */
+    void start(Listener listener);
+
+    /**
+     * Stops delivering.  No listener method is invoked after this
+     * returns.
+     */
+    void stop();
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Chooses between the fixes of several location providers (e.g. GPS
+ * and network).  A fix from the provider which delivered the current
+ * fix is always taken; a fix from another provider replaces it only
+ * if it is more accurate than the current fix after accounting for
+ * that fix's age, or if the current fix is stale.
+ *
+ * This class does not allocate; it works on primitive fields only.
+ * It is not thread-safe.
+ */
+final class FixSelector {
+    /** after this duration without an update from the current
+        provider, any fix is accepted */
+    static final long STALE_NANOS = 10000000000L;
+
+    /** the assumed drift of an aging fix in meters per second, if
+        it has no (higher) speed */
+    private static final float MIN_DRIFT = 1;
+
+    /** the selected fix; valid only if #isValid() */
+    final Fix current = new Fix();
+
+    /** the System.nanoTime() when #current was accepted */
+    private long currentNanos;
+
+    private boolean valid;
+
+    /** the number of times the selection switched to another
+        provider */
+    private int switches;
+
+    boolean isValid() {
+        return valid;
+    }
+
+    int getSwitches() {
+        return switches;
+    }
+
+    void reset() {
+        valid = false;
+    }
+
+    /**
+     * Accepts the fix unconditionally.
+     */
+    void accept(Fix fix, long nowNanos) {
+        if (valid && fix.provider != current.provider)
+            ++switches;
+
+        current.set(fix);
+        currentNanos = nowNanos;
+        valid = true;
+    }
+
+    /**
+     * Offers a new fix.
+     *
+     * @return true if the fix was accepted and has been copied to
+     * #current
+     */
+    boolean offer(Fix fix, long nowNanos) {
+        if (!valid || fix.provider == current.provider) {
+            accept(fix, nowNanos);
+            return true;
+        }
+
+        final long age = nowNanos - currentNanos;
+        if (age >= STALE_NANOS) {
+            accept(fix, nowNanos);
+            return true;
+        }
+
+        /* an accuracy of 0 means "unknown"; such a fix cannot beat
+           a fresh one */
+        if (fix.accuracy <= 0)
+            return false;
+
+        float drift = current.hasSpeed && current.speed > MIN_DRIFT
+            ? current.speed : MIN_DRIFT;
+        double effective = current.accuracy + drift * (age / 1e9);
+        if (current.accuracy > 0 && fix.accuracy > effective)
+            return false;
+
+        accept(fix, nowNanos);
+        return true;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A processing step between the provider callbacks and the encoder,
+ * e.g. a filter or an enrichment.  Stages are installed with
+ * Source.addStage() and run on the source thread, in a #FixChain.
+ */
+interface FixStage {
+    /**
+     * Emits additional fixes from within #process().
+     */
+    interface Emitter {
+        /**
+         * Passes a fix to the stages after the calling one, and then
+         * to the encoder, before this method returns.  The fix is
+         * copied, so the caller may reuse it.
+         */
+        void emit(Fix fix);
+    }
+
+    /**
+     * A short name for the statistics.
+     */
+    String getName();
+
+    /**
+     * Processes one fix.  The stage may modify it in place; it must
+     * not keep a reference to it after returning, because the
+     * #FixChain reuses the object.
+     *
+     * @return false to drop the fix
+     */
+    boolean process(Fix fix, Emitter emitter);
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A named polygon, e.g. a harbour, an anchorage or a restricted
+ * zone.  The vertices are in degrees; the polygon is closed
+ * implicitly.  Immutable.
+ */
+final class Geofence {
+    /** meters per degree of latitude */
+    static final double METERS_PER_DEGREE = 111194.9;
+
+    final int id;
+    final String name;
+
+    final double[] latitudes, longitudes;
+
+    /** the bounding box */
+    final double minLatitude, maxLatitude, minLongitude, maxLongitude;
+
+    Geofence(int _id, String _name,
+             double[] _latitudes, double[] _longitudes) {
+        if (_latitudes.length < 3 || _latitudes.length != _longitudes.length)
+            throw new IllegalArgumentException("Invalid polygon: " + _name);
+
+        id = _id;
+        name = _name;
+        latitudes = _latitudes;
+        longitudes = _longitudes;
+
+        double minLat = 90, maxLat = -90, minLon = 180, maxLon = -180;
+        for (int i = 0; i < latitudes.length; ++i) {
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+            minLon = Math.min(minLon, longitudes[i]);
+            maxLon = Math.max(maxLon, longitudes[i]);
+        }
+
+        minLatitude = minLat;
+        maxLatitude = maxLat;
+        minLongitude = minLon;
+        maxLongitude = maxLon;
+    }
+
+    boolean boxContains(double latitude, double longitude) {
+        return latitude >= minLatitude && latitude <= maxLatitude &&
+            longitude >= minLongitude && longitude <= maxLongitude;
+    }
+
+    /**
+     * Returns a lower bound of the distance in meters from a point
+     * outside the bounding box to the polygon.
+     */
+    double boxDistance(double latitude, double longitude,
+                       double metersPerLongitude) {
+        double dy = latitude < minLatitude ? minLatitude - latitude
+            : (latitude > maxLatitude ? latitude - maxLatitude : 0);
+        double dx = longitude < minLongitude ? minLongitude - longitude
+            : (longitude > maxLongitude ? longitude - maxLongitude : 0);
+        dy *= METERS_PER_DEGREE;
+        dx *= metersPerLongitude;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Tests whether the point is inside the polygon (even-odd rule),
+     * and calculates its distance to the nearest edge in one pass
+     * over the edges.
+     *
+     * @param result result[0] receives the distance in meters
+     */
+    boolean contains(double latitude, double longitude,
+                     double metersPerLongitude, double[] result) {
+        final double[] lats = latitudes, lons = longitudes;
+        final int n = lats.length;
+
+        boolean inside = false;
+        double min2 = Double.MAX_VALUE;
+
+        /* vertices relative to the point, in meters */
+        int j = n - 1;
+        double xj = (lons[j] - longitude) * metersPerLongitude;
+        double yj = (lats[j] - latitude) * METERS_PER_DEGREE;
+        for (int i = 0; i < n; j = i++) {
+            final double xi = (lons[i] - longitude) * metersPerLongitude;
+            final double yi = (lats[i] - latitude) * METERS_PER_DEGREE;
+
+            if ((yi > 0) != (yj > 0) &&
+                0 < (xj - xi) * (0 - yi) / (yj - yi) + xi)
+                inside = !inside;
+
+            /* the distance from the origin to the edge */
+            final double ex = xj - xi, ey = yj - yi;
+            final double length2 = ex * ex + ey * ey;
+            double t = length2 > 0 ? -(xi * ex + yi * ey) / length2 : 0;
+            if (t < 0)
+                t = 0;
+            else if (t > 1)
+                t = 1;
+            final double dx = xi + t * ex, dy = yi + t * ey;
+            final double d2 = dx * dx + dy * dy;
+            if (d2 < min2)
+                min2 = d2;
+
+            xj = xi;
+            yj = yi;
+        }
+
+        result[0] = Math.sqrt(min2);
+        return inside;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates many #Geofence objects against a stream of positions and
+ * reports enter/exit events.
+ *
+ * A uniform grid of #CELL_DEGREES maps each cell to the fences whose
+ * bounding box overlaps it, so only the fences near the position are
+ * looked at.  The cost per fix depends on the local fence density,
+ * not on the total number.
+ *
+ * The tests are incremental: each test also yields the distance to
+ * the fence's boundary (its "clearance").  The state cannot change
+ * before the position has moved further than that, so until then the
+ * polygon is not tested again.
+ *
+ * Not thread-safe; used on the source thread only.
+ */
+final class GeofenceEngine {
+    interface Listener {
+        void onGeofence(Geofence fence, boolean entered);
+    }
+
+    /** the edge of a grid cell; about 2.2 km of latitude */
+    static final double CELL_DEGREES = 0.02;
+
+    private static final int[] NO_FENCES = new int[0];
+
+    private final Geofence[] fences;
+
+    private final HashMap<Long, int[]> grid = new HashMap<Long, int[]>();
+
+    /** the candidates of the most recent cell, to avoid a map lookup
+        while the position stays in the cell */
+    private long lastCell = Long.MIN_VALUE;
+    private int[] lastCandidates = NO_FENCES;
+
+    /* per-fence state, indexed like #fences */
+    private final boolean[] inside;
+    private final boolean[] tested;
+    private final double[] testedLatitude, testedLongitude;
+    private final double[] clearance;
+
+    /** the value of #round when the fence was last visited */
+    private final int[] visited;
+    private int round;
+
+    /** the fences which are currently "inside", so an exit is
+        noticed even after a jump to a distant cell */
+    private final int[] insideList;
+    private int insideCount;
+
+    private final double[] distance = new double[1];
+
+    GeofenceEngine(List<Geofence> _fences) {
+        fences = _fences.toArray(new Geofence[_fences.size()]);
+
+        final int n = fences.length;
+        inside = new boolean[n];
+        tested = new boolean[n];
+        testedLatitude = new double[n];
+        testedLongitude = new double[n];
+        clearance = new double[n];
+        visited = new int[n];
+        insideList = new int[n];
+
+        HashMap<Long, List<Integer>> cells = new HashMap<Long, List<Integer>>();
+        for (int i = 0; i < n; ++i) {
+            final Geofence f = fences[i];
+            final long minRow = row(f.minLatitude), maxRow = row(f.maxLatitude);
+            final long minColumn = column(f.minLongitude);
+            final long maxColumn = column(f.maxLongitude);
+            for (long r = minRow; r <= maxRow; ++r) {
+                for (long c = minColumn; c <= maxColumn; ++c) {
+                    Long key = (r << 32) | c;
+                    List<Integer> list = cells.get(key);
+                    if (list == null) {
+                        list = new ArrayList<Integer>(2);
+                        cells.put(key, list);
+                    }
+                    list.add(i);
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<Integer>> e : cells.entrySet()) {
+            List<Integer> list = e.getValue();
+            int[] a = new int[list.size()];
+            for (int i = 0; i < a.length; ++i)
+                a[i] = list.get(i);
+            grid.put(e.getKey(), a);
+        }
+    }
+
+    private static long row(double latitude) {
+        return (long)Math.floor((latitude + 90) / CELL_DEGREES);
+    }
+
+    private static long column(double longitude) {
+        return (long)Math.floor((longitude + 180) / CELL_DEGREES);
+    }
+
+    int size() {
+        return fences.length;
+    }
+
+    /**
+     * Evaluates the fences near the position and reports changes to
+     * the listener.
+     */
+    void update(double latitude, double longitude, Listener listener) {
+        final double metersPerLongitude = Geofence.METERS_PER_DEGREE *
+            Math.cos(Math.toRadians(latitude));
+
+        final long cell = (row(latitude) << 32) | column(longitude);
+        if (cell != lastCell) {
+            int[] candidates = grid.get(cell);
+            lastCandidates = candidates != null ? candidates : NO_FENCES;
+            lastCell = cell;
+        }
+
+        ++round;
+
+        /* iterate backwards, because evaluate() may remove the
+           current element */
+        for (int i = insideCount - 1; i >= 0; --i)
+            evaluate(insideList[i], latitude, longitude,
+                     metersPerLongitude, listener);
+
+        final int[] candidates = lastCandidates;
+        for (int i = 0; i < candidates.length; ++i)
+            evaluate(candidates[i], latitude, longitude,
+                     metersPerLongitude, listener);
+    }
+
+    private void evaluate(int i, double latitude, double longitude,
+                          double metersPerLongitude, Listener listener) {
+        if (visited[i] == round)
+            return;
+        visited[i] = round;
+
+        if (tested[i]) {
+            final double dy = (latitude - testedLatitude[i]) *
+                Geofence.METERS_PER_DEGREE;
+            final double dx = (longitude - testedLongitude[i]) *
+                metersPerLongitude;
+            if (dx * dx + dy * dy < clearance[i] * clearance[i])
+                /* cannot have crossed the boundary */
+                return;
+        }
+
+        final Geofence fence = fences[i];
+        final boolean now;
+        if (fence.boxContains(latitude, longitude)) {
+            now = fence.contains(latitude, longitude, metersPerLongitude,
+                                 distance);
+            clearance[i] = distance[0];
+        } else {
+            now = false;
+            clearance[i] = fence.boxDistance(latitude, longitude,
+                                             metersPerLongitude);
+        }
+
+        tested[i] = true;
+        testedLatitude[i] = latitude;
+        testedLongitude[i] = longitude;
+
+        if (now == inside[i])
+            return;
+
+        inside[i] = now;
+        if (now)
+            insideList[insideCount++] = i;
+        else {
+            for (int j = 0; j < insideCount; ++j) {
+                if (insideList[j] == i) {
+                    insideList[j] = insideList[--insideCount];
+                    break;
+                }
+            }
+        }
+
+        listener.onGeofence(fence, now);
+    }
+
+    /**
+     * Forgets the state of all fences, e.g. after the location was
+     * lost.  The next update reports "enter" for all fences the
+     * position is in.
+     */
+    void reset() {
+        for (int i = 0; i < fences.length; ++i)
+            inside[i] = tested[i] = false;
+        insideCount = 0;
+    }
+
+    /**
+     * Parses fences, one per line:
+     *
+     * <pre>
+     * name: lat lon, lat lon, lat lon[, ...]
+     * </pre>
+     *
+     * Empty lines and lines starting with '#' are ignored.  The
+     * fences are numbered from 1 in file order.
+     */
+    static List<Geofence> read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Geofence> fences = new ArrayList<Geofence>();
+
+        String line;
+        int number = 0;
+        while ((line = in.readLine()) != null) {
+            ++number;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#')
+                continue;
+
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                throw new IOException("Missing name on line " + number);
+
+            /* these characters would break the NMEA sentence */
+            String name = line.substring(0, colon).trim()
+                .replace(',', ' ').replace('*', ' ').replace('$', ' ');
+
+            String[] vertices = line.substring(colon + 1).split(",");
+            double[] lats = new double[vertices.length];
+            double[] lons = new double[vertices.length];
+            try {
+                for (int i = 0; i < vertices.length; ++i) {
+                    String[] ll = vertices[i].trim().split("\\s+");
+                    if (ll.length != 2)
+                        throw new NumberFormatException();
+                    lats[i] = Double.parseDouble(ll[0]);
+                    lons[i] = Double.parseDouble(ll[1]);
+                }
+
+                fences.add(new Geofence(fences.size() + 1, name, lats, lons));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed geofence on line " + number);
+            }
+        }
+
+        return fences;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A #FixStage which drops fixes that jump further from the previous
+ * one than the boat could have travelled, e.g. multipath glitches.
+ * After #MAX_REJECTED consecutive rejections, the new position is
+ * accepted, because then the previous one was probably wrong.
+ */
+final class JumpFilter implements FixStage {
+    /** meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    /** the default speed limit in m/s (about 60 knots) */
+    static final double DEFAULT_MAX_SPEED = 30;
+
+    private static final int MAX_REJECTED = 5;
+
+    private final double maxSpeed;
+
+    private boolean hasPrevious;
+    private long previousTime;
+    private double previousLatitude, previousLongitude;
+    private float previousAccuracy;
+
+    private int rejected;
+
+    JumpFilter(double _maxSpeed) {
+        maxSpeed = _maxSpeed;
+    }
+
+    /** from FixStage */
+    @Override public String getName() {
+        return "jump";
+    }
+
+    /** from FixStage */
+    @Override public boolean process(Fix fix, Emitter emitter) {
+        if (hasPrevious && rejected < MAX_REJECTED) {
+            final double dy = (fix.latitude - previousLatitude) *
+                METERS_PER_DEGREE;
+            /* the shorter way around, so crossing the antimeridian
+               is not a jump */
+            double dLongitude = fix.longitude - previousLongitude;
+            if (dLongitude > 180)
+                dLongitude -= 360;
+            else if (dLongitude < -180)
+                dLongitude += 360;
+
+            final double dx = dLongitude *
+                METERS_PER_DEGREE * Math.cos(Math.toRadians(fix.latitude));
+            final double distance = Math.sqrt(dx * dx + dy * dy);
+
+            /* at least one second, so fixes with the same timestamp
+               are not rejected for any movement */
+            final double seconds = Math.max(fix.time - previousTime, 1000) / 1000.;
+            final double slack = fix.accuracy + previousAccuracy;
+
+            if (distance > maxSpeed * seconds + slack) {
+                ++rejected;
+                return false;
+            }
+        }
+
+        hasPrevious = true;
+        previousTime = fix.time;
+        previousLatitude = fix.latitude;
+        previousLongitude = fix.longitude;
+        previousAccuracy = fix.accuracy;
+        rejected = 0;
+        return true;
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Decides which NMEA sentences are sent to one client, and in which
+ * order.  Position sentences (GGA, RMC) always go first; satellite
+ * data (GSA, GSV) and the redundant GLL follow, and are thinned out
+ * when the measured throughput of the link cannot carry them.
+ *
+ * The link throughput is measured per wall-clock window: when the
+ * writer spent most of a window blocked in write(), the bytes it
+ * managed to write are what the link carries.  From then on, writes
+ * are paced to less than that, so the kernel's socket buffers drain
+ * and the backlog builds up in this scheduler instead (where newer
+ * position sentences replace older ones and low-priority ones are
+ * shed).  After a number of windows in which the link kept up with
+ * the budget, the budget is raised a little, so a link which has
+ * become faster is noticed.
+ *
+ * This class is not thread-safe; the caller must synchronize.
+ */
+final class LinkScheduler {
+    static final int PRIORITY_POSITION = 0;
+    static final int PRIORITY_STATUS = 1;
+    static final int PRIORITY_LOW = 2;
+    private static final int N_PRIORITIES = 3;
+
+    /** the length of one accounting window */
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    /** a window in which the writer was blocked for at least this
+        fraction of the time measures the link's throughput */
+    private static final double BUSY_FRACTION = 0.5;
+
+    /** pace writes to this fraction of the measured throughput, so
+        the buffers behind the scheduler drain */
+    private static final double HEADROOM = 0.8;
+
+    /** raise the budget by this factor after PROBE_WINDOWS windows
+        of pacing in which the link kept up; probing too eagerly
+        would fill the kernel's buffers again */
+    private static final double PROBE_FACTOR = 1.1;
+
+    private static final int PROBE_WINDOWS = 10;
+
+    /** above this estimate, stop pacing altogether */
+    private static final double MAX_BYTES_PER_SECOND = 1 << 20;
+
+    /** the maximum number of queued sentences per priority */
+    private static final int MAX_QUEUE = 16;
+
+    private final ArrayList<LinkedList<String>> queues =
+        new ArrayList<LinkedList<String>>(N_PRIORITIES);
+
+    /** GSV pages of an incomplete burst */
+    private final LinkedList<String> gsvBurst = new LinkedList<String>();
+
+    /** the page number at which the next GSV burst starts, so pages
+        which were dropped get their turn */
+    private int gsvRotation = 1;
+
+    /** the first GSV page dropped in the current burst, or 0 */
+    private int gsvFirstDropped = 0;
+
+    /** estimated throughput in bytes per second; 0 means the link
+        has not been observed to be a bottleneck */
+    private double bytesPerSecond = 0;
+
+    private long windowStart = System.nanoTime();
+    private int windowBytes, windowPositionBytes, lastWindowPositionBytes;
+
+    /** the time spent in write() during the current window */
+    private long windowBusyNanos;
+
+    /** has poll() held back a sentence in the current window? */
+    private boolean paced;
+
+    /** the number of consecutive paced windows in which the link
+        kept up */
+    private int calmWindows;
+
+    private long linesSent, bytesSent, linesDropped;
+
+    /** the bytes of all queued sentences (excluding an incomplete GSV
+        burst), and the limit; see #Client.setQueueBudget() */
+    private int queuedBytes, maxQueuedBytes = Integer.MAX_VALUE;
+
+    LinkScheduler() {
+        for (int i = 0; i < N_PRIORITIES; ++i)
+            queues.add(new LinkedList<String>());
+    }
+
+    /**
+     * Checks the three letter sentence type of a decorated sentence
+     * ("$GPGGA,...").
+     */
+    private static boolean isType(String line, String type) {
+        return line.length() > 6 && line.startsWith(type, 3);
+    }
+
+    private static boolean isSameType(String a, String b) {
+        return a.length() > 6 && a.regionMatches(3, b, 3, 3);
+    }
+
+    static int getPriority(String line) {
+        if (isType(line, "GGA") || isType(line, "RMC"))
+            return PRIORITY_POSITION;
+        else if (isType(line, "GSV") || isType(line, "GLL"))
+            return PRIORITY_LOW;
+        else
+            return PRIORITY_STATUS;
+    }
+
+    /**
+     * Parses the page number of a "$GPGSV,total,page,..." sentence;
+     * returns 0 on error.
+     */
+    private static int getGsvPage(String line) {
+        int comma = line.indexOf(',', 7);
+        if (comma < 0 || comma + 1 >= line.length())
+            return 0;
+
+        int page = 0;
+        for (int i = comma + 1; i < line.length(); ++i) {
+            char ch = line.charAt(i);
+            if (ch < '0' || ch > '9')
+                break;
+            page = page * 10 + ch - '0';
+        }
+
+        return page;
+    }
+
+    private static int getGsvTotal(String line) {
+        return line.length() > 7 ? line.charAt(7) - '0' : 0;
+    }
+
+    /**
+     * Removes queued sentences of the same type, because the new one
+     * supersedes them.
+     */
+    private void replace(LinkedList<String> queue, String line) {
+        for (Iterator<String> i = queue.iterator(); i.hasNext();) {
+            String old = i.next();
+            if (isSameType(old, line)) {
+                i.remove();
+                queuedBytes -= old.length() + 1;
+                ++linesDropped;
+            }
+        }
+    }
+
+    private void dropFirst(LinkedList<String> queue) {
+        queuedBytes -= queue.removeFirst().length() + 1;
+        ++linesDropped;
+    }
+
+    private void enqueue(int priority, String line) {
+        LinkedList<String> queue = queues.get(priority);
+        if (queue.size() >= MAX_QUEUE)
+            dropFirst(queue);
+
+        queue.add(line);
+        queuedBytes += line.length() + 1;
+
+        /* over the byte budget: drop the oldest sentences, lowest
+           priority first; those with a higher priority than the new
+           one are kept */
+        for (int p = N_PRIORITIES - 1;
+             queuedBytes > maxQueuedBytes && p >= priority;) {
+            LinkedList<String> q = queues.get(p);
+            if (q.isEmpty())
+                --p;
+            else
+                dropFirst(q);
+        }
+    }
+
+    void setMaxQueuedBytes(int bytes) {
+        maxQueuedBytes = bytes;
+    }
+
+    /**
+     * Queues a GSV burst, rotated so it starts at #gsvRotation.
+     */
+    private void flushGsvBurst() {
+        int n = gsvBurst.size();
+        int start = gsvRotation - 1;
+        if (start >= n)
+            start = 0;
+
+        for (int i = 0; i < n; ++i)
+            enqueue(PRIORITY_LOW, gsvBurst.get((start + i) % n));
+
+        gsvBurst.clear();
+        gsvFirstDropped = 0;
+    }
+
+    /**
+     * Adds a new sentence.
+     */
+    void offer(String line) {
+        if (isType(line, "GSV")) {
+            int page = getGsvPage(line);
+            if (page <= 1) {
+                /* a new burst makes the old one obsolete */
+                gsvBurst.clear();
+                replace(queues.get(PRIORITY_LOW), line);
+                if (gsvFirstDropped > 0)
+                    gsvRotation = gsvFirstDropped;
+                gsvFirstDropped = 0;
+            }
+
+            gsvBurst.add(line);
+            if (page >= getGsvTotal(line))
+                flushGsvBurst();
+            return;
+        }
+
+        if (line.startsWith("$P")) {
+            /* proprietary sentences (e.g. geofence alerts) are
+               events: each one matters, and none supersedes
+               another */
+            enqueue(PRIORITY_POSITION, line);
+            return;
+        }
+
+        int priority = getPriority(line);
+        replace(queues.get(priority), line);
+        enqueue(priority, line);
+    }
+
+    private void checkWindow(long now) {
+        final long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS)
+            return;
+
+        if (windowBusyNanos >= elapsed * BUSY_FRACTION) {
+            /* the link was the bottleneck */
+            double rate = windowBytes * 1e9 / elapsed;
+            bytesPerSecond = bytesPerSecond > 0
+                ? bytesPerSecond * 0.5 + rate * 0.5
+                : rate;
+            calmWindows = 0;
+        } else if (paced && ++calmWindows >= PROBE_WINDOWS) {
+            /* the link kept up with the budget; try more */
+            calmWindows = 0;
+            bytesPerSecond *= PROBE_FACTOR;
+            if (bytesPerSecond > MAX_BYTES_PER_SECOND)
+                bytesPerSecond = 0;
+        }
+
+        windowStart = now;
+        lastWindowPositionBytes = windowPositionBytes;
+        windowBytes = 0;
+        windowPositionBytes = 0;
+        windowBusyNanos = 0;
+        paced = false;
+    }
+
+    private double getBudget() {
+        return bytesPerSecond * HEADROOM * WINDOW_NANOS / 1e9;
+    }
+
+    /**
+     * Would sending this low-priority sentence exceed the budget of
+     * the current window?  Reserves room for the position sentences
+     * which are still expected in this window.
+     */
+    private boolean overBudget(int length) {
+        if (bytesPerSecond <= 0)
+            return false;
+
+        int reserve = Math.max(0, lastWindowPositionBytes - windowPositionBytes);
+        return windowBytes + reserve + length > getBudget();
+    }
+
+    /**
+     * Must this position sentence wait for the next window?  At
+     * least one sentence is sent per window.
+     */
+    private boolean mustWait(int length) {
+        return bytesPerSecond > 0 && windowBytes > 0 &&
+            windowBytes + length > getBudget();
+    }
+
+    /**
+     * Returns how long the writer should wait before calling poll()
+     * again, because sentences are queued but the budget of the
+     * current window is spent; 0 if it shall wait for new
+     * sentences.
+     */
+    long getPacingDelayNanos() {
+        if (!paced)
+            return 0;
+
+        return Math.max(1000000L, windowStart + WINDOW_NANOS - System.nanoTime());
+    }
+
+    /**
+     * Returns the next sentence to be sent, or null if there is
+     * none or if the budget of the current window is spent (see
+     * getPacingDelayNanos()).  Lower priority sentences which do not
+     * fit into the budget are dropped.
+     */
+    String poll() {
+        checkWindow(System.nanoTime());
+
+        LinkedList<String> positions = queues.get(PRIORITY_POSITION);
+        String line = positions.peek();
+        if (line != null) {
+            if (mustWait(line.length() + 1)) {
+                /* keep it; a newer one may still replace it */
+                paced = true;
+                return null;
+            }
+
+            positions.removeFirst();
+            queuedBytes -= line.length() + 1;
+            windowPositionBytes += line.length() + 1;
+            return line;
+        }
+
+        for (int priority = PRIORITY_STATUS; priority < N_PRIORITIES;
+             ++priority) {
+            LinkedList<String> queue = queues.get(priority);
+            while ((line = queue.poll()) != null) {
+                queuedBytes -= line.length() + 1;
+                if (!overBudget(line.length() + 1))
+                    return line;
+
+                ++linesDropped;
+                if (gsvFirstDropped == 0 && isType(line, "GSV"))
+                    gsvFirstDropped = getGsvPage(line);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reports that a sentence returned by poll() has been written.
+     *
+     * @param length the number of bytes
+     * @param nanos the duration of the write call
+     */
+    void onWritten(int length, long nanos) {
+        ++linesSent;
+        bytesSent += length;
+        windowBytes += length;
+        windowBusyNanos += nanos;
+    }
+
+    /**
+     * Returns the estimated link throughput in bytes per second, or
+     * 0 if the link has not been a bottleneck.
+     */
+    double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    long getLinesSent() {
+        return linesSent;
+    }
+
+    long getBytesSent() {
+        return bytesSent;
+    }
+
+    long getLinesDropped() {
+        return linesDropped;
+    }
+
+    /**
+     * Returns the number of sentences waiting to be sent.
+     */
+    int size() {
+        int n = gsvBurst.size();
+        for (int i = 0; i < N_PRIORITIES; ++i)
+            n += queues.get(i).size();
+        return n;
+    }
+
+    Client.Stats getStats() {
+        return new Client.Stats(linesSent, linesDropped, bytesSent, size());
+    }
+}
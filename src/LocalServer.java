@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+class LocalClient extends ThreadedStreamClient {
+    LocalSocket socket;
+    String address;
+
+    public LocalClient(Listener _listener, LocalSocket _socket)
+        throws IOException {
+        super(_listener, _socket.getOutputStream());
+
+        socket = _socket;
+
+        Credentials credentials = socket.getPeerCredentials();
+        address = credentials != null
+            ? "local [pid " + credentials.getPid() + "]"
+            : "local";
+    }
+
+    /** from Object */
+    @Override public String toString() {
+        return address;
+    }
+
+    /** from Client */
+    @Override public void close() {
+        super.close();
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        socket = null;
+    }
+}
+
+/**
+ * A server for other applications on the same device: it listens on
+ * a Unix domain socket in the abstract namespace, which avoids the
+ * overhead of the TCP/IP stack.
+ */
+public class LocalServer extends Server
+    implements Runnable {
+    private static final String TAG = "BlueNMEA";
+
+    /** the default socket name; in the abstract namespace, so no
+        file system permissions are involved */
+    public static final String DEFAULT_NAME = "bluenmea";
+
+    Listener listener;
+    String name;
+
+    /** null after close() */
+    volatile LocalServerSocket socket;
+    Thread thread;
+
+    public LocalServer(Listener _listener, Admission _admission, String _name)
+        throws IOException {
+        super(_admission);
+        listener = _listener;
+        name = _name;
+        socket = new LocalServerSocket(name);
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    @Override public void close() throws IOException, InterruptedException {
+        LocalServerSocket s = socket;
+        socket = null;
+
+        /* closing a LocalServerSocket does not wake up a thread
+           blocked in accept(), so connect to it */
+        LocalSocket wakeup = new LocalSocket();
+        try {
+            wakeup.connect(new LocalSocketAddress(name));
+        } catch (IOException e) {
+        }
+
+        s.close();
+        thread.join();
+        wakeup.close();
+    }
+
+    /**
+     * Admits a new connection and announces its client.  On error,
+     * the caller closes the connection.
+     */
+    private void serve(LocalSocket s) throws IOException {
+        s.shutdownInput();
+
+        /* all processes of one application count as one address */
+        Credentials credentials = s.getPeerCredentials();
+        Admission.Ticket ticket;
+        try {
+            ticket = admission.admit(credentials != null
+                                     ? "uid " + credentials.getUid()
+                                     : "local");
+        } catch (Admission.RefusedException e) {
+            refuse(s.getOutputStream(), e.getMessage());
+            s.close();
+            return;
+        }
+
+        Client client;
+        try {
+            client = new LocalClient(listener, s);
+        } catch (IOException e) {
+            ticket.release();
+            throw e;
+        }
+
+        client.setTicket(ticket);
+        listener.onNewClient(client);
+        client.start();
+    }
+
+    @Override public void run() {
+        try {
+            while (true) {
+                LocalServerSocket server = socket;
+                if (server == null)
+                    break;
+
+                LocalSocket s = server.accept();
+                if (socket == null) {
+                    /* this is the wakeup connection from close() */
+                    s.close();
+                    break;
+                }
+
+                try {
+                    serve(s);
+                } catch (IOException e) {
+                    /* only this connection has failed; keep
+                       accepting the others */
+                    Logger.e(TAG, e.getMessage());
+                    try {
+                        s.close();
+                    } catch (IOException e2) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (socket != null)
+                Logger.e(TAG, e.getMessage());
+        }
+    }
+}
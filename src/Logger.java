@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A thin indirection over android.util.Log, so the server and
+ * fan-out classes can also run on a desktop JVM (e.g. in the load
+ * harness), where log messages go to stderr.
+ *
+ * Messages on the fix path go through a #Category instead: its
+ * level and sampling are checked before anything is formatted, and
+ * the message is formatted and written by a background thread.
+ */
+final class Logger {
+    private static final String TAG = "BlueNMEA";
+
+    interface Backend {
+        boolean isLoggable(String tag, int level);
+
+        void log(int level, String tag, String msg, Throwable t);
+    }
+
+    /* the android.util.Log priorities */
+    static final int DEBUG = 3;
+    static final int INFO = 4;
+    static final int WARN = 5;
+    static final int ERROR = 6;
+
+    /**
+     * Writes to android.util.Log.  The class is looked up by
+     * reflection, so this file compiles without the Android API.
+     */
+    private static final class AndroidBackend implements Backend {
+        private final Method isLoggable, println, getStackTraceString;
+
+        AndroidBackend(Class<?> log) throws NoSuchMethodException {
+            isLoggable = log.getMethod("isLoggable", String.class,
+                                       int.class);
+            println = log.getMethod("println", int.class,
+                                    String.class, String.class);
+            getStackTraceString = log.getMethod("getStackTraceString",
+                                                Throwable.class);
+        }
+
+        @Override public boolean isLoggable(String tag, int level) {
+            try {
+                return (Boolean)isLoggable.invoke(null, tag, level);
+            } catch (IllegalAccessException e) {
+                return false;
+            } catch (InvocationTargetException e) {
+                return false;
+            }
+        }
+
+        @Override public void log(int level, String tag, String msg,
+                                  Throwable t) {
+            try {
+                if (t != null)
+                    msg = msg + '\n' + getStackTraceString.invoke(null, t);
+                println.invoke(null, level, tag, msg);
+            } catch (IllegalAccessException e) {
+            } catch (InvocationTargetException e) {
+            }
+        }
+    }
+
+    static final class StderrBackend implements Backend {
+        private static final String LEVELS = "??VDIWEA";
+
+        /** messages below this level are discarded */
+        private final int minLevel;
+
+        StderrBackend(int _minLevel) {
+            minLevel = _minLevel;
+        }
+
+        @Override public boolean isLoggable(String tag, int level) {
+            return level >= minLevel;
+        }
+
+        @Override public void log(int level, String tag, String msg,
+                                  Throwable t) {
+            if (level < minLevel)
+                return;
+
+            System.err.println(LEVELS.charAt(level) + "/" + tag + ": " + msg);
+            if (t != null)
+                t.printStackTrace();
+        }
+    }
+
+    /**
+     * A class of messages on the fix path, e.g. every sentence sent.
+     * Callers check shouldLog() before building any arguments:
+     *
+     *  if (LOG.shouldLog(Logger.DEBUG))
+     *      LOG.log(Logger.DEBUG, "SEND ", line);
+     *
+     * log() only stores the references in a preallocated ring; the
+     * argument is converted with toString() later, on the writer
+     * thread, so it must not be modified after it is logged.
+     */
+    static final class Category {
+        final String tag;
+
+        /** messages below this level are discarded */
+        private volatile int level;
+
+        /** log one of this many messages */
+        private volatile int sampleInterval;
+
+        /** not synchronized; a lost update only shifts the sample */
+        private int sampleCounter;
+
+        /**
+         * @param _sampleInterval log one of this many messages which
+         * pass the level check
+         */
+        Category(String _tag, int _sampleInterval) {
+            tag = _tag;
+            level = backend.isLoggable(_tag, DEBUG) ? DEBUG : INFO;
+            setSampleInterval(_sampleInterval);
+        }
+
+        void setLevel(int _level) {
+            level = _level;
+        }
+
+        void setSampleInterval(int interval) {
+            if (interval < 1)
+                throw new IllegalArgumentException("Invalid sample interval: " +
+                                                   interval);
+
+            sampleInterval = interval;
+        }
+
+        /**
+         * Shall a message of this level be logged?  Each call with a
+         * sufficient level counts towards the sample interval.
+         */
+        boolean shouldLog(int _level) {
+            if (_level < level)
+                return false;
+
+            final int interval = sampleInterval;
+            if (interval == 1)
+                return true;
+
+            if (++sampleCounter < interval)
+                return false;
+
+            sampleCounter = 0;
+            return true;
+        }
+
+        /**
+         * Queues the message "prefix + arg" without formatting it.
+         */
+        void log(int _level, String prefix, Object arg) {
+            WriterHolder.WRITER.offer(_level, tag, prefix, arg);
+        }
+    }
+
+    /**
+     * Drains the messages queued by #Category.log() and passes them
+     * to the #Backend.  The ring never grows; when it is full,
+     * messages are discarded and counted, so the caller never
+     * blocks on the writer.
+     */
+    private static final class AsyncWriter implements Runnable {
+        private static final int CAPACITY = 1024;
+
+        /** the writer wakes up this often, or earlier when the ring
+            is half full */
+        private static final long FLUSH_INTERVAL_MS = 100;
+
+        /** the ring; protected by "this" */
+        private final int[] levels = new int[CAPACITY];
+        private final String[] tags = new String[CAPACITY];
+        private final String[] prefixes = new String[CAPACITY];
+        private final Object[] args = new Object[CAPACITY];
+        private int head, size;
+        private long dropped;
+
+        /** the messages taken out of the ring; only accessed by the
+            writer thread */
+        private final int[] outLevels = new int[CAPACITY];
+        private final String[] outTags = new String[CAPACITY];
+        private final String[] outPrefixes = new String[CAPACITY];
+        private final Object[] outArgs = new Object[CAPACITY];
+
+        synchronized void offer(int level, String tag, String prefix,
+                                Object arg) {
+            if (size == CAPACITY) {
+                ++dropped;
+                return;
+            }
+
+            final int i = (head + size) % CAPACITY;
+            levels[i] = level;
+            tags[i] = tag;
+            prefixes[i] = prefix;
+            args[i] = arg;
+
+            if (++size == CAPACITY / 2)
+                notify();
+        }
+
+        /**
+         * Moves all queued messages to the "out" arrays, waiting up
+         * to #FLUSH_INTERVAL_MS for enough of them.
+         *
+         * @return the number of messages
+         */
+        private synchronized int take() throws InterruptedException {
+            if (size < CAPACITY / 2)
+                wait(FLUSH_INTERVAL_MS);
+
+            final int n = size;
+            for (int j = 0; j < n; ++j) {
+                final int i = (head + j) % CAPACITY;
+                outLevels[j] = levels[i];
+                outTags[j] = tags[i];
+                outPrefixes[j] = prefixes[i];
+                outArgs[j] = args[i];
+                tags[i] = prefixes[i] = null;
+                args[i] = null;
+            }
+
+            head = (head + n) % CAPACITY;
+            size = 0;
+            return n;
+        }
+
+        private synchronized long takeDropped() {
+            long n = dropped;
+            dropped = 0;
+            return n;
+        }
+
+        /** from Runnable */
+        @Override public void run() {
+            try {
+                while (true) {
+                    final int n = take();
+                    final Backend b = backend;
+                    for (int j = 0; j < n; ++j) {
+                        b.log(outLevels[j], outTags[j],
+                              outPrefixes[j] + outArgs[j], null);
+                        outTags[j] = outPrefixes[j] = null;
+                        outArgs[j] = null;
+                    }
+
+                    final long lost = takeDropped();
+                    if (lost > 0)
+                        b.log(WARN, TAG,
+                              lost + " log messages dropped", null);
+                }
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /** starts the writer thread when the first #Category logs */
+    private static final class WriterHolder {
+        static final AsyncWriter WRITER = new AsyncWriter();
+
+        static {
+            Thread thread = new Thread(WRITER, "BlueNMEA log");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.start();
+        }
+    }
+
+    private static volatile Backend backend = createDefault();
+
+    private Logger() {}
+
+    private static Backend createDefault() {
+        try {
+            return new AndroidBackend(Class.forName("android.util.Log"));
+        } catch (ClassNotFoundException e) {
+            return new StderrBackend(INFO);
+        } catch (NoSuchMethodException e) {
+            return new StderrBackend(INFO);
+        }
+    }
+
+    static void setBackend(Backend _backend) {
+        backend = _backend;
+    }
+
+    static void d(String tag, String msg) {
+        backend.log(DEBUG, tag, msg, null);
+    }
+
+    static void i(String tag, String msg) {
+        backend.log(INFO, tag, msg, null);
+    }
+
+    static void w(String tag, String msg) {
+        backend.log(WARN, tag, msg, null);
+    }
+
+    static void e(String tag, String msg) {
+        backend.log(ERROR, tag, msg, null);
+    }
+
+    static void e(String tag, String msg, Throwable t) {
+        backend.log(ERROR, tag, msg, t);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * An immutable copy of everything the dashboard shows: the provider
+ * status, the pipeline stages, the counters of each client and of
+ * the #Admission.
+ * Rates (fixes per second, bytes per second) are calculated from the
+ * difference between two snapshots, so nothing on the fix path needs
+ * to know about the UI.
+ */
+final class MetricsSnapshot {
+    /** the System.nanoTime() when this snapshot was taken */
+    final long nanos;
+
+    /** the string resource id of the provider status */
+    final int providerStatus;
+
+    final long fixes;
+
+    final StageMetrics.Snapshot[] stages;
+
+    final Client[] clients;
+
+    /** the counters of each client in #clients; an element is null
+        if the client has none */
+    final Client.Stats[] clientStats;
+
+    final Admission.Stats admission;
+
+    MetricsSnapshot(Source source, Client[] _clients, Admission _admission) {
+        nanos = System.nanoTime();
+        providerStatus = source.getStatus();
+        fixes = source.getFixCount();
+        stages = source.getMetrics();
+        clients = _clients;
+        clientStats = new Client.Stats[_clients.length];
+        for (int i = 0; i < _clients.length; ++i)
+            clientStats[i] = _clients[i].getStats();
+        admission = _admission.getStats();
+    }
+
+    /**
+     * @return fixes per second since the previous snapshot, or -1 if
+     * there is none
+     */
+    double getFixRate(MetricsSnapshot previous) {
+        if (previous == null || nanos <= previous.nanos)
+            return -1;
+
+        return (fixes - previous.fixes) * 1e9 / (nanos - previous.nanos);
+    }
+
+    /**
+     * @param hint the client's position in the other snapshot; the
+     * order rarely changes, so this is usually a hit
+     */
+    private Client.Stats findStats(Client client, int hint) {
+        if (hint < clients.length && clients[hint] == client)
+            return clientStats[hint];
+
+        for (int i = 0; i < clients.length; ++i)
+            if (clients[i] == client)
+                return clientStats[i];
+
+        return null;
+    }
+
+    /**
+     * @return the bytes per second sent to the client at the
+     * specified position since the previous snapshot, or -1 if
+     * unknown
+     */
+    double getThroughput(int i, MetricsSnapshot previous) {
+        final Client.Stats stats = clientStats[i];
+        if (stats == null || previous == null || nanos <= previous.nanos)
+            return -1;
+
+        final Client.Stats old = previous.findStats(clients[i], i);
+        if (old == null)
+            return -1;
+
+        return (stats.bytesSent - old.bytesSent) * 1e9 /
+            (nanos - previous.nanos);
+    }
+}
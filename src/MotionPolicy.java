@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Chooses the location request interval from the recent motion:
+ * slow while stationary, once per second while cruising, and the
+ * provider's maximum rate while manoeuvring (turning or changing
+ * speed).  It also counts how many fixes the adaptive interval has
+ * saved compared to the fixed 1 Hz request.
+ *
+ * #update() is called on the source thread only; #snapshot() may be
+ * called from any thread.
+ */
+final class MotionPolicy {
+    static final int MODE_STATIONARY = 0;
+    static final int MODE_CRUISING = 1;
+    static final int MODE_MANOEUVRING = 2;
+
+    /** the request parameters of each mode */
+    private static final long[] INTERVAL_MILLIS = { 10000, 1000, 0 };
+    private static final float[] MIN_DISTANCE = { 5, 0, 0 };
+
+    /** the fixed interval which is used without this policy */
+    static final long BASELINE_INTERVAL_MILLIS = 1000;
+
+    /** below this speed (m/s), the vessel is considered stationary */
+    private static final float STATIONARY_SPEED = 0.5f;
+
+    /** the number of consecutive slow fixes before switching to
+        #MODE_STATIONARY */
+    private static final int STATIONARY_FIXES = 5;
+
+    /** a turn rate (degrees per second) above this is a manoeuvre */
+    private static final float MANOEUVRE_TURN_RATE = 10;
+
+    /** a speed change (m/s per second) above this is a manoeuvre */
+    private static final float MANOEUVRE_ACCELERATION = 1;
+
+    /** turn rates are only meaningful above this speed (m/s) */
+    private static final float MIN_TURN_SPEED = 1;
+
+    /** stay in #MODE_MANOEUVRING for this duration after the last
+        manoeuvre was detected */
+    private static final long MANOEUVRE_HOLD_NANOS = 10000000000L;
+
+    /** meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    private int mode = MODE_CRUISING;
+
+    private boolean hasPrevious;
+    private long previousNanos;
+    private double previousLatitude, previousLongitude;
+    private float previousSpeed, previousBearing;
+    private boolean previousHasBearing;
+
+    private int slowFixes;
+    private long manoeuvreNanos;
+
+    /* counters, guarded by "this" */
+    private long fixes, cpuNanos;
+    private long activeNanos, activeSince;
+    private boolean active;
+
+    int getMode() {
+        return mode;
+    }
+
+    long getIntervalMillis() {
+        return INTERVAL_MILLIS[mode];
+    }
+
+    float getMinDistance() {
+        return MIN_DISTANCE[mode];
+    }
+
+    /**
+     * Forgets the motion history and returns to #MODE_CRUISING.
+     */
+    void reset() {
+        mode = MODE_CRUISING;
+        hasPrevious = false;
+        slowFixes = 0;
+    }
+
+    /**
+     * Feeds a new fix.
+     *
+     * @return true if the mode has changed, i.e. the location
+     * updates need to be requested again
+     */
+    boolean update(Fix fix, long nowNanos) {
+        float speed;
+        if (fix.hasSpeed)
+            speed = fix.speed;
+        else if (hasPrevious && nowNanos > previousNanos)
+            speed = (float)(distance(previousLatitude, previousLongitude,
+                                     fix.latitude, fix.longitude)
+                            / ((nowNanos - previousNanos) / 1e9));
+        else
+            speed = 0;
+
+        if (hasPrevious && nowNanos > previousNanos) {
+            final float seconds = (nowNanos - previousNanos) / 1e9f;
+
+            if (Math.abs(speed - previousSpeed) / seconds > MANOEUVRE_ACCELERATION)
+                manoeuvreNanos = nowNanos;
+
+            if (fix.hasBearing && previousHasBearing &&
+                speed >= MIN_TURN_SPEED) {
+                float turn = Math.abs(fix.bearing - previousBearing);
+                if (turn > 180)
+                    turn = 360 - turn;
+                if (turn / seconds > MANOEUVRE_TURN_RATE)
+                    manoeuvreNanos = nowNanos;
+            }
+        }
+
+        if (speed < STATIONARY_SPEED)
+            ++slowFixes;
+        else
+            slowFixes = 0;
+
+        hasPrevious = true;
+        previousNanos = nowNanos;
+        previousLatitude = fix.latitude;
+        previousLongitude = fix.longitude;
+        previousSpeed = speed;
+        previousHasBearing = fix.hasBearing;
+        previousBearing = fix.bearing;
+
+        final int newMode;
+        if (manoeuvreNanos != 0 &&
+            nowNanos - manoeuvreNanos < MANOEUVRE_HOLD_NANOS)
+            newMode = MODE_MANOEUVRING;
+        else if (slowFixes >= STATIONARY_FIXES)
+            newMode = MODE_STATIONARY;
+        else
+            newMode = MODE_CRUISING;
+
+        if (newMode == mode)
+            return false;
+
+        mode = newMode;
+        return true;
+    }
+
+    /**
+     * Equirectangular approximation, good enough for the short
+     * distance between two fixes.
+     */
+    private static double distance(double lat1, double lon1,
+                                   double lat2, double lon2) {
+        double x = (lon2 - lon1) * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        double y = lat2 - lat1;
+        return Math.sqrt(x * x + y * y) * METERS_PER_DEGREE;
+    }
+
+    /**
+     * Starts or stops the accounting period.
+     */
+    synchronized void setActive(boolean _active, long nowNanos) {
+        if (_active == active)
+            return;
+
+        if (_active)
+            activeSince = nowNanos;
+        else
+            activeNanos += nowNanos - activeSince;
+
+        active = _active;
+    }
+
+    /**
+     * Counts one processed fix (received or resent).
+     *
+     * @param cpu the thread CPU time spent on it
+     */
+    synchronized void countFix(long cpu) {
+        ++fixes;
+        cpuNanos += cpu;
+    }
+
+    /**
+     * An immutable copy of the counters.
+     */
+    static final class Snapshot {
+        final int mode;
+
+        /** the number of fixes processed while active */
+        final long fixes;
+
+        /** the number of fixes the fixed interval would have
+            processed in the same time */
+        final long baselineFixes;
+
+        final long cpuNanos;
+
+        Snapshot(int _mode, long _fixes, long _baselineFixes,
+                 long _cpuNanos) {
+            mode = _mode;
+            fixes = _fixes;
+            baselineFixes = _baselineFixes;
+            cpuNanos = _cpuNanos;
+        }
+
+        long savedFixes() {
+            return baselineFixes > fixes ? baselineFixes - fixes : 0;
+        }
+
+        /**
+         * Estimates the CPU time saved, based on the average cost
+         * of a processed fix.
+         */
+        long savedCpuNanos() {
+            return fixes > 0 ? savedFixes() * (cpuNanos / fixes) : 0;
+        }
+
+        /** from Object */
+        @Override public String toString() {
+            return "adaptive: mode=" + mode + " fixes=" + fixes +
+                " baseline=" + baselineFixes +
+                " saved=" + savedFixes() +
+                " cpu_saved=" + savedCpuNanos() / 1000000 + "ms";
+        }
+    }
+
+    synchronized Snapshot snapshot(long nowNanos) {
+        long total = activeNanos;
+        if (active)
+            total += nowNanos - activeSince;
+
+        return new Snapshot(mode, fixes,
+                            total / (BASELINE_INTERVAL_MILLIS * 1000000),
+                            cpuNanos);
+    }
+}
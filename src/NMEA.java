@@ -18,18 +18,6 @@
 
 package name.kellermann.max.bluenmea;
 
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-
-import android.os.Bundle;
-import android.location.GpsSatellite;
-import android.location.GpsStatus;
-import android.location.Location;
-import android.location.LocationManager;
-import android.text.format.Time;
-import android.util.Log;
-
 /**
  * This class is a container for several static methods which help
  * with generating NMEA data.
@@ -60,169 +48,458 @@ final class NMEA {
     }
 
     /**
-     * Formats the time from the #Location into a string.
+     * The default number of decimal places in the minutes of a
+     * latitude/longitude field (1/10000 minute is about 18 cm).
+     */
+    public static final int DEFAULT_DECIMALS = 4;
+
+    /**
+     * The maximum number of decimal places supported by
+     * appendLatitude() and appendLongitude().
      */
-    public static String formatTime(Location location) {
-        Time time = new Time("UTC");
-        time.set(location.getTime());
+    public static final int MAX_DECIMALS = 7;
 
-        return String.format("%02d%02d%02d",
-                             time.hour, time.minute, time.second);
+    private static final long[] POW10 = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+    };
 
+    /** lookup tables for emitting two decimal digits at a time */
+    private static final char[] DIGIT_TENS = new char[100];
+    private static final char[] DIGIT_ONES = new char[100];
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    static {
+        for (int i = 0; i < 100; ++i) {
+            DIGIT_TENS[i] = (char)('0' + i / 10);
+            DIGIT_ONES[i] = (char)('0' + i % 10);
+        }
     }
 
     /**
-     * Formats the date from the #Location into a string.
+     * Appends the non-negative value with exactly the specified
+     * number of digits (zero-padded).  The value must be smaller
+     * than 10^width, and width must not exceed #MAX_DECIMALS.
      */
-    public static String formatDate(Location location) {
-        Time time = new Time("UTC");
-        time.set(location.getTime());
+    static void appendDigits(StringBuilder sb, long value, int width) {
+        if ((width & 1) != 0) {
+            --width;
+            long p = POW10[width];
+            int digit = (int)(value / p);
+            sb.append((char)('0' + digit));
+            value -= digit * p;
+        }
 
-        return String.format("%02d%02d%02d",
-                             time.monthDay, time.month + 1, time.year % 100);
+        while (width > 0) {
+            width -= 2;
+            long p = POW10[width];
+            int pair = (int)(value / p);
+            sb.append(DIGIT_TENS[pair]).append(DIGIT_ONES[pair]);
+            value -= pair * p;
+        }
+    }
 
+    /**
+     * Appends the non-negative value without padding.
+     */
+    static void appendInt(StringBuilder sb, long value) {
+        int width = 1;
+        long limit = 10;
+        while (value >= limit && width < 18) {
+            ++width;
+            limit *= 10;
+        }
+
+        if (width > MAX_DECIMALS) {
+            /* rare: split off the upper digits */
+            appendInt(sb, value / POW10[MAX_DECIMALS]);
+            appendDigits(sb, value % POW10[MAX_DECIMALS], MAX_DECIMALS);
+        } else
+            appendDigits(sb, value, width);
     }
 
     /**
-     * Formats the latitude from the #Location into a string.
+     * Appends the value as a fixed-point decimal number, rounded to
+     * the specified number of decimal places.
      */
-    public static String formatLatitude(Location location) {
-        double latitude = location.getLatitude();
-        char suffix = latitude < 0 ? 'S' : 'N';
-        latitude = Math.abs(latitude);
+    static void appendFixed(StringBuilder sb, double value, int decimals) {
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+        }
 
-        return String.format("%02d%02d.%04d,%c",
-                             (int)latitude,
-                             (int)(latitude * 60) % 60,
-                             (int)(latitude * 60 * 10000) % 10000,
-                             suffix);
+        long scale = POW10[decimals];
+        long scaled = Math.round(value * scale);
+        appendInt(sb, scaled / scale);
+        if (decimals > 0) {
+            sb.append('.');
+            appendDigits(sb, scaled % scale, decimals);
+        }
     }
 
     /**
-     * Formats the longitude from the #Location into a string.
+     * Appends a coordinate in the NMEA "dddmm.mmmm,H" format.  The
+     * value is converted to an integer number of 1/10^decimals
+     * minutes once, with correct rounding (which may carry into the
+     * minutes and degrees); all digits are then derived with integer
+     * arithmetic.
      */
-    public static String formatLongitude(Location location) {
-        double longitude = location.getLongitude();
-        char suffix = longitude < 0 ? 'W' : 'E';
-        longitude = Math.abs(longitude);
+    private static void appendCoordinate(StringBuilder sb, double value,
+                                         int degreeDigits, int decimals,
+                                         char positive, char negative) {
+        char suffix = value < 0 ? negative : positive;
+
+        long scale = POW10[decimals];
+        long perDegree = 60 * scale;
+        long scaled = Math.round(Math.abs(value) * perDegree);
+
+        long degrees = scaled / perDegree;
+        long rest = scaled - degrees * perDegree;
+        long minutes = rest / scale;
+
+        appendDigits(sb, degrees, degreeDigits);
+        appendDigits(sb, minutes, 2);
+        if (decimals > 0) {
+            sb.append('.');
+            appendDigits(sb, rest - minutes * scale, decimals);
+        }
 
-        return String.format("%03d%02d.%04d,%c",
-                             (int)longitude,
-                             (int)(longitude * 60) % 60,
-                             (int)(longitude * 60 * 10000) % 10000,
-                             suffix);
+        sb.append(',').append(suffix);
     }
 
     /**
-     * Formats the surface position (latitude and longitude) from the
-     * #Location into a string.
+     * Appends the latitude in the NMEA "ddmm.mmmm,N" format with the
+     * specified number of decimal places (0 to #MAX_DECIMALS) in the
+     * minutes.
      */
-    public static String formatPosition(Location location) {
-        return formatLatitude(location) + "," + formatLongitude(location);
+    public static void appendLatitude(StringBuilder sb, double latitude,
+                                      int decimals) {
+        appendCoordinate(sb, latitude, 2, decimals, 'N', 'S');
     }
 
     /**
-     * Formats the number of satellites from the #Location into a
-     * string.  In case #LocationManager.NETWORK_PROVIDER is used, it
-     * returns the faked value "1", because some software refuses to
-     * work with a "0" or an empty value.
+     * Appends the longitude in the NMEA "dddmm.mmmm,E" format with
+     * the specified number of decimal places (0 to #MAX_DECIMALS) in
+     * the minutes.
      */
-    public static String formatSatellites(Location location) {
-        if (location.getProvider().equals(LocationManager.GPS_PROVIDER)) {
-            Bundle bundle = location.getExtras();
-            return bundle != null
-                ? "" + bundle.getInt("satellites")
-                : "";
-        } else if (location.getProvider().equals(LocationManager.NETWORK_PROVIDER))
-            // fake this variable
-            return "1";
-        else
-            return "";
+    public static void appendLongitude(StringBuilder sb, double longitude,
+                                       int decimals) {
+        appendCoordinate(sb, longitude, 3, decimals, 'E', 'W');
     }
 
     /**
-     * Formats the altitude from the #Location into a string, with a
-     * second unit field ("M" for meters).  If the altitude is
-     * unknown, it returns two empty fields.
+     * Appends the UTC time of day ("hhmmss") of the specified Unix
+     * time in milliseconds.
      */
-    public static String formatAltitude(Location location) {
-        String s = "";
-        if (location.hasAltitude())
-            s += location.getAltitude() + ",M";
-        else
-            s += ",";
-        return s;
+    public static void appendTime(StringBuilder sb, long time) {
+        int secondOfDay = (int)((time % 86400000L) / 1000);
+        if (time % 1000 < 0)
+            --secondOfDay;
+        if (secondOfDay < 0)
+            secondOfDay += 86400;
+
+        int hour = secondOfDay / 3600;
+        int minute = secondOfDay / 60 % 60;
+        int second = secondOfDay % 60;
+
+        sb.append(DIGIT_TENS[hour]).append(DIGIT_ONES[hour])
+            .append(DIGIT_TENS[minute]).append(DIGIT_ONES[minute])
+            .append(DIGIT_TENS[second]).append(DIGIT_ONES[second]);
+    }
+
+    /**
+     * Converts a Unix time in milliseconds to the UTC date, packed as
+     * year * 10000 + month * 100 + day.
+     */
+    static long civilDate(long time) {
+        long days = time / 86400000L;
+        if (time % 86400000L < 0)
+            --days;
+
+        /* convert days since 1970-01-01 to a civil date; see
+           http://howardhinnant.github.io/date_algorithms.html */
+        days += 719468;
+        long era = (days >= 0 ? days : days - 146096) / 146097;
+        int dayOfEra = (int)(days - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+                         - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+                                    - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        return year * 10000 + month * 100 + day;
+    }
+
+    /**
+     * Appends the UTC date ("ddmmyy") of the specified Unix time in
+     * milliseconds.
+     */
+    public static void appendDate(StringBuilder sb, long time) {
+        long date = civilDate(time);
+        int day = (int)(date % 100);
+        int month = (int)(date / 100 % 100);
+        int yy = (int)(((date / 10000 % 100) + 100) % 100);
+
+        sb.append(DIGIT_TENS[day]).append(DIGIT_ONES[day])
+            .append(DIGIT_TENS[month]).append(DIGIT_ONES[month])
+            .append(DIGIT_TENS[yy]).append(DIGIT_ONES[yy]);
+    }
+
+    /**
+     * Completes the sentence which begins with '$' at the specified
+     * buffer position: appends '*' followed by the hexadecimal
+     * checksum of everything after the '$'.  This does not add the
+     * newline character.
+     */
+    public static void appendChecksum(StringBuilder sb, int start) {
+        int checksum = 0;
+        for (int i = sb.length() - 1; i > start; --i)
+            checksum ^= sb.charAt(i);
+
+        sb.append('*')
+            .append(HEX_DIGITS[(checksum >> 4) & 0xf])
+            .append(HEX_DIGITS[checksum & 0xf]);
+    }
+
+    /**
+     * Appends the surface position (latitude and longitude) from the
+     * #Fix.
+     */
+    public static void appendPosition(StringBuilder sb, Fix fix,
+                                      int decimals) {
+        appendLatitude(sb, fix.latitude, decimals);
+        sb.append(',');
+        appendLongitude(sb, fix.longitude, decimals);
+    }
+
+    /**
+     * Appends the altitude from the #Fix, with a second unit field
+     * ("M" for meters).  If the altitude is unknown, it appends two
+     * empty fields.
+     */
+    public static void appendAltitude(StringBuilder sb, Fix fix) {
+        if (fix.hasAltitude) {
+            appendFixed(sb, fix.altitude, 1);
+            sb.append(",M");
+        } else
+            sb.append(',');
     }
 
     /**
-     * Formats the speed in knots from the #Location into a string.
-     * If the speed is unknown, it returns an empty string.
+     * Appends the speed in knots from the #Fix.  If the speed is
+     * unknown, it appends nothing.
      */
-    public static String formatSpeedKt(Location location) {
-        String s = "";
-        if (location.hasSpeed())
+    public static void appendSpeedKt(StringBuilder sb, Fix fix) {
+        if (fix.hasSpeed)
             // http://www.google.com/search?q=m%2Fs+to+kt
-            s += (location.getSpeed() * 1.94384449);
-        return s;
+            appendFixed(sb, fix.speed * 1.94384449, 2);
     }
 
     /**
-     * Formats the bearing from the #Location into a string.  If the
-     * bearing is unknown, it returns an empty string.
+     * Appends the bearing from the #Fix.  If the bearing is unknown,
+     * it appends nothing.
      */
-    public static String formatBearing(Location location) {
-        String s = "";
-        if (location.hasBearing())
-            s += location.getBearing();
-        return s;
+    public static void appendBearing(StringBuilder sb, Fix fix) {
+        if (fix.hasBearing)
+            appendFixed(sb, fix.bearing, 1);
     }
 
-    public static String formatGpsGsa(GpsStatus gps) {
-        String fix = "1";
-        String prn = "";
-        int nbr_sat = 0;
-        Iterator<GpsSatellite> satellites = gps.getSatellites().iterator();
-        for (int i = 0; i < 12; i++){
-            if (satellites.hasNext()){
-                GpsSatellite sat = satellites.next();
-                if (sat.usedInFix()){
-                    prn = prn + sat.getPrn();
-                    nbr_sat++;
-                }
-            }
+    /**
+     * Appends the time of the fix; extrapolated fixes and fixes
+     * between full seconds (from receivers faster than 1 Hz) get
+     * hundredths of a second.
+     */
+    static void appendFixTime(StringBuilder sb, Fix fix) {
+        appendTime(sb, fix.time);
 
-            prn = prn + ",";
+        if (fix.estimated || fix.time % 1000 != 0) {
+            int centis = (int)(fix.time % 1000) / 10;
+            if (centis < 0)
+                centis += 100;
+            sb.append('.').append(DIGIT_TENS[centis]).append(DIGIT_ONES[centis]);
         }
+    }
+
+    /**
+     * Appends a complete $GPGGA sentence (without newline).
+     */
+    public static void appendGga(StringBuilder sb, Fix fix, int decimals) {
+        int start = sb.length();
+        sb.append("$GPGGA,");
+        appendFixTime(sb, fix);
+        sb.append(',');
+        appendPosition(sb, fix, decimals);
+        /* quality 6 is "estimated (dead reckoning)" */
+        sb.append(fix.estimated ? ",6," : ",1,");
+        if (fix.satellites >= 0)
+            appendInt(sb, fix.satellites);
+        sb.append(',');
+        /* without satellite geometry, fall back to the accuracy like
+           older versions did */
+        appendFixed(sb, fix.hdop > 0 ? fix.hdop : fix.accuracy, 1);
+        sb.append(',');
+        appendAltitude(sb, fix);
+        sb.append(",,,,");
+        appendChecksum(sb, start);
+    }
+
+    /**
+     * Appends a complete $GPGLL sentence (without newline).
+     */
+    public static void appendGll(StringBuilder sb, Fix fix, int decimals) {
+        int start = sb.length();
+        sb.append("$GPGLL,");
+        appendPosition(sb, fix, decimals);
+        sb.append(',');
+        appendFixTime(sb, fix);
+        sb.append(",A");
+        appendChecksum(sb, start);
+    }
+
+    /**
+     * Appends a complete $GPRMC sentence (without newline).
+     */
+    public static void appendRmc(StringBuilder sb, Fix fix, int decimals) {
+        int start = sb.length();
+        sb.append("$GPRMC,");
+        appendFixTime(sb, fix);
+        sb.append(",A,");
+        appendPosition(sb, fix, decimals);
+        sb.append(',');
+        appendSpeedKt(sb, fix);
+        sb.append(',');
+        appendBearing(sb, fix);
+        sb.append(',');
+        appendDate(sb, fix.time);
+        sb.append(",,");
+        appendChecksum(sb, start);
+    }
+
+    /**
+     * Appends a proprietary $PBLUGF sentence (without newline) which
+     * reports entering ("E") or leaving ("X") a #Geofence:
+     *
+     * <pre>
+     * $PBLUGF,hhmmss,E,id,name*cs
+     * </pre>
+     */
+    public static void appendGeofence(StringBuilder sb, long time,
+                                      Geofence fence, boolean entered) {
+        int start = sb.length();
+        sb.append("$PBLUGF,");
+        appendTime(sb, time);
+        sb.append(entered ? ",E," : ",X,");
+        appendInt(sb, fence.id);
+        sb.append(',').append(fence.name);
+        appendChecksum(sb, start);
+    }
+
+    /**
+     * Appends a complete $GPGSA sentence (without newline) listing
+     * up to 12 satellites used in the fix.
+     *
+     * @param dop the DOP values; null or invalid leaves the fields
+     * empty
+     */
+    public static void appendGsa(StringBuilder sb, SatelliteStatus status,
+                                 DOP dop) {
+        int start = sb.length();
+        sb.append("$GPGSA,A,");
+
+        int used = status.countUsed();
+        if (used > 3)
+            sb.append('3');
+        else if (used > 0)
+            sb.append('2');
+        else
+            sb.append('1');
 
-        if (nbr_sat > 3)
-            fix = "3";
-        else if(nbr_sat > 0)
-            fix = "2";
-
-        //TODO: calculate DOP values
-        return fix + "," + prn + ",,,";
-    }
-
-    public static List<String> formatGpsGsv(GpsStatus gps) {
-        List<String> gsv = new ArrayList<String>();
-        int nbr_sat = 0;
-        for (GpsSatellite sat : gps.getSatellites())
-            nbr_sat++;
-
-        Iterator<GpsSatellite> satellites = gps.getSatellites().iterator();
-        for (int i = 0; i < 3; i++) {
-            if (satellites.hasNext()) {
-                String g = Integer.toString(nbr_sat);
-                for (int n = 0; n < 4; n++) {
-                    if(satellites.hasNext()) {
-                        GpsSatellite sat = satellites.next();
-                        g = g + "," + sat.getPrn() + "," + sat.getElevation() +
-                            "," + sat.getAzimuth() + "," + sat.getSnr();
-                    }
-                }
-                gsv.add(g);
+        int n = 0;
+        for (int i = 0; i < status.count && n < 12; ++i) {
+            if (status.usedInFix[i]) {
+                sb.append(',');
+                appendInt(sb, status.prn[i]);
+                ++n;
             }
         }
-        return gsv;
+
+        for (; n < 12; ++n)
+            sb.append(',');
+
+        if (dop != null && dop.valid) {
+            sb.append(',');
+            appendFixed(sb, dop.pdop, 1);
+            sb.append(',');
+            appendFixed(sb, dop.hdop, 1);
+            sb.append(',');
+            appendFixed(sb, dop.vdop, 1);
+        } else
+            sb.append(",,,");
+
+        appendChecksum(sb, start);
+    }
+
+    /**
+     * The maximum number of $GPGSV sentences; the "total" field has
+     * only one digit.
+     */
+    public static final int MAX_GSV_PAGES = 9;
+
+    /**
+     * The maximum number of satellites in $GPGSV sentences.  Of a
+     * larger #SatelliteStatus (up to
+     * #SatelliteStatus.MAX_SATELLITES), only the first ones are sent,
+     * and the "satellites in view" field counts only those, so it
+     * agrees with the sentences.
+     */
+    public static final int MAX_GSV_SATELLITES = MAX_GSV_PAGES * 4;
+
+    /**
+     * Returns the number of $GPGSV sentences needed for the
+     * satellites (4 per sentence).
+     */
+    public static int countGsvPages(SatelliteStatus status) {
+        return (getGsvSatellites(status) + 3) / 4;
+    }
+
+    /**
+     * Returns the number of satellites sent in $GPGSV sentences.
+     */
+    public static int getGsvSatellites(SatelliteStatus status) {
+        return Math.min(status.count, MAX_GSV_SATELLITES);
+    }
+
+    /**
+     * Appends a complete $GPGSV sentence (without newline).
+     *
+     * @param page the page number, starting at 1
+     */
+    public static void appendGsv(StringBuilder sb, SatelliteStatus status,
+                                 int page) {
+        int start = sb.length();
+        sb.append("$GPGSV,");
+        appendInt(sb, countGsvPages(status));
+        sb.append(',');
+        appendInt(sb, page);
+        sb.append(',');
+        final int count = getGsvSatellites(status);
+        appendInt(sb, count);
+
+        int end = Math.min(page * 4, count);
+        for (int i = (page - 1) * 4; i < end; ++i) {
+            sb.append(',');
+            appendInt(sb, status.prn[i]);
+            sb.append(',');
+            appendInt(sb, Math.max(0, Math.round(status.elevation[i])));
+            sb.append(',');
+            appendInt(sb, (Math.round(status.azimuth[i]) % 360 + 360) % 360);
+            sb.append(',');
+            appendInt(sb, Math.max(0, Math.round(status.snr[i])));
+        }
+
+        appendChecksum(sb, start);
     }
 }
@@ -19,43 +19,64 @@
 package name.kellermann.max.bluenmea;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
- * A Bluetooth peer device.
+ * A Bluetooth peer device.  The native send() blocks until a line is
+ * transmitted, so it is called on the peer's own thread: a slow link
+ * builds up a backlog in the #LinkScheduler, which then thins it
+ * out, instead of stalling the dispatcher and all other clients.
  */
-class Peer extends Client {
+class Peer extends ThreadedStreamClient {
     /** is the Bluetooth socket connected */
     boolean connected = false;
 
-    Bridge bridge;
     String address;
 
+    /**
+     * Adapts the #Bridge to the stream of #ThreadedStreamClient: each
+     * write is one line.  Closing it makes a blocking send() fail.
+     */
+    private static class BridgeStream extends OutputStream {
+        private final Bridge bridge;
+
+        /** protected by "this" */
+        private boolean closed;
+
+        BridgeStream(Bridge _bridge) {
+            bridge = _bridge;
+        }
+
+        /** from OutputStream */
+        @Override public void write(int b) throws IOException {
+            write(new byte[]{ (byte)b }, 0, 1);
+        }
+
+        /** from OutputStream */
+        @Override public void write(byte[] b, int off, int len)
+            throws IOException {
+            bridge.send(new String(b, off, len, "US-ASCII"));
+        }
+
+        /** from OutputStream */
+        @Override public void close() {
+            /* called by both the write deadline and close() */
+            synchronized(this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+
+            bridge.close();
+        }
+    }
+
     public Peer(Listener _listener, Bridge _bridge, String _address) {
-        super(_listener);
-        bridge = _bridge;
+        super(_listener, new BridgeStream(_bridge));
         address = _address;
     }
 
     public String toString() {
         return address;
     }
-
-    /** from Client */
-    @Override public void close() {
-        Bridge b = bridge;
-        bridge = null;
-
-        if (b != null)
-            b.close();
-    }
-
-    /** from Source.NMEAListener */
-    @Override public void onLine(String line) {
-        try {
-            bridge.send(line + "\n");
-        } catch (Exception e) {
-            if (bridge != null)
-                failed(e);
-        }
-    }
 }
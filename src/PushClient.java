@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.BufferedReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streams the NMEA sentences to a remote collector ("push mode"),
+ * for phones which cannot accept connections, e.g. on a cellular
+ * network.  Sentences are collected over a window and written in one
+ * batch, optionally through a deflate (zlib) stream which lasts for
+ * the whole connection and is flushed after each batch.  When the
+ * connection fails, it is re-established with exponential backoff;
+ * sentences queued in the meantime are kept up to the queue budget.
+ */
+class PushClient extends Client implements Runnable {
+    private static final String TAG = "BlueNMEA";
+
+    static final int DEFAULT_WINDOW_MS = 1000;
+
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 300000;
+
+    /** give up on a connection when a single write blocks for this
+        long, and reconnect */
+    private static final long WRITE_TIMEOUT_NANOS = 30000000000L;
+
+    /**
+     * Counts the bytes which go to the socket, i.e. after
+     * compression.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+        long count;
+
+        CountingStream(OutputStream _out) {
+            super(_out);
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+            throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    final String host;
+    final int port;
+    final long windowNanos;
+    final boolean deflate;
+
+    /** the System.nanoTime() when this client was created */
+    private final long startNanos = System.nanoTime();
+
+    /** the lines of the next batch; protected by "this" */
+    private final LinkedList<String> queue = new LinkedList<String>();
+    private int queuedBytes, maxQueuedBytes = Admission.DEFAULT_QUEUE_BUDGET;
+
+    /** the System.nanoTime() when the first line of the next batch
+        was queued; protected by "this" */
+    private long firstQueuedNanos;
+
+    /** #firstQueuedNanos of the batch returned by takeBatch(); only
+        accessed by #thread */
+    private long batchNanos;
+
+    /** the current connection, or null; protected by "this" */
+    private Socket socket;
+
+    private boolean closed;
+
+    /* counters; protected by "this" */
+    private long sent, dropped, rawBytes, wireBytes, connects;
+    private long batches, batchAgeNanos, maxBatchAgeNanos;
+
+    /** the number of batches sent on the current connection; only
+        accessed by #thread */
+    private int batchesOnConnection;
+
+    /** null until setTimerWheel() is called */
+    volatile TimerWheel wheel;
+
+    final TimerWheel.Timer writeDeadline = new TimerWheel.Timer() {
+            @Override protected void onTimer() {
+                closeSocket();
+            }
+        };
+
+    Thread thread = new Thread(this, "BlueNMEA push");
+
+    /**
+     * @param windowMillis collect sentences for this long before
+     * sending them; 0 sends each epoch right away
+     * @param _deflate compress the stream?
+     */
+    public PushClient(Listener _listener, String _host, int _port,
+                      int windowMillis, boolean _deflate) {
+        super(_listener);
+
+        host = _host;
+        port = _port;
+        windowNanos = windowMillis * 1000000L;
+        deflate = _deflate;
+    }
+
+    /** from Client */
+    @Override void start() {
+        thread.start();
+    }
+
+    /**
+     * Creates a client from the first line of a configuration file
+     * which is neither empty nor a comment:
+     *
+     *  HOST:PORT [WINDOW_MS] [deflate]
+     */
+    static PushClient read(Listener listener, Reader reader)
+        throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+
+            String[] words = line.split("\\s+");
+            int colon = words[0].lastIndexOf(':');
+            if (colon <= 0 || words.length > 3)
+                throw new IOException("Malformed push target: " + line);
+
+            try {
+                int port = Integer.parseInt(words[0].substring(colon + 1));
+                int window = words.length > 1
+                    ? Integer.parseInt(words[1])
+                    : DEFAULT_WINDOW_MS;
+                boolean deflate = words.length > 2 &&
+                    words[2].equals("deflate");
+                if (port <= 0 || port > 65535 || window < 0 ||
+                    (words.length > 2 && !deflate))
+                    throw new NumberFormatException();
+
+                return new PushClient(listener, words[0].substring(0, colon),
+                                      port, window, deflate);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed push target: " + line);
+            }
+        }
+
+        throw new IOException("No push target");
+    }
+
+    /** from Object */
+    @Override public String toString() {
+        return "push " + host + ":" + port + (deflate ? " (deflate)" : "");
+    }
+
+    /** from Client */
+    @Override public void setTimerWheel(TimerWheel _wheel) {
+        wheel = _wheel;
+    }
+
+    /** from Client */
+    @Override protected synchronized void setQueueBudget(int bytes) {
+        maxQueuedBytes = bytes;
+    }
+
+    /** from Client */
+    @Override public void close() {
+        TimerWheel w = wheel;
+        if (w != null)
+            w.cancel(writeDeadline);
+
+        synchronized(this) {
+            closed = true;
+            notify();
+        }
+
+        closeSocket();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+
+        Logger.i(TAG, toString() + ": " + getUplinkSummary());
+    }
+
+    /**
+     * Closes the current connection, which makes a blocking connect
+     * or write fail.
+     */
+    private void closeSocket() {
+        Socket s;
+        synchronized(this) {
+            s = socket;
+        }
+
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /** from Client */
+    @Override public synchronized Stats getStats() {
+        return new Stats(sent, dropped, wireBytes, queue.size());
+    }
+
+    /**
+     * Describes the cost of the uplink: bytes per hour before and
+     * after compression, and how long sentences waited for their
+     * batch.
+     */
+    synchronized String getUplinkSummary() {
+        final double hours = (System.nanoTime() - startNanos) / 3600e9;
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append("connects=").append(connects)
+            .append(" batches=").append(batches)
+            .append(" lines=").append(sent)
+            .append(" dropped=").append(dropped)
+            .append(" raw=").append(rawBytes)
+            .append(" wire=").append(wireBytes);
+        if (hours > 0)
+            sb.append(" (").append(Math.round(wireBytes / hours / 1024))
+                .append(" kB/h)");
+        if (batches > 0)
+            sb.append(" batch_age avg=")
+                .append(batchAgeNanos / batches / 1000000)
+                .append("ms max=").append(maxBatchAgeNanos / 1000000)
+                .append("ms");
+        return sb.toString();
+    }
+
+    /** from FanOut.NMEAListener */
+    @Override public void onLine(String line) {
+        final int length = line.length() + 1;
+
+        synchronized(this) {
+            if (closed)
+                return;
+
+            while (!queue.isEmpty() &&
+                   queuedBytes + length > maxQueuedBytes) {
+                queuedBytes -= queue.removeFirst().length() + 1;
+                ++dropped;
+            }
+
+            if (queue.isEmpty()) {
+                firstQueuedNanos = System.nanoTime();
+
+                /* wake up the thread; it sleeps for the rest of the
+                   window after that */
+                notify();
+            }
+
+            queue.add(line);
+            queuedBytes += length;
+        }
+    }
+
+    /**
+     * Waits until the window of the next batch has elapsed, and
+     * moves its lines into the buffer.
+     *
+     * @return the number of lines, or 0 if the client was closed
+     */
+    private synchronized int takeBatch(StringBuilder sb)
+        throws InterruptedException {
+        while (!closed) {
+            if (queue.isEmpty()) {
+                wait();
+                continue;
+            }
+
+            final long remaining =
+                firstQueuedNanos + windowNanos - System.nanoTime();
+            if (remaining <= 0)
+                break;
+
+            wait(remaining / 1000000, (int)(remaining % 1000000));
+        }
+
+        if (closed)
+            return 0;
+
+        batchNanos = firstQueuedNanos;
+
+        final int n = queue.size();
+        for (String line : queue)
+            sb.append(line).append('\n');
+        queue.clear();
+        queuedBytes = 0;
+        return n;
+    }
+
+    /**
+     * Sends batches until the connection fails or the client is
+     * closed.  A batch which could not be written completely is
+     * counted as dropped.
+     */
+    private void stream(Socket s) throws IOException, InterruptedException {
+        final CountingStream counting =
+            new CountingStream(s.getOutputStream());
+        final Deflater deflater = deflate ? new Deflater() : null;
+        final OutputStream os = deflate
+            ? new DeflaterOutputStream(counting, deflater, 4096, true)
+            : counting;
+
+        final StringBuilder sb = new StringBuilder(1024);
+
+        try {
+            while (true) {
+                sb.setLength(0);
+                final int lines = takeBatch(sb);
+                if (lines == 0)
+                    return;
+
+                final byte[] data = sb.toString().getBytes();
+                final long before = counting.count;
+
+                TimerWheel w = wheel;
+                if (w != null)
+                    w.schedule(writeDeadline, WRITE_TIMEOUT_NANOS);
+
+                try {
+                    os.write(data);
+                    os.flush();
+                } catch (IOException e) {
+                    synchronized(this) {
+                        dropped += lines;
+                    }
+                    throw e;
+                } finally {
+                    /* an armed deadline would close the next
+                       connection */
+                    if (w != null)
+                        w.cancel(writeDeadline);
+                }
+
+                final long age = System.nanoTime() - batchNanos;
+                synchronized(this) {
+                    sent += lines;
+                    rawBytes += data.length;
+                    wireBytes += counting.count - before;
+                    ++batches;
+                    batchAgeNanos += age;
+                    if (age > maxBatchAgeNanos)
+                        maxBatchAgeNanos = age;
+                }
+
+                ++batchesOnConnection;
+            }
+        } finally {
+            if (deflater != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Waits before the next connection attempt.
+     *
+     * @return false if the client was closed
+     */
+    private synchronized boolean backoff(long millis)
+        throws InterruptedException {
+        final long end = System.nanoTime() + millis * 1000000L;
+        long remaining;
+        while (!closed &&
+               (remaining = (end - System.nanoTime()) / 1000000) > 0)
+            wait(remaining);
+        return !closed;
+    }
+
+    /** from Runnable */
+    @Override public void run() {
+        long backoff = INITIAL_BACKOFF_MS;
+
+        try {
+            while (true) {
+                final Socket s = new Socket();
+                synchronized(this) {
+                    if (closed)
+                        break;
+                    socket = s;
+                }
+
+                batchesOnConnection = 0;
+                try {
+                    s.connect(new InetSocketAddress(host, port),
+                              CONNECT_TIMEOUT_MS);
+                    s.shutdownInput();
+
+                    synchronized(this) {
+                        ++connects;
+                    }
+
+                    stream(s);
+                } catch (IOException e) {
+                    synchronized(this) {
+                        if (closed)
+                            break;
+                    }
+
+                    Logger.w(TAG, toString() + ": " + e.getMessage());
+                } finally {
+                    synchronized(this) {
+                        socket = null;
+                    }
+
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                    }
+                }
+
+                /* start over only if the connection was good for at
+                   least one batch, so a collector which accepts and
+                   closes does not cause a reconnect storm */
+                if (batchesOnConnection > 0)
+                    backoff = INITIAL_BACKOFF_MS;
+
+                if (!backoff(backoff))
+                    break;
+
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+}
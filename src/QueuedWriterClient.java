@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A client which queues its data and writes it to an #OutputStream
+ * on its own thread, so a slow peer does not stall the dispatcher
+ * and the other clients.  A write which blocks for too long closes
+ * the stream, and the writer thread reports the failure.
+ *
+ * Subclasses implement the queue: poll(), getWaitNanos(),
+ * takeItemTraceId() and onWritten() are called with the lock
+ * ("this") held.
+ */
+abstract class QueuedWriterClient<T> extends Client implements Runnable {
+    private static final String TAG = "BlueNMEA";
+
+    /** give up on a client when a single write blocks for this
+        long, e.g. because the peer has stopped reading */
+    private static final long WRITE_TIMEOUT_NANOS = 30000000000L;
+
+    /** null after close(); protected by "this" */
+    OutputStream os;
+
+    /** null until setTimerWheel() is called */
+    volatile TimerWheel wheel;
+
+    /** set by #writeDeadline before it aborts the write */
+    private volatile boolean timedOut;
+
+    final TimerWheel.Timer writeDeadline = new TimerWheel.Timer() {
+            @Override protected void onTimer() {
+                /* this runs on the shared wheel thread, which must
+                   not block in close(): closing the stream aborts
+                   the write, and the writer thread reports the
+                   failure */
+                timedOut = true;
+
+                OutputStream stream;
+                synchronized(QueuedWriterClient.this) {
+                    stream = os;
+                }
+
+                if (stream != null) {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        };
+
+    Thread thread = new Thread(this);
+
+    protected QueuedWriterClient(Listener _listener, OutputStream _stream) {
+        super(_listener);
+
+        os = _stream;
+    }
+
+    /**
+     * Removes the next item from the queue.
+     *
+     * @return null if there is nothing to be written now
+     */
+    protected abstract T poll();
+
+    /**
+     * @return the bytes to be written for the item
+     */
+    protected abstract byte[] encode(T item);
+
+    /**
+     * Called after the item has been written.  An exception ends the
+     * connection like a failed write.
+     */
+    protected abstract void onWritten(T item, int length, long nanos)
+        throws IOException;
+
+    /**
+     * @return how long to wait for poll() to return something even
+     * if nobody queues new data, or 0 to wait until notified
+     */
+    protected long getWaitNanos() {
+        return 0;
+    }
+
+    /**
+     * @return the trace id of the item which has just been polled,
+     * or 0 if it is not traced
+     */
+    protected long takeItemTraceId(T item) {
+        return 0;
+    }
+
+    /**
+     * Called by the writer thread before the first item, e.g. for a
+     * protocol handshake.
+     */
+    protected void begin() throws IOException {
+    }
+
+    protected synchronized boolean isClosed() {
+        return os == null;
+    }
+
+    /** from Client */
+    @Override void start() {
+        thread.start();
+    }
+
+    /** from Client */
+    @Override public void setTimerWheel(TimerWheel _wheel) {
+        wheel = _wheel;
+    }
+
+    /** from Client */
+    @Override public void close() {
+        releaseTicket();
+
+        TimerWheel w = wheel;
+        if (w != null)
+            w.cancel(writeDeadline);
+
+        OutputStream stream;
+        synchronized(this) {
+            stream = os;
+            os = null;
+            notify();
+        }
+
+        /* makes a blocking write fail */
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+            }
+        }
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** from Runnable */
+    @Override public void run() {
+        try {
+            begin();
+
+            while (true) {
+                OutputStream stream;
+                T item = null;
+                long traceId;
+                synchronized(this) {
+                    while (os != null && (item = poll()) == null) {
+                        long delay = getWaitNanos();
+                        if (delay > 0)
+                            wait(delay / 1000000, (int)(delay % 1000000));
+                        else
+                            wait();
+                    }
+
+                    if (os == null)
+                        break;
+
+                    stream = os;
+                    traceId = takeItemTraceId(item);
+                }
+
+                byte[] data = encode(item);
+                long start, end;
+
+                TimerWheel w = wheel;
+                if (w != null)
+                    w.schedule(writeDeadline, WRITE_TIMEOUT_NANOS);
+
+                try {
+                    start = System.nanoTime();
+                    if (traceId != 0)
+                        trace.record(traceId, Trace.WRITE_BEGIN, id, start);
+                    stream.write(data);
+                    end = System.nanoTime();
+                    if (traceId != 0)
+                        trace.record(traceId, Trace.WRITE_END, id, end);
+                } finally {
+                    /* an armed deadline would close the stream
+                       during the next write */
+                    if (w != null)
+                        w.cancel(writeDeadline);
+                }
+
+                synchronized(this) {
+                    onWritten(item, data.length, end - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Logger.e(TAG, e.getMessage());
+        } catch (IOException e) {
+            if (!isClosed())
+                failed(timedOut ? new IOException("Write timeout") : e);
+        }
+    }
+}
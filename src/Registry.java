@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.lang.reflect.Array;
+import java.util.HashMap;
+
+/**
+ * A set of values indexed by a key, optimized for fast lock-free
+ * iteration.  Lookups are O(1) hash lookups; modifications are
+ * serialized and publish a new immutable array ("copy on write"),
+ * so readers on other threads iterate a consistent snapshot without
+ * locking, iterator allocation or ConcurrentModificationException.
+ *
+ * Removing a value moves the last one into its slot, so the order
+ * of the snapshot is not stable.
+ */
+final class Registry<K, V> {
+    private final Class<V> type;
+
+    /** maps each key to the position of its value in #values */
+    private final HashMap<K, Integer> index = new HashMap<K, Integer>();
+
+    /** the key of each element in #values; protected by "this" */
+    private Object[] keys = new Object[0];
+
+    private volatile V[] values;
+
+    Registry(Class<V> _type) {
+        type = _type;
+        values = newArray(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V[] newArray(int length) {
+        return (V[])Array.newInstance(type, length);
+    }
+
+    /**
+     * Returns the current values.  The caller must not modify the
+     * array.
+     */
+    V[] snapshot() {
+        return values;
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    boolean isEmpty() {
+        return values.length == 0;
+    }
+
+    synchronized boolean contains(K key) {
+        return index.containsKey(key);
+    }
+
+    synchronized V get(K key) {
+        Integer i = index.get(key);
+        return i != null ? values[i] : null;
+    }
+
+    /**
+     * Adds a value.
+     *
+     * @return false if there already was a value with the same key
+     * (which is not replaced)
+     */
+    synchronized boolean add(K key, V value) {
+        if (index.containsKey(key))
+            return false;
+
+        V[] oldValues = values;
+        int n = oldValues.length;
+
+        V[] newValues = newArray(n + 1);
+        System.arraycopy(oldValues, 0, newValues, 0, n);
+        newValues[n] = value;
+
+        Object[] newKeys = new Object[n + 1];
+        System.arraycopy(keys, 0, newKeys, 0, n);
+        newKeys[n] = key;
+
+        index.put(key, n);
+        keys = newKeys;
+        values = newValues;
+        return true;
+    }
+
+    /**
+     * Removes the value with the specified key.
+     *
+     * @return the value which was removed, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    synchronized V remove(K key) {
+        Integer position = index.remove(key);
+        if (position == null)
+            return null;
+
+        int i = position;
+        V[] oldValues = values;
+        int last = oldValues.length - 1;
+        V value = oldValues[i];
+
+        V[] newValues = newArray(last);
+        System.arraycopy(oldValues, 0, newValues, 0, last);
+
+        Object[] newKeys = new Object[last];
+        System.arraycopy(keys, 0, newKeys, 0, last);
+
+        if (i < last) {
+            /* move the last element into the gap */
+            newValues[i] = oldValues[last];
+            newKeys[i] = keys[last];
+            index.put((K)keys[last], i);
+        }
+
+        keys = newKeys;
+        values = newValues;
+        return value;
+    }
+}
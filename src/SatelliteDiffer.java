@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Decides whether a new #SatelliteStatus differs enough from the
+ * last one sent to be worth sending again.  Providers report the
+ * satellites several times per second, usually with nearly the same
+ * values; suppressing those saves encoding work and link bandwidth.
+ *
+ * A status is sent when the set of satellites or their used-in-fix
+ * flags change, when the elevation, azimuth or SNR of a satellite
+ * moves beyond a threshold, or when the last one sent is older than
+ * the maximum interval.  This class is not thread-safe.
+ */
+final class SatelliteDiffer {
+    static final float DEFAULT_ELEVATION_DELTA = 2;
+    static final float DEFAULT_AZIMUTH_DELTA = 2;
+    static final float DEFAULT_SNR_DELTA = 3;
+    static final long DEFAULT_MAX_INTERVAL_NANOS = 5000000000L;
+
+    private float elevationDelta = DEFAULT_ELEVATION_DELTA;
+    private float azimuthDelta = DEFAULT_AZIMUTH_DELTA;
+    private float snrDelta = DEFAULT_SNR_DELTA;
+    private long maxIntervalNanos = DEFAULT_MAX_INTERVAL_NANOS;
+
+    /** the status sent last */
+    private final SatelliteStatus last = new SatelliteStatus();
+    private boolean hasLast;
+    private long lastNanos;
+
+    private long sent, suppressed;
+
+    /**
+     * Changes the thresholds.  Zero thresholds and a zero interval
+     * send every status.
+     */
+    void setThresholds(float _elevationDelta, float _azimuthDelta,
+                       float _snrDelta, long _maxIntervalNanos) {
+        elevationDelta = _elevationDelta;
+        azimuthDelta = _azimuthDelta;
+        snrDelta = _snrDelta;
+        maxIntervalNanos = _maxIntervalNanos;
+    }
+
+    /**
+     * Forgets the last status, so the next one is sent.
+     */
+    void reset() {
+        hasLast = false;
+    }
+
+    long getSent() {
+        return sent;
+    }
+
+    long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * @return true if the status should be sent; it is then
+     * remembered as the last one sent
+     */
+    boolean offer(SatelliteStatus status, long nowNanos) {
+        if (hasLast && nowNanos - lastNanos < maxIntervalNanos &&
+            !differs(status)) {
+            ++suppressed;
+            return false;
+        }
+
+        last.set(status);
+        hasLast = true;
+        lastNanos = nowNanos;
+        ++sent;
+        return true;
+    }
+
+    /**
+     * Looks up a PRN in #last.
+     *
+     * @param hint the index where it is most likely found, because
+     * providers usually report the satellites in the same order
+     * @return the index, or -1
+     */
+    private int find(int prn, int hint) {
+        if (hint < last.count && last.prn[hint] == prn)
+            return hint;
+
+        for (int i = 0; i < last.count; ++i)
+            if (last.prn[i] == prn)
+                return i;
+
+        return -1;
+    }
+
+    private static float angleDelta(float a, float b) {
+        float d = Math.abs(a - b) % 360;
+        return d > 180 ? 360 - d : d;
+    }
+
+    private boolean differs(SatelliteStatus s) {
+        if (s.count != last.count)
+            return true;
+
+        for (int i = 0; i < s.count; ++i) {
+            final int j = find(s.prn[i], i);
+            if (j < 0 || s.usedInFix[i] != last.usedInFix[j] ||
+                Math.abs(s.elevation[i] - last.elevation[j]) > elevationDelta ||
+                angleDelta(s.azimuth[i], last.azimuth[j]) > azimuthDelta ||
+                Math.abs(s.snr[i] - last.snr[j]) > snrDelta)
+                return true;
+        }
+
+        return false;
+    }
+}
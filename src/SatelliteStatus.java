@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * A snapshot of the satellites in view, in primitive arrays.  It is
+ * mutable so one instance can be reused for every update, and it
+ * does not depend on the Android API.
+ */
+final class SatelliteStatus {
+    static final int MAX_SATELLITES = 64;
+
+    int count;
+
+    final int[] prn = new int[MAX_SATELLITES];
+
+    /** degrees above the horizon */
+    final float[] elevation = new float[MAX_SATELLITES];
+
+    /** degrees clockwise from true north */
+    final float[] azimuth = new float[MAX_SATELLITES];
+
+    /** signal to noise ratio in dB */
+    final float[] snr = new float[MAX_SATELLITES];
+
+    final boolean[] usedInFix = new boolean[MAX_SATELLITES];
+
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Adds a satellite.  Satellites beyond #MAX_SATELLITES are
+     * ignored.
+     */
+    void add(int _prn, float _elevation, float _azimuth, float _snr,
+             boolean _usedInFix) {
+        if (count >= MAX_SATELLITES)
+            return;
+
+        prn[count] = _prn;
+        elevation[count] = _elevation;
+        azimuth[count] = _azimuth;
+        snr[count] = _snr;
+        usedInFix[count] = _usedInFix;
+        ++count;
+    }
+
+    int countUsed() {
+        int n = 0;
+        for (int i = 0; i < count; ++i)
+            if (usedInFix[i])
+                ++n;
+        return n;
+    }
+
+    void set(SatelliteStatus src) {
+        count = src.count;
+        System.arraycopy(src.prn, 0, prn, 0, count);
+        System.arraycopy(src.elevation, 0, elevation, 0, count);
+        System.arraycopy(src.azimuth, 0, azimuth, 0, count);
+        System.arraycopy(src.snr, 0, snr, 0, count);
+        System.arraycopy(src.usedInFix, 0, usedInFix, 0, count);
+    }
+}
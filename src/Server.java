@@ -19,6 +19,7 @@
 package name.kellermann.max.bluenmea;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 /**
  * A generic server which listens to incoming connections.
@@ -31,5 +32,31 @@ public abstract class Server {
         void onNewClient(Client client);
     }
 
+    /** decides which connections are accepted; shared by all
+        servers */
+    protected final Admission admission;
+
+    protected Server(Admission _admission) {
+        admission = _admission;
+    }
+
+    /**
+     * Formats the response to a connection which is refused.
+     */
+    protected String formatRefusal(String reason) {
+        return "BlueNMEA: " + reason + "\r\n";
+    }
+
+    /**
+     * Tells the peer why its connection is refused.  Nothing has
+     * been sent on the new connection yet, so this does not block.
+     */
+    protected void refuse(OutputStream os, String reason) {
+        try {
+            os.write(formatRefusal(reason).getBytes());
+        } catch (IOException e) {
+        }
+    }
+
     abstract public void close() throws IOException, InterruptedException;
 }
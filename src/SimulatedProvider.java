@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.util.Random;
+
+/**
+ * A #FixProvider which simulates a receiver moving along a
+ * geometric track, at up to #MAX_RATE fixes per second, with up to
+ * #SatelliteStatus.MAX_SATELLITES satellites and optional dropouts.
+ *
+ * Everything it generates (positions, noise, satellites, dropouts)
+ * is a function of the seed and the step number, so two runs with
+ * the same parameters produce the same sequence.  #step() generates
+ * one step synchronously; #start() runs the steps in real time on
+ * a thread of their own.
+ */
+final class SimulatedProvider implements FixProvider, Runnable {
+    static final int LINE = 0;
+    static final int CIRCLE = 1;
+    static final int FIGURE_EIGHT = 2;
+
+    static final int MAX_RATE = 100;
+
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    /** the timestamp of step 0 in #step() mode */
+    static final long DEFAULT_START_TIME = 1318982400000L;
+
+    private final int pattern;
+    private final int rate;
+    private final int nSatellites;
+
+    /** the probability that a dropout begins in a given second */
+    private final double dropoutProbability;
+
+    /** the maximum dropout duration, in steps */
+    private final int maxDropoutSteps;
+
+    /** the pattern's origin */
+    private final double latitude, longitude;
+
+    /** the pattern's size in meters (radius, or length of one lap
+        along a line), and the speed in m/s */
+    private final double size, speed;
+
+    /** the heading of #LINE */
+    private final double heading;
+
+    private final Random random;
+
+    private long step;
+
+    /** the number of steps left in the current dropout, or 0 */
+    private int dropout;
+
+    private long startTime = DEFAULT_START_TIME;
+
+    private final Fix fix = new Fix();
+    private final SatelliteStatus satellites = new SatelliteStatus();
+
+    /** the satellite constellation: fixed per seed, rotating slowly */
+    private final float[] baseAzimuth, baseElevation;
+
+    private Listener listener;
+    private Thread thread;
+
+    /**
+     * @param dropoutsPerHour the average number of dropouts per hour
+     * @param maxDropoutSeconds each dropout lasts between 1 and this
+     * many seconds
+     */
+    SimulatedProvider(long seed, int _pattern, int _rate, int _nSatellites,
+                      double dropoutsPerHour, int maxDropoutSeconds) {
+        if (_pattern < LINE || _pattern > FIGURE_EIGHT)
+            throw new IllegalArgumentException("Invalid pattern: " + _pattern);
+        if (_rate < 1 || _rate > MAX_RATE)
+            throw new IllegalArgumentException("Invalid rate: " + _rate);
+        if (_nSatellites < 0 ||
+            _nSatellites > SatelliteStatus.MAX_SATELLITES)
+            throw new IllegalArgumentException("Invalid number of satellites: " +
+                                               _nSatellites);
+
+        pattern = _pattern;
+        rate = _rate;
+        nSatellites = _nSatellites;
+        dropoutProbability = dropoutsPerHour / 3600;
+        maxDropoutSteps = Math.max(maxDropoutSeconds, 1) * _rate;
+
+        random = new Random(seed);
+        latitude = 54.3 + random.nextDouble() * 0.1;
+        longitude = 10.1 + random.nextDouble() * 0.1;
+        size = 100 + random.nextInt(400);
+        speed = 2 + random.nextDouble() * 8;
+        heading = random.nextDouble() * 2 * Math.PI;
+
+        baseAzimuth = new float[_nSatellites];
+        baseElevation = new float[_nSatellites];
+        for (int i = 0; i < _nSatellites; ++i) {
+            baseAzimuth[i] = random.nextFloat() * 360;
+            baseElevation[i] = 5 + random.nextFloat() * 85;
+        }
+    }
+
+    int getRate() {
+        return rate;
+    }
+
+    /**
+     * Sets the timestamp of step 0.  #start() sets it to the current
+     * time.
+     */
+    void setStartTime(long _startTime) {
+        startTime = _startTime;
+    }
+
+    /**
+     * Maps a satellite index to a PRN: 1-32 for GPS, then the NMEA
+     * range of GLONASS (65-96), then SBAS (33-64).
+     */
+    private static int prn(int i) {
+        if (i < 32)
+            return i + 1;
+        else if (i < 64)
+            return 65 + (i - 32);
+        else
+            return 33 + (i - 64);
+    }
+
+    /**
+     * Calculates the position and velocity at the specified time;
+     * stores north/east offsets (m) in xy[0..1] and the north/east
+     * velocity (m/s) in xy[2..3].
+     */
+    private void locate(double t, double[] xy) {
+        switch (pattern) {
+        case LINE: {
+            /* back and forth along one line */
+            double lap = size / speed;
+            double phase = t % (2 * lap);
+            double distance = phase < lap ? speed * phase
+                : speed * (2 * lap - phase);
+            double direction = phase < lap ? 1 : -1;
+            xy[0] = distance * Math.cos(heading);
+            xy[1] = distance * Math.sin(heading);
+            xy[2] = direction * speed * Math.cos(heading);
+            xy[3] = direction * speed * Math.sin(heading);
+            break;
+        }
+
+        case CIRCLE: {
+            double w = speed / size;
+            xy[0] = size * Math.cos(w * t);
+            xy[1] = size * Math.sin(w * t);
+            xy[2] = -size * w * Math.sin(w * t);
+            xy[3] = size * w * Math.cos(w * t);
+            break;
+        }
+
+        default: {
+            /* lemniscate of Gerono; the angular rate is chosen so
+               the average speed roughly matches #speed */
+            double w = speed / (1.5 * size);
+            xy[0] = size * Math.sin(w * t) * Math.cos(w * t);
+            xy[1] = size * Math.sin(w * t);
+            xy[2] = size * w * Math.cos(2 * w * t);
+            xy[3] = size * w * Math.cos(w * t);
+            break;
+        }
+        }
+    }
+
+    private final double[] xy = new double[4];
+
+    private void generateFix() {
+        final double t = (double)step / rate;
+        locate(t, xy);
+
+        final double north = xy[0] + random.nextGaussian();
+        final double east = xy[1] + random.nextGaussian();
+
+        fix.time = startTime + step * 1000 / rate;
+        fix.latitude = latitude + north / METERS_PER_DEGREE;
+        fix.longitude = longitude + east /
+            (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+        fix.hasAltitude = true;
+        fix.altitude = 30 + random.nextGaussian() * 2;
+        fix.hasSpeed = true;
+        fix.speed = (float)Math.hypot(xy[2], xy[3]);
+        fix.hasBearing = fix.speed > 0.1;
+        fix.bearing = (float)((Math.toDegrees(Math.atan2(xy[3], xy[2])) + 360) % 360);
+        fix.accuracy = 3;
+        fix.hdop = 0;
+        fix.provider = Fix.PROVIDER_GPS;
+        fix.estimated = false;
+    }
+
+    private void generateSatellites(boolean lost) {
+        final double t = (double)step / rate;
+        satellites.clear();
+        int used = 0;
+        for (int i = 0; i < nSatellites; ++i) {
+            /* roughly one revolution every 12 hours */
+            float azimuth = (float)((baseAzimuth[i] + t / 120) % 360);
+            float snr = lost ? 0 : 15 + random.nextInt(30);
+            boolean usedInFix = !lost && snr >= 25 && baseElevation[i] >= 10;
+            if (usedInFix)
+                ++used;
+
+            satellites.add(prn(i), baseElevation[i], azimuth, snr, usedInFix);
+        }
+
+        fix.satellites = used;
+    }
+
+    /**
+     * Generates the next step and invokes the listener: once per
+     * second, the satellites, and then the fix (unless in a
+     * dropout).
+     */
+    void step(Listener l) {
+        final boolean second = step % rate == 0;
+
+        if (second && dropout == 0 && random.nextDouble() < dropoutProbability) {
+            dropout = rate + random.nextInt(maxDropoutSteps - rate + 1);
+            l.onUnavailable();
+        }
+
+        if (second && nSatellites > 0) {
+            generateSatellites(dropout > 0);
+            l.onSatellites(satellites);
+        }
+
+        if (dropout > 0) {
+            if (--dropout == 0)
+                l.onAvailable();
+        } else {
+            generateFix();
+            l.onFix(fix);
+        }
+
+        ++step;
+    }
+
+    /** from FixProvider */
+    @Override public synchronized void start(Listener _listener) {
+        if (thread != null)
+            throw new IllegalStateException("Already started");
+
+        listener = _listener;
+        startTime = System.currentTimeMillis() - step * 1000 / rate;
+        thread = new Thread(this, "BlueNMEA simulator");
+        thread.start();
+    }
+
+    /** from FixProvider */
+    @Override public void stop() {
+        Thread t;
+        synchronized(this) {
+            t = thread;
+            thread = null;
+        }
+
+        if (t == null)
+            return;
+
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** from Runnable */
+    @Override public void run() {
+        final long period = 1000000000L / rate;
+        long next = System.nanoTime();
+
+        while (!Thread.currentThread().isInterrupted()) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            /* when behind schedule, catch up without sleeping, so
+               the sequence stays the same */
+            next += period;
+            step(listener);
+        }
+    }
+}
@@ -16,23 +16,18 @@
  * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
  */
 
+
 package name.kellermann.max.bluenmea;
 
-import java.util.LinkedList;
-import java.util.List;
+
 import java.io.IOException;
+import java.util.ArrayList;
 
-import android.app.Activity;
-import android.app.AlertDialog;
 import android.os.Bundle;
-import android.widget.TextView;
-import android.widget.Button;
-import android.widget.RadioGroup;
-import android.view.View;
+import android.os.Debug;
 import android.os.Handler;
-import android.content.Context;
-import android.content.Intent;
-import android.content.DialogInterface;
+import android.os.HandlerThread;
+import android.location.GpsSatellite;
 import android.location.GpsStatus;
 import android.location.Location;
 import android.location.LocationListener;
@@ -44,206 +39,1417 @@ import android.util.Log;
 /**
  * This class collects data, generates NMEA sentences and submits them
  * to its listeners.
+ *
+ * The work is split into stages which never run on the UI thread:
+ * the provider callbacks and the encoder run on a dedicated
+ * #HandlerThread, which publishes each #Epoch to a #Dispatcher; the
+ * dispatcher's thread delivers the sentences to the listeners.
  */
 public class Source
-    implements LocationListener, Runnable, Listener {
+    implements Runnable, Listener {
     private static final String TAG = "BlueNMEA";
 
+    /** the maximum number of sentences in one epoch: one GSA and
+        all GSV pages */
+    private static final int MAX_EPOCH_LINES = 1 + NMEA.MAX_GSV_PAGES;
+
+    /** the thread which receives the provider callbacks and encodes
+        NMEA sentences */
+    private final HandlerThread thread;
+
+    /** executes work on #thread */
+    private final Handler handler;
+
+    /** resend the last location after this duration without a new
+        one */
+    private static final long KEEP_ALIVE_NANOS = 5000000000L;
+
+    /** drives the keep-alive resend and the clients' write
+        deadlines; this avoids Handler message traffic for each
+        fix */
+    private final TimerWheel wheel =
+        new TimerWheel(TimerWheel.SYSTEM_CLOCK, 100000000L, 256);
+
     /** this timer is used for sending regular updates over the
         socket, even when onLocationChanged() is not called */
-    private Handler timer = new Handler();
+    private final TimerWheel.Timer keepAlive = new TimerWheel.Timer() {
+            @Override protected void onTimer() {
+                keepAlivePostedNanos = System.nanoTime();
+                encoderMetrics.enqueued();
+                handler.post(Source.this);
+            }
+        };
+
+    /** the System.nanoTime() when #keepAlive posted the resend */
+    private volatile long keepAlivePostedNanos;
+
+    /** the System.nanoTime() of the last location sent; only
+        accessed on #thread */
+    private long lastLocationNanos;
 
-    /** the name of the currently selected location provider */
+    /** the I/O stage */
+    private final Dispatcher dispatcher;
+
+    private final StageMetrics encoderMetrics = new StageMetrics("encoder");
+
+    /**
+     * A pseudo provider name for #setLocationProvider() which
+     * subscribes to both GPS and network; the #FixSelector picks the
+     * better fix.
+     */
+    public static final String FUSED_PROVIDER = "fused";
+
+    /** bits for #ProviderListener.mask */
+    private static final int MASK_GPS = 0x1;
+    private static final int MASK_NETWORK = 0x2;
+
+    /** give up waiting for the new provider's first fix after this
+        duration, and unsubscribe the old one anyway */
+    private static final long SWITCH_TIMEOUT_NANOS = 60000000000L;
+
+    /** the name of the currently selected location provider, or
+        #FUSED_PROVIDER */
     String locationProvider = LocationManager.GPS_PROVIDER;
 
     LocationManager locationManager;
 
-    /** the most recent known location, or null */
-    Location location;
+    private final ProviderListener gpsListener =
+        new ProviderListener(LocationManager.GPS_PROVIDER, MASK_GPS);
+    private final ProviderListener networkListener =
+        new ProviderListener(LocationManager.NETWORK_PROVIDER, MASK_NETWORK);
+
+    /** the providers selected by #locationProvider; only accessed
+        on #thread */
+    private int wantedMask;
+
+    /** the providers we have subscribed to; during a switch, this
+        includes the old ones */
+    private int subscribedMask;
+
+    /** the wanted providers which have reported being disabled or
+        unavailable */
+    private int unavailableMask;
+
+    /** is a provider switch in progress?  The old providers keep
+        feeding the listeners until a new one delivers its first
+        fix. */
+    private boolean switching;
+
+    private final TimerWheel.Timer switchTimeout = new TimerWheel.Timer() {
+            @Override protected void onTimer() {
+                handler.post(finishSwitchRunnable);
+            }
+        };
+
+    private final Runnable finishSwitchRunnable = new Runnable() {
+            @Override public void run() {
+                if (switching)
+                    finishSwitch();
+            }
+        };
+
+    /** does #fix contain a location which may be resent? */
+    private boolean hasLocation;
+
+    /** the fix loaded from a provider callback, before #selector
+        has decided about it */
+    private final Fix incoming = new Fix();
+
+    private final FixSelector selector = new FixSelector();
+
+    /** request location updates at a rate chosen by #motion instead
+        of once per second?  Only accessed on #thread */
+    private boolean adaptiveInterval;
+
+    private final MotionPolicy motion = new MotionPolicy();
+
+    /** the maximum rate (Hz) for #setUpsampleRate(); the timer
+        wheel's resolution does not allow more */
+    public static final int MAX_UPSAMPLE_RATE = 10;
+
+    /** stop extrapolating this long after the last real fix; the
+        keep-alive takes over from there */
+    private static final long MAX_EXTRAPOLATION_NANOS = 2000000000L;
+
+    /** the period of extrapolated fixes, or 0 if disabled; only
+        accessed on #thread */
+    private long upsampleNanos;
+
+    /** the System.nanoTime() of the last real fix */
+    private long fixNanos;
+
+    private final DeadReckoning reckoning = new DeadReckoning();
+
+    /** the extrapolated fix, reused for each one */
+    private final Fix upsampled = new Fix();
+
+    /** real fixes are recorded here, if not null; only accessed on
+        #thread */
+    private TrackRecorder trackRecorder;
+
+    /** the geofences evaluated on each real fix, or null; only
+        accessed on #thread */
+    private GeofenceEngine geofences;
+
+    /** the alert sentences of the epoch being encoded */
+    private final ArrayList<String> epochAlerts = new ArrayList<String>();
+
+    private final GeofenceEngine.Listener geofenceListener =
+        new GeofenceEngine.Listener() {
+            @Override public void onGeofence(Geofence fence, boolean entered) {
+                final StringBuilder sb = sentence;
+                sb.setLength(0);
+                NMEA.appendGeofence(sb, fix.time, fence, entered);
+                String line = sb.toString();
+                epochAlerts.add(line);
+                if (ALERT_LOG.shouldLog(Logger.DEBUG))
+                    ALERT_LOG.log(Logger.DEBUG, "ALERT ", line);
+            }
+        };
+
+    private final Runnable upsampleRunnable = new Runnable() {
+            @Override public void run() {
+                sendUpsampled();
+            }
+        };
+
+    private final TimerWheel.Timer upsampleTimer = new TimerWheel.Timer() {
+            @Override protected void onTimer() {
+                upsamplePostedNanos = System.nanoTime();
+                encoderMetrics.enqueued();
+                handler.post(upsampleRunnable);
+            }
+        };
+
+    /** the System.nanoTime() when #upsampleTimer posted the
+        extrapolated fix */
+    private volatile long upsamplePostedNanos;
+
+    /** has the fix being passed through the #chain not been sent
+        yet?  Its #encoderMetrics item is then still open; only
+        accessed on #thread */
+    private boolean chainItemOpen;
+
+    /** have we subscribed to the location provider?  Only accessed
+        on #thread */
+    private boolean enabled = false;
+
+    /** replaces the LocationManager if not null; only accessed on
+        #thread */
+    private FixProvider fixProvider;
+
+    private final ProviderFeed feed = new ProviderFeed();
+
+    /** the System.nanoTime() and thread CPU time when the fix in
+        #chain was received; only accessed on #thread */
+    private long chainNanos, chainCpu;
+
+    private final FixChain.Sink chainSink = new FixChain.Sink() {
+            @Override public void onFix(Fix f) {
+                sendFix(f, chainNanos, chainCpu);
+            }
+        };
+
+    /* debug logging on the fix path; enabled with "setprop
+       log.tag.BlueNMEA DEBUG" */
+
+    /** every sentence sent; several per fix, so only one of 10 is
+        logged */
+    private static final Logger.Category SEND_LOG =
+        new Logger.Category(TAG, 10);
+    private static final Logger.Category LOCATION_LOG =
+        new Logger.Category(TAG, 1);
+    private static final Logger.Category ALERT_LOG =
+        new Logger.Category(TAG, 1);
+
+    private static final FixChain.CpuClock CPU_CLOCK =
+        new FixChain.CpuClock() {
+            @Override public long getThreadCpuNanos() {
+                return Debug.threadCpuTimeNanos();
+            }
+        };
+
+    /** allocation accounting slows down the whole process, so it is
+        only enabled for debugging */
+    private static final FixChain.AllocationCounter ALLOCATION_COUNTER =
+        new FixChain.AllocationCounter() {
+            @Override public long getAllocatedBytes() {
+                return Debug.getThreadAllocSize();
+            }
+        };
+
+    /** the filters between #selector and the encoder; stages are
+        only added and removed on #thread */
+    private final FixChain chain;
 
     public interface StatusListener {
+        /**
+         * The provider status has changed.  This is not called on
+         * the UI thread.
+         */
         void onStatusChanged(int status);
     }
 
-    public interface NMEAListener {
-        void onLine(String line);
-    }
-
     StatusListener statusListener;
-    List<NMEAListener> nmeaListeners = new LinkedList<NMEAListener>();
+
+    /** the string resource id of the provider status; only written
+        on #thread */
+    private volatile int status = R.string.status_unknown;
+
+    /** the number of real fixes sent; only written on #thread */
+    private volatile long fixCount;
+
+    /** records the path of sampled fixes through the pipeline */
+    private final Trace trace = new Trace(Trace.DEFAULT_CAPACITY);
+
+    /** the trace id of the epoch being encoded, or 0; only
+        accessed on #thread */
+    private long epochTrace;
+
+    /** delivers the epochs to the listeners on the dispatcher
+        thread */
+    private final FanOut fanOut = new FanOut(trace);
+
+    /** the number of decimal places in the minutes of latitude and
+        longitude fields; only accessed on the source thread */
+    private int coordinateDecimals = NMEA.DEFAULT_DECIMALS;
+
+    /** a buffer for formatting sentences; reused to avoid
+        allocations on each fix */
+    private final StringBuilder sentence = new StringBuilder(128);
+
+    /** the current fix and satellites, reused for each update */
+    private final Fix fix = new Fix();
+    private final SatelliteStatus satellites = new SatelliteStatus();
+
+    private final BinaryEncoder binaryEncoder = new BinaryEncoder();
+
+    /** suppresses satellite updates which hardly differ from the
+        last one sent; only accessed on #thread */
+    private final SatelliteDiffer satelliteDiffer = new SatelliteDiffer();
+
+    /** calculated from #satellites, cached between fixes */
+    private final DOP dop = new DOP();
+
+    /** the sentences of the epoch being encoded */
+    private final String[] epochLines = new String[MAX_EPOCH_LINES];
+    private int epochLength;
 
     Source(LocationManager _locationManager, StatusListener _statusListener) {
         locationManager = _locationManager;
         statusListener = _statusListener;
+
+        thread = new HandlerThread("BlueNMEA source");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        boolean countAllocations = Log.isLoggable(TAG, Log.DEBUG);
+        if (countAllocations)
+            Debug.startAllocCounting();
+        chain = new FixChain(chainSink,
+                             /* -1 if the kernel cannot measure it */
+                             Debug.threadCpuTimeNanos() >= 0
+                             ? CPU_CLOCK : null,
+                             countAllocations ? ALLOCATION_COUNTER : null);
+
+        dispatcher = new Dispatcher(fanOut);
+        wheel.start();
     }
 
-    protected void enable() {
+    /**
+     * Stops the threads.  The object cannot be used afterwards.
+     */
+    public void close() {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    if (enabled)
+                        disable();
+
+                    thread.quit();
+                }
+            });
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+        }
+
+        wheel.close();
+        dispatcher.close();
+    }
+
+    /**
+     * Updates the provider status, and notifies the #StatusListener
+     * if it has changed.  Must be called on #thread.
+     */
+    private void setStatus(int _status) {
+        if (_status == status)
+            return;
+
+        status = _status;
         if (statusListener != null)
-            statusListener.onStatusChanged(R.string.status_waiting);
+            statusListener.onStatusChanged(_status);
+    }
+
+    /**
+     * Returns the string resource id of the provider status.  May
+     * be called from any thread.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of real (not resent or extrapolated) fixes
+     * sent so far.  May be called from any thread.
+     */
+    public long getFixCount() {
+        return fixCount;
+    }
+
+    /**
+     * Returns the timer wheel which clients may use for their
+     * deadlines.
+     */
+    TimerWheel getTimerWheel() {
+        return wheel;
+    }
+
+    /**
+     * Returns the metrics of all pipeline stages: the encoder (on
+     * the source thread) and the I/O stage.
+     */
+    public StageMetrics.Snapshot[] getMetrics() {
+        return new StageMetrics.Snapshot[] {
+            encoderMetrics.snapshot(),
+            dispatcher.getMetrics(),
+        };
+    }
+
+    /**
+     * Must be called on #thread, because the GpsStatus.Listener is
+     * bound to the looper of the calling thread.
+     */
+    protected void enable() {
+        setStatus(R.string.status_waiting);
+
+        if (fixProvider != null) {
+            feed.open(fixProvider);
+            fixProvider.start(feed);
+            enabled = true;
+            return;
+        }
+
+        wantedMask = providerMask(locationProvider);
+        unavailableMask = 0;
+        subscribe(wantedMask);
+
+        if (subscribedMask == 0) {
+            setStatus(R.string.status_error);
+            return;
+        }
+
+        enabled = true;
+        motion.setActive(adaptiveInterval, System.nanoTime());
+    }
+
+    private static int providerMask(String provider) {
+        if (FUSED_PROVIDER.equals(provider))
+            return MASK_GPS | MASK_NETWORK;
+        else if (LocationManager.NETWORK_PROVIDER.equals(provider))
+            return MASK_NETWORK;
+        else
+            return MASK_GPS;
+    }
+
+    /**
+     * Subscribes to those providers in the mask which are not yet
+     * subscribed.  Must be called on #thread.
+     */
+    private void subscribe(int mask) {
+        subscribe(gpsListener, mask);
+        subscribe(networkListener, mask);
+    }
+
+    private void subscribe(ProviderListener l, int mask) {
+        if ((mask & l.mask) == 0 || (subscribedMask & l.mask) != 0)
+            return;
 
         try {
-            locationManager.requestLocationUpdates(locationProvider,
-                                                   1000, 0, this);
+            requestUpdates(l);
         } catch (IllegalArgumentException e) {
             /* this exception was reported on the Android Market;
                according to LocationManager's API documentation, it
                shouldn't happen here */
-            statusListener.onStatusChanged(R.string.status_error);
+            Log.e(TAG, "Failed to subscribe to " + l.name, e);
             return;
         }
 
-        if (locationProvider.equals(LocationManager.GPS_PROVIDER))
+        subscribedMask |= l.mask;
+
+        if (l == gpsListener)
             locationManager.addGpsStatusListener(this);
     }
 
+    private void requestUpdates(ProviderListener l) {
+        long interval = MotionPolicy.BASELINE_INTERVAL_MILLIS;
+        float distance = 0;
+        if (adaptiveInterval) {
+            interval = motion.getIntervalMillis();
+            distance = motion.getMinDistance();
+        }
+
+        locationManager.requestLocationUpdates(l.name, interval, distance,
+                                               l, thread.getLooper());
+    }
+
+    /**
+     * Requests location updates again from all subscribed providers,
+     * after the interval has changed.  This replaces the existing
+     * subscriptions.
+     */
+    private void requestUpdates() {
+        try {
+            if ((subscribedMask & MASK_GPS) != 0)
+                requestUpdates(gpsListener);
+            if ((subscribedMask & MASK_NETWORK) != 0)
+                requestUpdates(networkListener);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to change the update interval", e);
+        }
+    }
+
+    /**
+     * Unsubscribes from those providers in the mask which are
+     * subscribed.  Must be called on #thread.
+     */
+    private void unsubscribe(int mask) {
+        unsubscribe(gpsListener, mask);
+        unsubscribe(networkListener, mask);
+    }
+
+    private void unsubscribe(ProviderListener l, int mask) {
+        if ((mask & subscribedMask & l.mask) == 0)
+            return;
+
+        locationManager.removeUpdates(l);
+        subscribedMask &= ~l.mask;
+        unavailableMask &= ~l.mask;
+
+        if (l == gpsListener) {
+            locationManager.removeGpsStatusListener(this);
+            dop.invalidate();
+        }
+    }
+
     /**
-     * Clears the saved location and disables the timer.
+     * Clears the saved location and disables the timer.  The
+     * geofence state is forgotten, too: the next fix may be far
+     * away.
      */
     private void clearLocation() {
-        if (location != null) {
-            timer.removeCallbacks(this);
-            location = null;
+        if (hasLocation) {
+            wheel.cancel(keepAlive);
+            wheel.cancel(upsampleTimer);
+            hasLocation = false;
         }
+
+        reckoning.invalidate();
+
+        selector.reset();
+
+        if (geofences != null)
+            geofences.reset();
     }
 
+    /**
+     * Must be called on #thread.
+     */
     protected void disable() {
+        enabled = false;
+
+        if (adaptiveInterval) {
+            motion.setActive(false, System.nanoTime());
+            Log.i(TAG, getMotionStats().toString());
+            motion.reset();
+        }
+
+        for (FixChain.Snapshot stage : chain.snapshot())
+            Log.i(TAG, "stage " + stage);
+
+        Log.i(TAG, "satellites: sent=" + satelliteDiffer.getSent() +
+              " suppressed=" + satelliteDiffer.getSuppressed());
+        satelliteDiffer.reset();
+
+        switching = false;
+        wheel.cancel(switchTimeout);
+
+        if (fixProvider != null) {
+            fixProvider.stop();
+            feed.close();
+        }
+
         clearLocation();
+        unsubscribe(subscribedMask);
+        dop.invalidate();
 
-        locationManager.removeUpdates(this);
+        setStatus(R.string.status_unknown);
+    }
 
-        if (locationProvider.equals(LocationManager.GPS_PROVIDER))
-            locationManager.removeGpsStatusListener(this);
+    /**
+     * Selects the location provider by its name, or
+     * #FUSED_PROVIDER.  While enabled, this switches without a gap:
+     * the new provider is subscribed first, and the old one is
+     * dropped when the new one has delivered its first fix.
+     */
+    public void setLocationProvider(final String _locationProvider) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    locationProvider = _locationProvider;
 
-        if (statusListener != null)
-            statusListener.onStatusChanged(R.string.status_unknown);
+                    if (fixProvider != null)
+                        /* takes effect when the FixProvider is
+                           removed */
+                        return;
+
+                    if (enabled)
+                        switchProvider();
+                    else
+                        update();
+                }
+            });
     }
 
-    public void setLocationProvider(String _locationProvider) {
-        if (!nmeaListeners.isEmpty())
-            disable();
+    /**
+     * Configures when a satellite status is sent again: after a
+     * change of the satellite set or used-in-fix flags, after a
+     * change of elevation, azimuth (degrees) or SNR (dB) beyond the
+     * thresholds, or after the interval.  Zero for all parameters
+     * sends every status.
+     */
+    public void setSatelliteThresholds(final float elevation,
+                                       final float azimuth,
+                                       final float snr,
+                                       final long maxIntervalNanos) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    satelliteDiffer.setThresholds(elevation, azimuth, snr,
+                                                  maxIntervalNanos);
+                    satelliteDiffer.reset();
+                }
+            });
+    }
 
-        locationProvider = _locationProvider;
+    /**
+     * Appends a stage to the chain which processes each real fix
+     * before it is encoded.
+     */
+    public void addStage(final FixStage stage) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    chain.add(stage);
+                }
+            });
+    }
 
-        if (!nmeaListeners.isEmpty())
-            enable();
+    public void removeStage(final FixStage stage) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    chain.remove(stage);
+                }
+            });
     }
 
-    public void addListener(NMEAListener l) {
-        if (nmeaListeners.isEmpty())
-            enable();
+    /**
+     * Returns the cost of each #FixStage.
+     */
+    public FixChain.Snapshot[] getStageMetrics() {
+        return chain.snapshot();
+    }
+
+    public Trace getTrace() {
+        return trace;
+    }
+
+    /**
+     * @param interval trace one of this many fixes, or 0 to disable
+     * tracing
+     */
+    public void setTraceSampleInterval(int interval) {
+        trace.setSampleInterval(interval);
+    }
+
+    /**
+     * Replaces the LocationManager with the specified #FixProvider
+     * (e.g. a #SimulatedProvider), or goes back to the
+     * LocationManager if null.
+     */
+    public void setFixProvider(final FixProvider _fixProvider) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    if (_fixProvider == fixProvider)
+                        return;
+
+                    if (enabled)
+                        disable();
+
+                    fixProvider = _fixProvider;
+                    update();
+                }
+            });
+    }
+
+    /**
+     * Must be called on #thread.
+     */
+    private void switchProvider() {
+        final int mask = providerMask(locationProvider);
+        if (mask == wantedMask)
+            return;
+
+        wantedMask = mask;
+        unavailableMask &= mask;
+        subscribe(mask);
+
+        /* the new provider's fixes may disagree with the old one's
+           about which fences contain the position */
+        if (geofences != null)
+            geofences.reset();
+
+        if ((subscribedMask & ~mask) == 0 || !hasLocation) {
+            /* nothing to tear down, or no output to bridge */
+            finishSwitch();
+            return;
+        }
 
-        nmeaListeners.add(l);
+        switching = true;
+        wheel.schedule(switchTimeout, SWITCH_TIMEOUT_NANOS);
     }
 
-    public void removeListener(NMEAListener l) {
-        nmeaListeners.remove(l);
+    /**
+     * Unsubscribes from the providers which are no longer wanted.
+     */
+    private void finishSwitch() {
+        switching = false;
+        wheel.cancel(switchTimeout);
+
+        unsubscribe(subscribedMask & ~wantedMask);
+
+        if (subscribedMask == 0)
+            setStatus(R.string.status_error);
+    }
+
+    /**
+     * Enables or disables the motion-adaptive request interval, see
+     * #MotionPolicy.  Keep-alive resends continue at their own rate
+     * while the provider is slowed down.
+     */
+    public void setAdaptiveInterval(final boolean _adaptiveInterval) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    if (_adaptiveInterval == adaptiveInterval)
+                        return;
+
+                    adaptiveInterval = _adaptiveInterval;
+                    motion.reset();
+                    motion.setActive(enabled && adaptiveInterval,
+                                     System.nanoTime());
+                    requestUpdates();
+                }
+            });
+    }
+
+    /**
+     * Emits dead-reckoned GGA/GLL/RMC sentences between real fixes,
+     * at the specified rate (1 to #MAX_UPSAMPLE_RATE Hz), or 0 to
+     * disable this.  Extrapolated fixes are marked as estimated and
+     * are not sent to binary clients.
+     */
+    public void setUpsampleRate(final int rate) {
+        if (rate < 0 || rate > MAX_UPSAMPLE_RATE)
+            throw new IllegalArgumentException("Invalid upsample rate: " + rate);
 
-        if (nmeaListeners.isEmpty())
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    upsampleNanos = rate > 0 ? 1000000000L / rate : 0;
+                    if (rate == 0)
+                        wheel.cancel(upsampleTimer);
+                }
+            });
+    }
+
+    /**
+     * Records each real (not extrapolated or resent) fix with the
+     * specified recorder, or stops recording if null.
+     */
+    public void setTrackRecorder(final TrackRecorder _trackRecorder) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    if (trackRecorder != null &&
+                        trackRecorder != _trackRecorder) {
+                        try {
+                            trackRecorder.flush();
+                        } catch (IOException e) {
+                            Log.e(TAG, "Failed to flush the track", e);
+                        }
+                    }
+
+                    trackRecorder = _trackRecorder;
+                }
+            });
+    }
+
+    /**
+     * Evaluates the specified geofences on each real fix, or none if
+     * null.  Events are sent to the alert listeners.
+     */
+    public void setGeofences(final GeofenceEngine _geofences) {
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    geofences = _geofences;
+                }
+            });
+    }
+
+    /**
+     * Returns the counters of the adaptive request interval.
+     */
+    public MotionPolicy.Snapshot getMotionStats() {
+        return motion.snapshot(System.nanoTime());
+    }
+
+    /**
+     * Selects the number of decimal places (0 to #NMEA.MAX_DECIMALS)
+     * in the minutes of latitude and longitude fields.  The default
+     * is #NMEA.DEFAULT_DECIMALS; high-precision (e.g. RTK) consumers
+     * may want 6 or 7.
+     */
+    public void setCoordinateDecimals(final int decimals) {
+        if (decimals < 0 || decimals > NMEA.MAX_DECIMALS)
+            throw new IllegalArgumentException("Invalid number of decimals: " + decimals);
+
+        handler.post(new Runnable() {
+                @Override public void run() {
+                    coordinateDecimals = decimals;
+                }
+            });
+    }
+
+    /**
+     * Subscribes to or unsubscribes from the location provider,
+     * depending on whether there are listeners.  Must be called on
+     * #thread.
+     */
+    private void update() {
+        boolean wanted = hasListeners();
+        if (wanted && !enabled)
+            enable();
+        else if (!wanted && enabled)
             disable();
     }
 
-    protected void broadcastLine(String line) {
-        for (NMEAListener l: nmeaListeners)
-            l.onLine(line);
+    private final Runnable updateRunnable = new Runnable() {
+            @Override public void run() {
+                update();
+            }
+        };
+
+    public void addListener(FanOut.NMEAListener l) {
+        if (fanOut.add(l))
+            handler.post(updateRunnable);
     }
 
-    private void sendWithChecksum(String line) {
-        line = NMEA.decorate(line);
-        broadcastLine(line);
-        Log.d(TAG, "SEND '" + line + "'");
+    public void removeListener(FanOut.NMEAListener l) {
+        if (fanOut.remove(l))
+            handler.post(updateRunnable);
     }
 
-    private void sendLocation(Location location) {
-        String time = NMEA.formatTime(location);
-        String date = NMEA.formatDate(location);
-        String position = NMEA.formatPosition(location);
+    public void addAlertListener(FanOut.NMEAListener l) {
+        fanOut.addAlertListener(l);
+    }
 
-        sendWithChecksum("GPGGA," + time + "," +
-                         position + ",1," +
-                         NMEA.formatSatellites(location) + "," +
-                         location.getAccuracy() + "," +
-                         NMEA.formatAltitude(location) + ",,,,");
-        sendWithChecksum("GPGLL," + position + "," + time + ",A");
-        sendWithChecksum("GPRMC," + time + ",A," +
-                         position + "," +
-                         NMEA.formatSpeedKt(location) + "," +
-                         NMEA.formatBearing(location) + "," +
-                         date + ",,");
+    public void removeAlertListener(FanOut.NMEAListener l) {
+        fanOut.removeAlertListener(l);
     }
 
-    private void sendSatellite(GpsStatus gps) {
-        String gsa = NMEA.formatGpsGsa(gps);
-        sendWithChecksum("GPGSA,A," + gsa);
+    private boolean hasListeners() {
+        return !fanOut.isEmpty();
+    }
 
-        List<String> gsvs = NMEA.formatGpsGsv(gps);
-        for(String gsv : gsvs)
-            sendWithChecksum("GPGSV," + gsvs.size() + "," +
-                             Integer.toString(gsvs.indexOf(gsv)+1) + "," + gsv);
+    /**
+     * Adds the sentence which was built in #sentence to the current
+     * epoch.
+     */
+    private void addSentence() {
+        String line = sentence.toString();
+        epochLines[epochLength++] = line;
+        if (SEND_LOG.shouldLog(Logger.DEBUG))
+            SEND_LOG.log(Logger.DEBUG, "SEND ", line);
     }
 
-    /** from LocationManager */
-    @Override public void onLocationChanged(Location newLocation) {
-        Log.d(TAG, "onLocationChanged " + newLocation);
+    /**
+     * Hands the current epoch over to the I/O stage.
+     *
+     * @param receivedNanos the System.nanoTime() when the provider
+     * event which triggered this epoch was received
+     * @param record the binary record, or null
+     * @param json the JSON fix, or null
+     */
+    private void publishEpoch(long receivedNanos, byte[] record,
+                              String json) {
+        String[] lines = new String[epochLength];
+        System.arraycopy(epochLines, 0, lines, 0, epochLength);
+        epochLength = 0;
+
+        String[] alerts = null;
+        if (!epochAlerts.isEmpty()) {
+            alerts = epochAlerts.toArray(new String[epochAlerts.size()]);
+            epochAlerts.clear();
+        }
 
-        if (statusListener != null)
-            statusListener.onStatusChanged(R.string.status_ok);
+        long now = System.nanoTime();
+        encoderMetrics.processed(now - receivedNanos);
 
-        if (location != null)
-            /* reset the timer */
-            timer.removeCallbacks(this);
+        final long traceId = epochTrace;
+        if (traceId != 0) {
+            epochTrace = 0;
+            trace.record(traceId, Trace.ENCODED, Trace.PIPELINE, now);
+        }
 
-        location = newLocation;
+        dispatcher.publish(new Epoch(lines, record, alerts, json,
+                                     receivedNanos, now, traceId));
+    }
 
-        /* requeue the timer with a fresh duration */
-        timer.postDelayed(this, 5000);
+    /**
+     * Copies the #Location into a #Fix.
+     */
+    private static void loadFix(Location location, Fix fix) {
+        fix.time = location.getTime();
+        fix.latitude = location.getLatitude();
+        fix.longitude = location.getLongitude();
+        fix.hasAltitude = location.hasAltitude();
+        fix.altitude = location.getAltitude();
+        fix.hasSpeed = location.hasSpeed();
+        fix.speed = location.getSpeed();
+        fix.hasBearing = location.hasBearing();
+        fix.bearing = location.getBearing();
+        fix.accuracy = location.getAccuracy();
 
-        sendLocation(location);
+        String provider = location.getProvider();
+        if (LocationManager.GPS_PROVIDER.equals(provider)) {
+            fix.provider = Fix.PROVIDER_GPS;
+            Bundle bundle = location.getExtras();
+            fix.satellites = bundle != null
+                ? bundle.getInt("satellites")
+                : -1;
+        } else if (LocationManager.NETWORK_PROVIDER.equals(provider)) {
+            fix.provider = Fix.PROVIDER_NETWORK;
+            /* fake this variable, because some software refuses to
+               work with a "0" or an empty value */
+            fix.satellites = 1;
+        } else {
+            fix.provider = Fix.PROVIDER_OTHER;
+            fix.satellites = -1;
+        }
     }
 
-    /** from GpsStatus.Listener */
-    @Override public void onGpsStatusChanged(int event) {
-        if (event == GpsStatus.GPS_EVENT_SATELLITE_STATUS)
-            sendSatellite(locationManager.getGpsStatus(null));
+    /**
+     * Copies the satellites from the #GpsStatus into #satellites.
+     */
+    private void loadSatellites(GpsStatus gps) {
+        satellites.clear();
+        for (GpsSatellite sat : gps.getSatellites())
+            satellites.add(sat.getPrn(), sat.getElevation(),
+                           sat.getAzimuth(), sat.getSnr(),
+                           sat.usedInFix());
     }
 
-    /** from LocationManager */
-    @Override public void onProviderDisabled(String provider) {
-        if (statusListener != null)
-            statusListener.onStatusChanged(R.string.status_disabled);
+    /**
+     * Encodes #fix.  The caller has counted it in #encoderMetrics.
+     *
+     * @param receivedNanos the System.nanoTime() when the provider
+     * event (or the keep-alive timer) was posted
+     */
+    private void sendLocation(long receivedNanos) {
+        lastLocationNanos = receivedNanos;
 
-        clearLocation();
+        fix.hdop = dop.valid && fix.provider == Fix.PROVIDER_GPS
+            ? (float)dop.hdop : 0;
+
+        final StringBuilder sb = sentence;
+        final int decimals = coordinateDecimals;
+
+        sb.setLength(0);
+        NMEA.appendGga(sb, fix, decimals);
+        addSentence();
+
+        sb.setLength(0);
+        NMEA.appendGll(sb, fix, decimals);
+        addSentence();
+
+        sb.setLength(0);
+        NMEA.appendRmc(sb, fix, decimals);
+        addSentence();
+
+        publishEpoch(receivedNanos,
+                     fanOut.wantsRecords()
+                     ? binaryEncoder.encodeFix(fix) : null,
+                     fanOut.wantsJson() ? WebFrames.fixJson(fix) : null);
     }
 
-    /** from LocationManager */
-    @Override public void onProviderEnabled(String provider) {
-        if (statusListener != null)
-            statusListener.onStatusChanged(R.string.status_enabled);
+    /**
+     * Sends an extrapolated fix; called by #upsampleTimer.
+     */
+    private void sendUpsampled() {
+        final long receivedNanos = upsamplePostedNanos;
+        final long elapsed = System.nanoTime() - fixNanos;
+        if (upsampleNanos == 0 || !hasLocation || !reckoning.isValid() ||
+            elapsed > MAX_EXTRAPOLATION_NANOS) {
+            encoderMetrics.dropped();
+            return;
+        }
+
+        reckoning.extrapolate(upsampled, elapsed);
+
+        final StringBuilder sb = sentence;
+        final int decimals = coordinateDecimals;
+
+        sb.setLength(0);
+        NMEA.appendGga(sb, upsampled, decimals);
+        addSentence();
+
+        sb.setLength(0);
+        NMEA.appendGll(sb, upsampled, decimals);
+        addSentence();
+
+        sb.setLength(0);
+        NMEA.appendRmc(sb, upsampled, decimals);
+        addSentence();
+
+        publishEpoch(receivedNanos, null,
+                     fanOut.wantsJson()
+                     ? WebFrames.fixJson(upsampled) : null);
+
+        wheel.schedule(upsampleTimer, upsampleNanos);
+    }
+
+    /**
+     * Encodes #satellites.  The caller has counted the status in
+     * #encoderMetrics.
+     */
+    private void sendSatellite(long receivedNanos) {
+        /* the DOP is used by the fixes, too, so it is updated even
+           if this status is not sent */
+        dop.update(satellites, receivedNanos);
+
+        if (!satelliteDiffer.offer(satellites, receivedNanos)) {
+            encoderMetrics.dropped();
+            return;
+        }
+
+        final StringBuilder sb = sentence;
+
+        sb.setLength(0);
+        NMEA.appendGsa(sb, satellites, dop);
+        addSentence();
+
+        final int pages = NMEA.countGsvPages(satellites);
+        for (int page = 1; page <= pages; ++page) {
+            sb.setLength(0);
+            NMEA.appendGsv(sb, satellites, page);
+            addSentence();
+        }
+
+        publishEpoch(receivedNanos,
+                     fanOut.wantsRecords()
+                     ? binaryEncoder.encodeSatellites(satellites) : null,
+                     null);
+    }
+
+    /**
+     * A location from one of the subscribed providers.
+     */
+    private void onLocation(ProviderListener l, Location location) {
+        if (LOCATION_LOG.shouldLog(Logger.DEBUG))
+            /* the LocationManager passes a new Location object to
+               each callback, so it may be formatted later */
+            LOCATION_LOG.log(Logger.DEBUG, "onLocationChanged ", location);
+
+        if ((subscribedMask & l.mask) == 0)
+            /* posted before we unsubscribed */
+            return;
+
+        /* the LocationManager posts to our Looper, so this is the
+           first moment the event can be counted */
+        final long now = System.nanoTime();
+        encoderMetrics.enqueued();
+
+        final long cpu = adaptiveInterval ? Debug.threadCpuTimeNanos() : 0;
+        loadFix(location, incoming);
+        unavailableMask &= ~l.mask;
+
+        if ((wantedMask & l.mask) == 0) {
+            /* an old provider during a switch: keep the output
+               flowing until the new one has a fix */
+            if (!switching) {
+                encoderMetrics.dropped();
+                return;
+            }
+
+            selector.accept(incoming, now);
+        } else if (switching) {
+            /* the first fix from the new provider completes the
+               switch */
+            finishSwitch();
+            selector.accept(incoming, now);
+        } else if (!selector.offer(incoming, now)) {
+            encoderMetrics.dropped();
+            return;
+        }
+
+        publishFix(now, cpu);
     }
 
-    /** from LocationManager */
-    @Override public void onStatusChanged(String provider, int status,
-                                          Bundle extras) {
-        switch (status) {
-        case LocationProvider.OUT_OF_SERVICE:
-        case LocationProvider.TEMPORARILY_UNAVAILABLE:
-            if (statusListener != null)
-                statusListener.onStatusChanged(R.string.status_unavailable);
+    /**
+     * Passes the fix chosen by #selector through the #chain, which
+     * calls #sendFix() for each fix it lets through.  The fix has
+     * been counted in #encoderMetrics.
+     *
+     * @param now the System.nanoTime() when the fix was received
+     * @param cpu the thread CPU time when the fix was received, for
+     * #MotionPolicy
+     */
+    private void publishFix(long now, long cpu) {
+        setStatus(R.string.status_ok);
+
+        epochTrace = trace.sample();
+        if (epochTrace != 0)
+            trace.record(epochTrace, Trace.RECEIVED, Trace.PIPELINE, now);
 
-            clearLocation();
-            break;
+        chainNanos = now;
+        chainCpu = cpu;
+        chainItemOpen = true;
+        chain.process(selector.current);
 
-        case LocationProvider.AVAILABLE:
-            if (statusListener != null)
-                statusListener.onStatusChanged(R.string.status_ok);
-            break;
+        if (chainItemOpen) {
+            /* the chain has dropped the fix */
+            chainItemOpen = false;
+            encoderMetrics.dropped();
+        }
+
+        epochTrace = 0;
+    }
+
+    /**
+     * Sends and records a fix which has passed the #chain.
+     */
+    private void sendFix(Fix f, long now, long cpu) {
+        if (chainItemOpen)
+            chainItemOpen = false;
+        else
+            /* a stage has emitted more than one fix */
+            encoderMetrics.enqueued();
+
+        fix.set(f);
+        hasLocation = true;
+        ++fixCount;
+
+        if (geofences != null)
+            /* the events are published with this fix's epoch */
+            geofences.update(fix.latitude, fix.longitude, geofenceListener);
+
+        /* requeue the timer with a fresh duration; this is O(1) and
+           does not touch the Looper's message queue */
+        wheel.schedule(keepAlive, KEEP_ALIVE_NANOS);
+
+        sendLocation(now);
+
+        if (trackRecorder != null) {
+            try {
+                trackRecorder.append(fix);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to record the track", e);
+                trackRecorder = null;
+            }
+        }
+
+        if (upsampleNanos > 0) {
+            /* snap back to the real fix */
+            reckoning.reset(fix);
+            fixNanos = now;
+            wheel.schedule(upsampleTimer, upsampleNanos);
+        }
+
+        if (adaptiveInterval) {
+            if (motion.update(fix, now)) {
+                Log.d(TAG, "motion mode " + motion.getMode());
+                requestUpdates();
+            }
+
+            motion.countFix(Debug.threadCpuTimeNanos() - cpu);
+        }
+    }
+
+    /**
+     * A provider has been disabled or become unavailable.  This is
+     * only reported (and the location cleared) when no other wanted
+     * provider is left, so a fused source keeps going on the other.
+     */
+    private void onUnavailable(ProviderListener l, int status) {
+        if ((wantedMask & l.mask) == 0)
+            return;
+
+        unavailableMask |= l.mask;
+        if ((wantedMask & ~unavailableMask) != 0)
+            return;
+
+        setStatus(status);
+
+        clearLocation();
+    }
+
+    private void onAvailable(ProviderListener l, int status) {
+        if ((wantedMask & l.mask) == 0)
+            return;
+
+        unavailableMask &= ~l.mask;
+
+        setStatus(status);
+    }
+
+    /** from GpsStatus.Listener */
+    @Override public void onGpsStatusChanged(int event) {
+        if (event == GpsStatus.GPS_EVENT_SATELLITE_STATUS) {
+            final long receivedNanos = System.nanoTime();
+            encoderMetrics.enqueued();
+            loadSatellites(locationManager.getGpsStatus(null));
+            sendSatellite(receivedNanos);
         }
     }
 
     /** from Runnable */
     @Override public void run() {
+        /* called on #thread after #keepAlive has expired */
+
+        if (!hasLocation) {
+            encoderMetrics.dropped();
+            return;
+        }
+
+        long age = System.nanoTime() - lastLocationNanos;
+        if (age < KEEP_ALIVE_NANOS) {
+            /* a new location has arrived while this call was in the
+               message queue */
+            encoderMetrics.dropped();
+            if (!keepAlive.isScheduled())
+                wheel.schedule(keepAlive, KEEP_ALIVE_NANOS - age);
+            return;
+        }
+
         /* requeue the timer with a fresh duration */
-        timer.postDelayed(this, 5000);
+        wheel.schedule(keepAlive, KEEP_ALIVE_NANOS);
+
+        final long cpu = adaptiveInterval ? Debug.threadCpuTimeNanos() : 0;
+        sendLocation(keepAlivePostedNanos);
+        if (adaptiveInterval)
+            motion.countFix(Debug.threadCpuTimeNanos() - cpu);
+    }
+
+    /**
+     * Receives the callbacks of one location provider.
+     * LocationManager identifies a subscription by its listener
+     * object, so each provider needs its own listener to be
+     * unsubscribed separately.
+     */
+    private final class ProviderListener implements LocationListener {
+        final String name;
+        final int mask;
+
+        ProviderListener(String _name, int _mask) {
+            name = _name;
+            mask = _mask;
+        }
+
+        /** from LocationListener */
+        @Override public void onLocationChanged(Location location) {
+            onLocation(this, location);
+        }
+
+        /** from LocationListener */
+        @Override public void onProviderDisabled(String provider) {
+            onUnavailable(this, R.string.status_disabled);
+        }
+
+        /** from LocationListener */
+        @Override public void onProviderEnabled(String provider) {
+            onAvailable(this, R.string.status_enabled);
+        }
+
+        /** from LocationListener */
+        @Override public void onStatusChanged(String provider, int status,
+                                              Bundle extras) {
+            switch (status) {
+            case LocationProvider.OUT_OF_SERVICE:
+            case LocationProvider.TEMPORARILY_UNAVAILABLE:
+                onUnavailable(this, R.string.status_unavailable);
+                break;
+
+            case LocationProvider.AVAILABLE:
+                onAvailable(this, R.string.status_ok);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Receives the callbacks of a #FixProvider on its thread, and
+     * hands them over to #thread.  If #thread falls behind, only the
+     * latest fix and satellite status are kept, like a real receiver
+     * whose output is not read fast enough.
+     */
+    private final class ProviderFeed implements FixProvider.Listener {
+        /* the pending data; protected by "this" */
+        private final Fix pendingFix = new Fix();
+        private final SatelliteStatus pendingSatellites = new SatelliteStatus();
+        private boolean fixPending, satellitesPending;
+        private long fixNanos, satellitesNanos;
+
+        /** the provider being fed; callbacks from others are
+            stale */
+        private FixProvider provider;
+
+        private final Runnable fixRunnable = new Runnable() {
+                @Override public void run() {
+                    final long cpu = adaptiveInterval
+                        ? Debug.threadCpuTimeNanos() : 0;
+                    final long now;
+                    synchronized(ProviderFeed.this) {
+                        if (!fixPending)
+                            /* already handled, or counted as
+                               dropped by open() */
+                            return;
+
+                        if (!isCurrent()) {
+                            fixPending = false;
+                            encoderMetrics.dropped();
+                            return;
+                        }
+
+                        incoming.set(pendingFix);
+                        now = fixNanos;
+                        fixPending = false;
+                    }
 
-        sendLocation(location);
+                    selector.accept(incoming, now);
+                    publishFix(now, cpu);
+                }
+            };
+
+        private final Runnable satellitesRunnable = new Runnable() {
+                @Override public void run() {
+                    final long now;
+                    synchronized(ProviderFeed.this) {
+                        if (!satellitesPending)
+                            /* already handled, or counted as
+                               dropped by open() */
+                            return;
+
+                        if (!isCurrent()) {
+                            satellitesPending = false;
+                            encoderMetrics.dropped();
+                            return;
+                        }
+
+                        satellites.set(pendingSatellites);
+                        now = satellitesNanos;
+                        satellitesPending = false;
+                    }
+
+                    sendSatellite(now);
+                }
+            };
+
+        /**
+         * Must be called on #thread.
+         */
+        synchronized void open(FixProvider _provider) {
+            provider = _provider;
+
+            /* the posted runnables will find nothing to do */
+            if (fixPending)
+                encoderMetrics.dropped();
+            if (satellitesPending)
+                encoderMetrics.dropped();
+            fixPending = satellitesPending = false;
+        }
+
+        /**
+         * Must be called on #thread.
+         */
+        synchronized void close() {
+            provider = null;
+        }
+
+        /**
+         * Is the provider still the current one?  Must be called on
+         * #thread.
+         */
+        private synchronized boolean isCurrent() {
+            return provider != null && provider == fixProvider;
+        }
+
+        /** from FixProvider.Listener */
+        @Override public void onFix(Fix fix) {
+            synchronized(this) {
+                pendingFix.set(fix);
+                fixNanos = System.nanoTime();
+                if (fixPending)
+                    /* already posted */
+                    return;
+
+                fixPending = true;
+                encoderMetrics.enqueued();
+            }
+
+            handler.post(fixRunnable);
+        }
+
+        /** from FixProvider.Listener */
+        @Override public void onSatellites(SatelliteStatus status) {
+            synchronized(this) {
+                pendingSatellites.set(status);
+                satellitesNanos = System.nanoTime();
+                if (satellitesPending)
+                    return;
+
+                satellitesPending = true;
+                encoderMetrics.enqueued();
+            }
+
+            handler.post(satellitesRunnable);
+        }
+
+        /** from FixProvider.Listener */
+        @Override public void onUnavailable() {
+            handler.post(new Runnable() {
+                    @Override public void run() {
+                        if (!isCurrent())
+                            return;
+
+                        setStatus(R.string.status_unavailable);
+                        clearLocation();
+                    }
+                });
+        }
+
+        /** from FixProvider.Listener */
+        @Override public void onAvailable() {
+            handler.post(new Runnable() {
+                    @Override public void run() {
+                        if (isCurrent())
+                            setStatus(R.string.status_ok);
+                    }
+                });
+        }
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+/**
+ * Counters describing one stage of the output pipeline: how many
+ * items are waiting, how many were processed or dropped, and how
+ * long processing took.
+ */
+final class StageMetrics {
+    /**
+     * An immutable copy of the counters.
+     */
+    static final class Snapshot {
+        final String name;
+        final int queueDepth, maxQueueDepth;
+        final long processed, dropped;
+        final long totalLatencyNanos, maxLatencyNanos;
+
+        Snapshot(String _name, int _queueDepth, int _maxQueueDepth,
+                 long _processed, long _dropped,
+                 long _totalLatencyNanos, long _maxLatencyNanos) {
+            name = _name;
+            queueDepth = _queueDepth;
+            maxQueueDepth = _maxQueueDepth;
+            processed = _processed;
+            dropped = _dropped;
+            totalLatencyNanos = _totalLatencyNanos;
+            maxLatencyNanos = _maxLatencyNanos;
+        }
+
+        long averageLatencyNanos() {
+            return processed > 0 ? totalLatencyNanos / processed : 0;
+        }
+
+        /** from Object */
+        @Override public String toString() {
+            return name + ": depth=" + queueDepth + "/" + maxQueueDepth +
+                " processed=" + processed + " dropped=" + dropped +
+                " latency=" + averageLatencyNanos() / 1000 + "us" +
+                " max=" + maxLatencyNanos / 1000 + "us";
+        }
+    }
+
+    final String name;
+
+    private int queueDepth, maxQueueDepth;
+    private long processed, dropped;
+    private long totalLatencyNanos, maxLatencyNanos;
+
+    StageMetrics(String _name) {
+        name = _name;
+    }
+
+    /**
+     * An item has been queued for this stage.
+     */
+    synchronized void enqueued() {
+        ++queueDepth;
+        if (queueDepth > maxQueueDepth)
+            maxQueueDepth = queueDepth;
+    }
+
+    /**
+     * A queued item was discarded without being processed.
+     */
+    synchronized void dropped() {
+        --queueDepth;
+        ++dropped;
+    }
+
+    /**
+     * A queued item has been processed.
+     *
+     * @param latencyNanos the time between enqueued() and the end of
+     * processing
+     */
+    synchronized void processed(long latencyNanos) {
+        --queueDepth;
+        ++processed;
+        totalLatencyNanos += latencyNanos;
+        if (latencyNanos > maxLatencyNanos)
+            maxLatencyNanos = latencyNanos;
+    }
+
+    synchronized Snapshot snapshot() {
+        return new Snapshot(name, queueDepth, maxQueueDepth,
+                            processed, dropped,
+                            totalLatencyNanos, maxLatencyNanos);
+    }
+}
@@ -21,9 +21,13 @@ package name.kellermann.max.bluenmea;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.ServerSocket;
-import android.util.Log;
 
 class TCPClient extends ThreadedStreamClient {
+    /** a small send buffer, so a slow reader makes writes block
+        early and the #LinkScheduler notices, instead of sentences
+        piling up in the kernel */
+    private static final int SEND_BUFFER_SIZE = 4096;
+
     Socket socket;
     String address;
 
@@ -31,6 +35,7 @@ class TCPClient extends ThreadedStreamClient {
         super(_listener, _socket.getOutputStream());
 
         socket = _socket;
+        socket.setSendBufferSize(SEND_BUFFER_SIZE);
         address = socket.getInetAddress().getHostAddress() +
             ":" + socket.getPort();
     }
@@ -53,6 +58,37 @@ class TCPClient extends ThreadedStreamClient {
     }
 }
 
+class BinaryTCPClient extends BinaryStreamClient {
+    Socket socket;
+    String address;
+
+    public BinaryTCPClient(Listener _listener, Socket _socket)
+        throws IOException {
+        super(_listener, _socket.getOutputStream());
+
+        socket = _socket;
+        address = socket.getInetAddress().getHostAddress() +
+            ":" + socket.getPort() + " (binary)";
+    }
+
+    /** from Object */
+    @Override public String toString() {
+        return address;
+    }
+
+    /** from Client */
+    @Override public void close() {
+        super.close();
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        socket = null;
+    }
+}
+
 public class TCPServer extends Server
     implements Runnable {
     private static final String TAG = "BlueNMEA";
@@ -61,8 +97,20 @@ public class TCPServer extends Server
     ServerSocket socket;
     Thread thread;
 
-    public TCPServer(Listener _listener, int port) throws IOException {
+    /** send #BinaryEncoder records instead of NMEA? */
+    final boolean binary;
+
+    public TCPServer(Listener _listener, Admission _admission, int port)
+        throws IOException {
+        this(_listener, _admission, port, false);
+    }
+
+    public TCPServer(Listener _listener, Admission _admission, int port,
+                     boolean _binary)
+        throws IOException {
+        super(_admission);
         listener = _listener;
+        binary = _binary;
         socket = new ServerSocket(port);
         thread = new Thread(this);
         thread.start();
@@ -75,16 +123,57 @@ public class TCPServer extends Server
         thread.join();
     }
 
+    /**
+     * Admits a new connection and announces its client.  On error,
+     * the caller closes the connection.
+     */
+    private void serve(Socket s) throws IOException {
+        s.shutdownInput();
+
+        Admission.Ticket ticket;
+        try {
+            ticket = admission.admit(s.getInetAddress().getHostAddress());
+        } catch (Admission.RefusedException e) {
+            refuse(s.getOutputStream(), e.getMessage());
+            s.close();
+            return;
+        }
+
+        Client client;
+        try {
+            client = binary
+                ? new BinaryTCPClient(listener, s)
+                : new TCPClient(listener, s);
+        } catch (IOException e) {
+            ticket.release();
+            throw e;
+        }
+
+        client.setTicket(ticket);
+        listener.onNewClient(client);
+        client.start();
+    }
+
     @Override public void run() {
         try {
             while (true) {
                 Socket s = socket.accept();
-                s.shutdownInput();
-                listener.onNewClient(new TCPClient(listener, s));
+
+                try {
+                    serve(s);
+                } catch (IOException e) {
+                    /* only this connection has failed; keep
+                       accepting the others */
+                    Logger.e(TAG, e.getMessage());
+                    try {
+                        s.close();
+                    } catch (IOException e2) {
+                    }
+                }
             }
         } catch (IOException e) {
             if (socket != null)
-                Log.e(TAG, e.getMessage());
+                Logger.e(TAG, e.getMessage());
         }
     }
 }
@@ -18,83 +18,79 @@
 
 package name.kellermann.max.bluenmea;
 
-import java.util.LinkedList;
-import java.io.IOException;
 import java.io.OutputStream;
-import android.util.Log;
 
-class ThreadedStreamClient extends Client implements Runnable {
-    private static final String TAG = "BlueNMEA";
+/**
+ * A client which receives NMEA sentences and writes them line by
+ * line; the #LinkScheduler decides which line is written next.
+ */
+class ThreadedStreamClient extends QueuedWriterClient<String> {
+    /** decides which line is written next; protected by "this" */
+    final LinkScheduler scheduler = new LinkScheduler();
 
-    OutputStream os;
-    LinkedList<String> queue = new LinkedList<String>();
-    Thread thread = new Thread(this);
+    /** the queued line which is being traced, and its trace id;
+        protected by "this" */
+    String tracedLine;
+    long tracedId;
 
     public ThreadedStreamClient(Listener _listener, OutputStream _stream) {
-        super(_listener);
-
-        os = _stream;
-
-        thread.start();
+        super(_listener, _stream);
     }
 
     /** from Client */
-    @Override public void close() {
-        synchronized(this) {
-            try {
-                os.close();
-            } catch (IOException e) {
-            }
-
-            os = null;
-
-            notify();
-        }
+    @Override protected synchronized void setQueueBudget(int bytes) {
+        scheduler.setMaxQueuedBytes(bytes);
+    }
 
-        try {
-            thread.join();
-        } catch (InterruptedException e) {
-        }
+    /** from Client */
+    @Override public synchronized Stats getStats() {
+        return scheduler.getStats();
     }
 
-    /** from Source.NMEAListener */
+    /** from FanOut.NMEAListener */
     @Override public void onLine(String line) {
+        final long traceId = takeTraceId();
+
         synchronized(this) {
-            /* ensure the queue doesn't grow too large */
-            while (queue.size() > 16)
-                queue.removeFirst();
+            scheduler.offer(line);
 
-            queue.add(line);
+            if (traceId != 0) {
+                trace.record(traceId, Trace.QUEUED, id);
+                tracedLine = line;
+                tracedId = traceId;
+            }
 
             /* wake up the thread */
             notify();
         }
     }
 
-    /** from Runnable */
-    @Override public void run() {
-        try {
-            while (os != null) {
-                String line;
-                synchronized(this) {
-                    wait();
+    /** from QueuedWriterClient */
+    @Override protected String poll() {
+        return scheduler.poll();
+    }
 
-                    if (os == null)
-                        break;
+    /** from QueuedWriterClient */
+    @Override protected long getWaitNanos() {
+        return scheduler.getPacingDelayNanos();
+    }
 
-                    line = queue.removeFirst();
-                }
+    /** from QueuedWriterClient */
+    @Override protected long takeItemTraceId(String line) {
+        if (line != tracedLine)
+            return 0;
 
-                if (line != null) {
-                    line += "\n";
-                    os.write(line.getBytes());
-                }
-            }
-        } catch (InterruptedException e) {
-            Log.e(TAG, e.getMessage());
-        } catch (IOException e) {
-            if (os != null)
-                failed(e);
-        }
+        tracedLine = null;
+        return tracedId;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected byte[] encode(String line) {
+        return (line + "\n").getBytes();
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected void onWritten(String line, int length, long nanos) {
+        scheduler.onWritten(length, nanos);
     }
 }
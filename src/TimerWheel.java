@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+package name.kellermann.max.bluenmea;
+
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel: timers are kept in intrusive linked lists in
+ * a ring of slots, one slot per tick.  Scheduling and cancelling are
+ * O(1) and do not allocate; each tick only visits one slot.
+ *
+ * The time source is a #Clock, so the wheel can be driven by a
+ * virtual clock: without start(), nothing happens until advance() is
+ * called.  After start(), a thread calls advance() once per tick
+ * (and sleeps while no timer is scheduled).  Timer callbacks are
+ * invoked on the thread which calls advance(), without holding the
+ * wheel's lock.
+ */
+final class TimerWheel implements Runnable {
+    interface Clock {
+        long nanoTime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+            @Override public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+    /**
+     * A timer which can be scheduled repeatedly.  An instance may be
+     * scheduled in only one wheel.
+     */
+    abstract static class Timer {
+        /** links within a slot */
+        private Timer prev, next;
+
+        /** the tick at which this timer expires */
+        private long deadline;
+
+        private boolean scheduled;
+
+        /**
+         * Called on the wheel's thread when the timer expires.
+         */
+        protected abstract void onTimer();
+
+        boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final Clock clock;
+    private final long tickNanos;
+    private final Timer[] slots;
+    private final int mask;
+
+    /** the clock value corresponding to tick 0 */
+    private final long origin;
+
+    /** the last tick processed by advance() */
+    private long currentTick;
+
+    /** the number of scheduled timers */
+    private int size;
+
+    /** the timers collected by advance(); only accessed by the
+        thread calling it.  The timers stay linked in their slots
+        until they fire, so schedule() and cancel() from other
+        threads or from callbacks never touch this list. */
+    private final ArrayList<Timer> expired = new ArrayList<Timer>();
+
+    private Thread thread;
+    private boolean closed;
+
+    /**
+     * @param _tickNanos the resolution
+     * @param nSlots the number of slots; must be a power of two.
+     * Timers which are more than nSlots ticks away stay in their
+     * slot for more than one revolution.
+     */
+    TimerWheel(Clock _clock, long _tickNanos, int nSlots) {
+        if (nSlots <= 0 || (nSlots & (nSlots - 1)) != 0)
+            throw new IllegalArgumentException("Number of slots must be a power of two");
+
+        clock = _clock;
+        tickNanos = _tickNanos;
+        slots = new Timer[nSlots];
+        mask = nSlots - 1;
+        origin = clock.nanoTime();
+    }
+
+    private long toTick(long nanos) {
+        return (nanos - origin) / tickNanos;
+    }
+
+    /**
+     * Schedules the timer (again).  If it is already scheduled, the
+     * old deadline is discarded.
+     *
+     * @param delayNanos the minimum delay; it is rounded up to the
+     * next tick
+     */
+    synchronized void schedule(Timer timer, long delayNanos) {
+        if (timer.scheduled)
+            unlink(timer);
+
+        long ticks = (delayNanos + tickNanos - 1) / tickNanos;
+        if (ticks < 1)
+            ticks = 1;
+
+        long now = toTick(clock.nanoTime());
+        if (size == 0 && now > currentTick)
+            /* no timers: skip the idle ticks */
+            currentTick = now;
+
+        /* relative to the clock, not to currentTick, in case
+           advance() is lagging */
+        long deadline = Math.max(now, currentTick) + ticks;
+        timer.deadline = deadline;
+
+        int slot = (int)(deadline & mask);
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+        timer.scheduled = true;
+
+        if (++size == 1)
+            /* wake up the thread, which may be idle */
+            notify();
+    }
+
+    synchronized void cancel(Timer timer) {
+        if (timer.scheduled)
+            unlink(timer);
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[(int)(timer.deadline & mask)] = timer.next;
+
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+
+        timer.prev = timer.next = null;
+        timer.scheduled = false;
+        --size;
+    }
+
+    /**
+     * Copies the expired timers of all ticks up to the clock's
+     * current time into #expired, without unlinking them.
+     */
+    private synchronized void collectExpired() {
+        final long now = toTick(clock.nanoTime());
+
+        while (currentTick < now && size > 0) {
+            ++currentTick;
+
+            int slot = (int)(currentTick & mask);
+            for (Timer timer = slots[slot]; timer != null;
+                 timer = timer.next)
+                if (timer.deadline <= currentTick)
+                    expired.add(timer);
+        }
+
+        /* no timers: skip the idle ticks */
+        if (size == 0 && currentTick < now)
+            currentTick = now;
+    }
+
+    /**
+     * Unlinks the timer if it is still scheduled and due; it may
+     * have been cancelled or rescheduled since collectExpired().
+     *
+     * @return true if the timer shall fire
+     */
+    private synchronized boolean claim(Timer timer) {
+        if (!timer.scheduled || timer.deadline > currentTick)
+            return false;
+
+        unlink(timer);
+        return true;
+    }
+
+    /**
+     * Fires all timers which have expired according to the clock.
+     *
+     * @return the number of timers fired
+     */
+    int advance() {
+        collectExpired();
+
+        int n = 0;
+        for (int i = 0; i < expired.size(); ++i) {
+            Timer timer = expired.get(i);
+            if (claim(timer)) {
+                timer.onTimer();
+                ++n;
+            }
+        }
+
+        expired.clear();
+        return n;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Starts a thread which advances the wheel in real time.  Only
+     * useful with #SYSTEM_CLOCK.
+     */
+    synchronized void start() {
+        thread = new Thread(this, "BlueNMEA timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void close() {
+        Thread t;
+        synchronized(this) {
+            closed = true;
+            notify();
+            t = thread;
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /** from Runnable */
+    @Override public void run() {
+        final long tickMillis = Math.max(1, tickNanos / 1000000);
+
+        while (true) {
+            synchronized(this) {
+                try {
+                    if (size == 0 && !closed)
+                        wait();
+                    else if (!closed)
+                        wait(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (closed)
+                    return;
+            }
+
+            advance();
+        }
+    }
+}
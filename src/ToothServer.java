@@ -83,8 +83,10 @@ public class ToothServer extends Server
     BluetoothServerSocket socket;
     Thread thread;
 
-    public ToothServer(Listener _listener)
+    public ToothServer(Listener _listener, Admission _admission)
         throws IOException, UnavailableException {
+        super(_admission);
+
         BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
         if (adapter == null)
             throw new UnavailableException("No Bluetooth adapter found");
@@ -106,11 +108,49 @@ public class ToothServer extends Server
         thread.join();
     }
 
+    /**
+     * Admits a new connection and announces its client.  On error,
+     * the caller closes the connection.
+     */
+    private void serve(BluetoothSocket s) throws IOException {
+        Admission.Ticket ticket;
+        try {
+            ticket = admission.admit(s.getRemoteDevice().getAddress());
+        } catch (Admission.RefusedException e) {
+            refuse(s.getOutputStream(), e.getMessage());
+            s.close();
+            return;
+        }
+
+        Client client;
+        try {
+            client = new ToothClient(listener, s);
+        } catch (IOException e) {
+            ticket.release();
+            throw e;
+        }
+
+        client.setTicket(ticket);
+        listener.onNewClient(client);
+        client.start();
+    }
+
     @Override public void run() {
         try {
             while (true) {
                 BluetoothSocket s = socket.accept();
-                listener.onNewClient(new ToothClient(listener, s));
+
+                try {
+                    serve(s);
+                } catch (IOException e) {
+                    /* only this connection has failed; keep
+                       accepting the others */
+                    Log.e(TAG, e.getMessage());
+                    try {
+                        s.close();
+                    } catch (IOException e2) {
+                    }
+                }
             }
         } catch (IOException e) {
             if (socket != null)
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the path of sampled fix epochs through the pipeline: each
+ * sampled epoch gets a trace id, and each stage records a
+ * System.nanoTime() timestamp for it into a fixed-size ring.  The
+ * ring can be exported as Chrome/Perfetto trace JSON, with one span
+ * per stage (encode, I/O queue, fan-out, client queue, write).
+ *
+ * Recording is lock-free and allocates nothing; epochs which are not
+ * sampled (trace id 0) cost one comparison per stage.  When the ring
+ * is full, the oldest events are overwritten.
+ */
+final class Trace {
+    /* the event kinds, in pipeline order */
+    static final int RECEIVED = 0;
+    static final int ENCODED = 1;
+    static final int DISPATCHED = 2;
+    static final int DELIVERED = 3;
+    static final int QUEUED = 4;
+    static final int WRITE_BEGIN = 5;
+    static final int WRITE_END = 6;
+
+    /** the name of the span which ends with each event kind, or
+        null if the kind starts a lane */
+    private static final String[] SPAN_NAMES = {
+        null, "encode", "io queue", "fan-out",
+        null, "client queue", "write",
+    };
+
+    /** the lane of the pipeline stages; clients use their id */
+    static final int PIPELINE = 0;
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    /** trace one of this many fixes by default */
+    static final int DEFAULT_SAMPLE_INTERVAL = 10;
+
+    private final int mask;
+
+    /** the position of each entry plus one, or 0 while it is being
+        written; a reader accepts an entry only if this is the same
+        before and after reading it */
+    private final AtomicLongArray positions;
+    private final AtomicLongArray ids, times;
+    private final AtomicIntegerArray kinds, lanes;
+
+    /** the position of the next entry */
+    private final AtomicLong next = new AtomicLong();
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /** 0 disables sampling */
+    private volatile int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+
+    /** counts calls to #sample(); only accessed by the thread
+        calling it */
+    private int sampleCounter;
+
+    /**
+     * @param capacity the number of events; rounded up to a power of
+     * two
+     */
+    Trace(int capacity) {
+        int n = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mask = n - 1;
+        positions = new AtomicLongArray(n);
+        ids = new AtomicLongArray(n);
+        times = new AtomicLongArray(n);
+        kinds = new AtomicIntegerArray(n);
+        lanes = new AtomicIntegerArray(n);
+    }
+
+    /**
+     * @param interval trace one of this many epochs, or 0 to disable
+     * tracing
+     */
+    void setSampleInterval(int interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException("Invalid sample interval: " +
+                                               interval);
+
+        sampleInterval = interval;
+    }
+
+    /**
+     * Decides whether the next epoch is traced.  Must always be
+     * called from the same thread.
+     *
+     * @return a new trace id, or 0 if this epoch is not traced
+     */
+    long sample() {
+        final int interval = sampleInterval;
+        if (interval == 0 || ++sampleCounter < interval)
+            return 0;
+
+        sampleCounter = 0;
+        return nextId.getAndIncrement();
+    }
+
+    void record(long id, int kind, int lane) {
+        record(id, kind, lane, System.nanoTime());
+    }
+
+    /**
+     * Records an event.  May be called from any thread.
+     */
+    void record(long id, int kind, int lane, long nanos) {
+        final long position = next.getAndIncrement();
+        final int i = (int)position & mask;
+
+        positions.set(i, 0);
+        ids.set(i, id);
+        times.set(i, nanos);
+        kinds.set(i, kind);
+        lanes.set(i, lane);
+        positions.set(i, position + 1);
+    }
+
+    private static final class Event {
+        final long id, nanos;
+        final int kind, lane;
+
+        Event(long _id, long _nanos, int _kind, int _lane) {
+            id = _id;
+            nanos = _nanos;
+            kind = _kind;
+            lane = _lane;
+        }
+    }
+
+    /**
+     * Copies the consistent events from the ring, oldest first.
+     */
+    private Event[] collect() {
+        final long end = next.get();
+        final long begin = Math.max(0, end - (mask + 1));
+        Event[] events = new Event[(int)(end - begin)];
+        int n = 0;
+
+        for (long position = begin; position < end; ++position) {
+            final int i = (int)position & mask;
+            if (positions.get(i) != position + 1)
+                /* being written, or overwritten already */
+                continue;
+
+            Event e = new Event(ids.get(i), times.get(i),
+                                kinds.get(i), lanes.get(i));
+            if (positions.get(i) == position + 1)
+                events[n++] = e;
+        }
+
+        Event[] result = new Event[n];
+        System.arraycopy(events, 0, result, 0, n);
+        return result;
+    }
+
+    private static void appendMicros(StringBuilder sb, long nanos) {
+        sb.append(nanos / 1000).append('.');
+        NMEA.appendDigits(sb, nanos % 1000, 3);
+    }
+
+    private static void appendEvent(StringBuilder sb, String name,
+                                    char phase, Event e, long base) {
+        sb.append("{\"name\":\"").append(name)
+            .append("\",\"cat\":\"");
+        if (e.lane == PIPELINE)
+            sb.append("pipeline");
+        else
+            sb.append("client ").append(e.lane);
+        sb.append("\",\"ph\":\"").append(phase)
+            .append("\",\"id\":").append(e.id)
+            .append(",\"pid\":1,\"tid\":").append(e.lane)
+            .append(",\"ts\":");
+        appendMicros(sb, e.nanos - base);
+        sb.append("}");
+    }
+
+    /**
+     * Writes the ring as Chrome/Perfetto trace JSON: each span is a
+     * pair of async events ("b"/"e") whose id is the trace id, so
+     * each sampled epoch shows up as its own track.
+     */
+    void writeJson(Writer out) throws IOException {
+        final Event[] events = collect();
+        long base = Long.MAX_VALUE;
+        for (Event e : events)
+            if (e.nanos < base)
+                base = e.nanos;
+
+        /* the previous event of each (trace id, lane) */
+        final HashMap<String, Event> previous = new HashMap<String, Event>();
+        final StringBuilder sb = new StringBuilder(256);
+        boolean first = true;
+
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+
+        for (Event e : events) {
+            final String key = e.id + "/" + e.lane;
+            final Event p = previous.put(key, e);
+            final String name = SPAN_NAMES[e.kind];
+            if (p == null || name == null || p.kind >= e.kind)
+                continue;
+
+            sb.setLength(0);
+            if (!first)
+                sb.append(",\n");
+            first = false;
+
+            appendEvent(sb, name, 'b', p, base);
+            sb.append(",\n");
+            appendEvent(sb, name, 'e', e, base);
+            out.append(sb);
+        }
+
+        out.write("\n]}\n");
+    }
+}
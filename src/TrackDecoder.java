@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The decoder for the stream format written by #TrackEncoder.
+ *
+ * Not thread-safe.
+ */
+final class TrackDecoder {
+    private final InputStream in;
+
+    private long time;
+    private int latitude, longitude, altitude;
+
+    /** the number of bytes read, and the end of the last complete
+        record */
+    private long position, recordEnd;
+
+    /**
+     * @param _in the stream; it should be buffered, because it is
+     * read one byte at a time
+     */
+    TrackDecoder(InputStream _in) {
+        in = _in;
+    }
+
+    /**
+     * Returns the number of bytes up to the end of the last complete
+     * record returned by next().
+     */
+    long getRecordEnd() {
+        return recordEnd;
+    }
+
+    private int read() throws IOException {
+        final int b = in.read();
+        if (b >= 0)
+            ++position;
+        return b;
+    }
+
+    static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = read();
+            if (b < 0)
+                throw new EOFException("Truncated record");
+
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Reads the next fix.
+     *
+     * @return false at the end of the stream; a truncated record at
+     * the end (e.g. after a crash) is treated like the end
+     */
+    boolean next(Fix fix) throws IOException {
+        final int flags = read();
+        if (flags < 0)
+            return false;
+
+        if ((flags & TrackEncoder.FLAG_RESET) != 0) {
+            time = 0;
+            latitude = longitude = altitude = 0;
+        }
+
+        try {
+            time += unZigZag(readVarint());
+            latitude += (int)unZigZag(readVarint());
+            longitude += (int)unZigZag(readVarint());
+
+            fix.hasAltitude = (flags & TrackEncoder.FLAG_ALTITUDE) != 0;
+            if (fix.hasAltitude)
+                altitude += (int)unZigZag(readVarint());
+
+            fix.hasSpeed = (flags & TrackEncoder.FLAG_SPEED) != 0;
+            fix.speed = fix.hasSpeed ? readVarint() / 100f : 0;
+
+            fix.hasBearing = (flags & TrackEncoder.FLAG_BEARING) != 0;
+            fix.bearing = fix.hasBearing ? readVarint() / 10f : 0;
+        } catch (EOFException e) {
+            return false;
+        }
+
+        fix.time = time;
+        fix.latitude = latitude / 1e7;
+        fix.longitude = longitude / 1e7;
+        fix.altitude = fix.hasAltitude ? altitude / 10. : 0;
+        fix.accuracy = 0;
+        fix.hdop = 0;
+        fix.satellites = -1;
+        fix.provider = Fix.PROVIDER_OTHER;
+        fix.estimated = false;
+        recordEnd = position;
+        return true;
+    }
+}
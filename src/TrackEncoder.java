@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes fixes in a compact stream format for track recordings: each
+ * value is stored as the difference to the previous fix in
+ * fixed-point, zig-zag encoded as a variable-length integer (7 bits
+ * per byte, least significant first, high bit set on all but the
+ * last byte).  A typical 1 Hz fix takes about 10 bytes.
+ *
+ * Record layout:
+ *
+ * <pre>
+ *  u8      flags (FLAG_*)
+ *  varint  time delta [ms]
+ *  varint  latitude delta [1e-7 degrees]
+ *  varint  longitude delta [1e-7 degrees]
+ *  varint  altitude delta [dm], if #FLAG_ALTITUDE
+ *  varint  speed [cm/s] (not a delta), if #FLAG_SPEED
+ *  varint  bearing [1/10 degrees] (not a delta), if #FLAG_BEARING
+ * </pre>
+ *
+ * The first record of each encoder has #FLAG_RESET, and its
+ * "deltas" are relative to zero, so a new session can be appended to
+ * an existing file.
+ *
+ * Not thread-safe.
+ */
+final class TrackEncoder {
+    static final int FLAG_RESET = 0x01;
+    static final int FLAG_ALTITUDE = 0x02;
+    static final int FLAG_SPEED = 0x04;
+    static final int FLAG_BEARING = 0x08;
+
+    /** the maximum size of one record */
+    static final int MAX_RECORD = 1 + 10 + 5 + 5 + 5 + 5 + 5;
+
+    private final OutputStream out;
+
+    private final byte[] buffer = new byte[MAX_RECORD];
+
+    private boolean started;
+
+    /** the previous fix in fixed-point */
+    private long time;
+    private int latitude, longitude, altitude;
+
+    /** the number of bytes written */
+    private long bytes;
+
+    TrackEncoder(OutputStream _out) {
+        out = _out;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static int putVarint(byte[] b, int p, long value) {
+        while ((value & ~0x7fL) != 0) {
+            b[p++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        b[p++] = (byte)value;
+        return p;
+    }
+
+    void write(Fix fix) throws IOException {
+        final byte[] b = buffer;
+        int flags = 0;
+
+        if (!started) {
+            flags |= FLAG_RESET;
+            time = 0;
+            latitude = longitude = altitude = 0;
+            started = true;
+        }
+
+        if (fix.hasAltitude)
+            flags |= FLAG_ALTITUDE;
+        if (fix.hasSpeed)
+            flags |= FLAG_SPEED;
+        if (fix.hasBearing)
+            flags |= FLAG_BEARING;
+
+        b[0] = (byte)flags;
+
+        final int lat = (int)Math.round(fix.latitude * 1e7);
+        final int lon = (int)Math.round(fix.longitude * 1e7);
+
+        int p = putVarint(b, 1, zigZag(fix.time - time));
+        p = putVarint(b, p, zigZag((long)lat - latitude));
+        p = putVarint(b, p, zigZag((long)lon - longitude));
+
+        time = fix.time;
+        latitude = lat;
+        longitude = lon;
+
+        if (fix.hasAltitude) {
+            final int alt = (int)Math.round(fix.altitude * 10);
+            p = putVarint(b, p, zigZag((long)alt - altitude));
+            altitude = alt;
+        }
+
+        if (fix.hasSpeed)
+            p = putVarint(b, p, Math.max(0, Math.round(fix.speed * 100.)));
+
+        if (fix.hasBearing)
+            p = putVarint(b, p, (Math.round(fix.bearing * 10.) % 3600 + 3600) % 3600);
+
+        out.write(b, 0, p);
+        bytes += p;
+    }
+}
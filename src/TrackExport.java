@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Converts a recorded track (#TrackDecoder) to NMEA or GPX, one fix
+ * at a time, so the track never needs to fit into memory.
+ */
+final class TrackExport {
+    private TrackExport() {}
+
+    /**
+     * Writes GGA and RMC sentences for each fix.
+     *
+     * @return the number of fixes
+     */
+    static int writeNmea(TrackDecoder decoder, Writer out, int decimals)
+        throws IOException {
+        final Fix fix = new Fix();
+        final StringBuilder sb = new StringBuilder(256);
+        int n = 0;
+
+        while (decoder.next(fix)) {
+            sb.setLength(0);
+            NMEA.appendGga(sb, fix, decimals);
+            sb.append("\r\n");
+            NMEA.appendRmc(sb, fix, decimals);
+            sb.append("\r\n");
+            out.append(sb);
+            ++n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Appends an ISO 8601 UTC time ("2011-10-19T00:00:00Z").
+     */
+    static void appendIsoTime(StringBuilder sb, long time) {
+        long date = NMEA.civilDate(time);
+        NMEA.appendInt(sb, date / 10000);
+        sb.append('-');
+        NMEA.appendDigits(sb, date / 100 % 100, 2);
+        sb.append('-');
+        NMEA.appendDigits(sb, date % 100, 2);
+        sb.append('T');
+
+        long millisOfDay = time % 86400000L;
+        if (millisOfDay < 0)
+            millisOfDay += 86400000L;
+        int secondOfDay = (int)(millisOfDay / 1000);
+        NMEA.appendDigits(sb, secondOfDay / 3600, 2);
+        sb.append(':');
+        NMEA.appendDigits(sb, secondOfDay / 60 % 60, 2);
+        sb.append(':');
+        NMEA.appendDigits(sb, secondOfDay % 60, 2);
+
+        int millis = (int)(millisOfDay % 1000);
+        if (millis != 0) {
+            sb.append('.');
+            NMEA.appendDigits(sb, millis, 3);
+        }
+
+        sb.append('Z');
+    }
+
+    /**
+     * Writes a GPX 1.1 document with one track segment.
+     *
+     * @return the number of fixes
+     */
+    static int writeGpx(TrackDecoder decoder, Writer out) throws IOException {
+        final Fix fix = new Fix();
+        final StringBuilder sb = new StringBuilder(256);
+        int n = 0;
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                  "<gpx version=\"1.1\" creator=\"BlueNMEA\"" +
+                  " xmlns=\"http://www.topografix.com/GPX/1/1\">\n" +
+                  "<trk><trkseg>\n");
+
+        while (decoder.next(fix)) {
+            sb.setLength(0);
+            sb.append("<trkpt lat=\"");
+            NMEA.appendFixed(sb, fix.latitude, 7);
+            sb.append("\" lon=\"");
+            NMEA.appendFixed(sb, fix.longitude, 7);
+            sb.append("\">");
+            if (fix.hasAltitude) {
+                sb.append("<ele>");
+                NMEA.appendFixed(sb, fix.altitude, 1);
+                sb.append("</ele>");
+            }
+            sb.append("<time>");
+            appendIsoTime(sb, fix.time);
+            sb.append("</time></trkpt>\n");
+            out.append(sb);
+            ++n;
+        }
+
+        out.write("</trkseg></trk>\n</gpx>\n");
+        return n;
+    }
+}
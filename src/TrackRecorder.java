@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Records a fix stream: it is simplified by a #TrackSimplifier, and
+ * the kept fixes are appended to the indexed #TrackStore and to the
+ * compact log (#TrackEncoder) which is used for exports.
+ *
+ * The recorder owns the store.  Not thread-safe; all methods are
+ * called on the source thread, except #close() after that has
+ * finished.
+ */
+final class TrackRecorder implements TrackSimplifier.Listener {
+    static final String LOG_NAME = "track.bnt";
+
+    /** the default maximum error of the simplification in meters */
+    static final double DEFAULT_TOLERANCE = 5;
+
+    private final TrackStore store;
+
+    private final OutputStream logStream;
+    private final TrackEncoder log;
+
+    private final TrackSimplifier simplifier;
+
+    TrackRecorder(File directory, double tolerance) throws IOException {
+        store = new TrackStore(directory);
+
+        try {
+            File file = new File(directory, LOG_NAME);
+            repairLog(file);
+            logStream = new BufferedOutputStream(new FileOutputStream(file, true));
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+
+        log = new TrackEncoder(logStream);
+        simplifier = new TrackSimplifier(this, tolerance,
+                                         TrackSimplifier.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Truncates a partial record at the end of the log (after a
+     * crash).  Otherwise, the records appended after it would be
+     * decoded as its continuation, and all of them would be garbage.
+     */
+    static void repairLog(File file) throws IOException {
+        if (!file.exists())
+            return;
+
+        final long end;
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            TrackDecoder decoder = new TrackDecoder(in);
+            final Fix fix = new Fix();
+            while (decoder.next(fix)) {
+            }
+            end = decoder.getRecordEnd();
+        } finally {
+            in.close();
+        }
+
+        if (end < file.length()) {
+            RandomAccessFile f = new RandomAccessFile(file, "rw");
+            try {
+                f.setLength(end);
+            } finally {
+                f.close();
+            }
+        }
+    }
+
+    TrackStore getStore() {
+        return store;
+    }
+
+    /**
+     * Opens the compact log for reading, e.g. for #TrackExport.
+     */
+    static TrackDecoder openLog(File directory) throws IOException {
+        File file = new File(directory, LOG_NAME);
+        return new TrackDecoder(new BufferedInputStream(new FileInputStream(file)));
+    }
+
+    void append(Fix fix) throws IOException {
+        simplifier.add(fix);
+    }
+
+    /**
+     * Writes the most recent fix and all buffered data, e.g. when
+     * recording is stopped.
+     */
+    void flush() throws IOException {
+        simplifier.flush();
+        logStream.flush();
+        store.flush();
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+            logStream.close();
+        } finally {
+            store.close();
+        }
+    }
+
+    /** from TrackSimplifier.Listener */
+    @Override public void onPoint(Fix fix) throws IOException {
+        store.append(fix);
+        log.write(fix);
+    }
+}
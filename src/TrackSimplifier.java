@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.IOException;
+
+/**
+ * Drops fixes which lie on a straight line, with a bounded error:
+ * no dropped fix is further than the tolerance from the segment
+ * between the two kept fixes around it.
+ *
+ * This is the streaming ("opening window") variant of
+ * Douglas-Peucker: the fixes since the last kept one are buffered
+ * in a window of constant size, and the last buffered fix is kept
+ * when a new one would violate the tolerance, or when the window is
+ * full.  Each fix costs O(window) and no allocation.
+ *
+ * Not thread-safe.
+ */
+final class TrackSimplifier {
+    interface Listener {
+        /**
+         * A fix has been kept.  The object is reused by the
+         * simplifier.
+         */
+        void onPoint(Fix fix) throws IOException;
+    }
+
+    static final int DEFAULT_WINDOW = 64;
+
+    /** meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    private final Listener listener;
+
+    private final double tolerance2;
+
+    /** window[0] is the last kept fix (the anchor), followed by the
+        buffered ones */
+    private final Fix[] window;
+
+    /** the positions of the window in meters, relative to the
+        anchor */
+    private final double[] xs, ys;
+
+    private int count;
+
+    /** meters per degree of longitude at the anchor */
+    private double metersPerLongitude;
+
+    /**
+     * @param tolerance the maximum error in meters
+     * @param windowSize the maximum number of buffered fixes (at
+     * least 2)
+     */
+    TrackSimplifier(Listener _listener, double tolerance, int windowSize) {
+        if (windowSize < 2)
+            throw new IllegalArgumentException("Window too small: " + windowSize);
+
+        listener = _listener;
+        tolerance2 = tolerance * tolerance;
+        window = new Fix[windowSize];
+        for (int i = 0; i < windowSize; ++i)
+            window[i] = new Fix();
+        xs = new double[windowSize];
+        ys = new double[windowSize];
+    }
+
+    private void setAnchor(int i) {
+        Fix anchor = window[i];
+        window[i] = window[0];
+        window[0] = anchor;
+        xs[0] = ys[0] = 0;
+        count = 1;
+
+        metersPerLongitude = METERS_PER_DEGREE *
+            Math.cos(Math.toRadians(anchor.latitude));
+    }
+
+    /**
+     * Checks whether all buffered fixes are within the tolerance of
+     * the segment from the anchor to (x, y).
+     */
+    private boolean fits(double x, double y) {
+        final double length2 = x * x + y * y;
+
+        for (int i = 1; i < count; ++i) {
+            final double px = xs[i], py = ys[i];
+
+            /* the projection onto the segment, clamped to its ends */
+            double t = length2 > 0 ? (px * x + py * y) / length2 : 0;
+            if (t < 0)
+                t = 0;
+            else if (t > 1)
+                t = 1;
+
+            final double dx = px - t * x, dy = py - t * y;
+            if (dx * dx + dy * dy > tolerance2)
+                return false;
+        }
+
+        return true;
+    }
+
+    void add(Fix fix) throws IOException {
+        if (count == 0) {
+            window[0].set(fix);
+            setAnchor(0);
+            listener.onPoint(window[0]);
+            return;
+        }
+
+        double x = (fix.longitude - window[0].longitude) * metersPerLongitude;
+        double y = (fix.latitude - window[0].latitude) * METERS_PER_DEGREE;
+
+        if (count == window.length || !fits(x, y)) {
+            /* keep the previous fix and start a new segment there */
+            setAnchor(count - 1);
+            listener.onPoint(window[0]);
+
+            x = (fix.longitude - window[0].longitude) * metersPerLongitude;
+            y = (fix.latitude - window[0].latitude) * METERS_PER_DEGREE;
+        }
+
+        window[count].set(fix);
+        xs[count] = x;
+        ys[count] = y;
+        ++count;
+    }
+
+    /**
+     * Keeps the most recent fix, e.g. at the end of a recording.
+     */
+    void flush() throws IOException {
+        if (count > 1) {
+            setAnchor(count - 1);
+            listener.onPoint(window[0]);
+        }
+    }
+}
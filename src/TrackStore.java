@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * An append-only store of fixes on disk, with queries by time range
+ * and by proximity.
+ *
+ * The data file contains fixed-size records in the
+ * #BinaryEncoder fix payload format, in ascending time order.  The
+ * records are grouped into blocks of #BLOCK_RECORDS:
+ *
+ * - the sparse time index holds the time of each block's first
+ *   record in memory; it is rebuilt from the data file on open
+ * - the spatial index maps each grid cell of #CELL_DEGREES to the
+ *   blocks which have a record in it; it is kept in an append-only
+ *   index file of (cell, block) entries
+ *
+ * A query only reads the blocks it needs, one at a time into a
+ * reused buffer, so the file is never loaded into the heap.
+ *
+ * All methods are synchronized; fixes are appended on the source
+ * thread, and queries may run on any other thread.
+ */
+final class TrackStore {
+    static final String DATA_NAME = "track.dat";
+    static final String INDEX_NAME = "track.idx";
+
+    static final int RECORD_SIZE = BinaryEncoder.FIX_PAYLOAD;
+
+    static final int BLOCK_RECORDS = 1024;
+    private static final int BLOCK_SIZE = BLOCK_RECORDS * RECORD_SIZE;
+
+    /** the size of a spatial index entry: i64 cell, i32 block */
+    private static final int ENTRY_SIZE = 12;
+
+    /** the number of records collected before they are written */
+    private static final int WRITE_BATCH = 64;
+
+    /** the edge of a spatial grid cell; about 1.1 km of latitude */
+    static final double CELL_DEGREES = 0.01;
+
+    /** a proximity query covering more cells than this scans all
+        blocks instead */
+    private static final int MAX_QUERY_CELLS = 4096;
+
+    /** meters per degree of latitude */
+    private static final double METERS_PER_DEGREE = 111194.9;
+
+    /**
+     * Receives the results of a query.  The #Fix object is reused
+     * for each call.
+     */
+    interface Visitor {
+        void onFix(Fix fix);
+    }
+
+    /** the blocks of one grid cell, in ascending order */
+    private static final class BlockList {
+        int[] blocks = new int[4];
+        int count;
+
+        void add(int block) {
+            if (count == blocks.length) {
+                int[] n = new int[count * 2];
+                System.arraycopy(blocks, 0, n, 0, count);
+                blocks = n;
+            }
+
+            blocks[count++] = block;
+        }
+    }
+
+    private final RandomAccessFile dataFile, indexFile;
+    private final FileChannel data, index;
+
+    /** the number of records, including those in #writeBuffer */
+    private long count;
+
+    /** the number of records which have been written to the file */
+    private long written;
+
+    /** the time of the first record of each block */
+    private long[] blockTimes = new long[64];
+
+    /** the time of the last record */
+    private long lastTime;
+
+    private final HashMap<Long, BlockList> cells =
+        new HashMap<Long, BlockList>();
+
+    /** the cells of the block being appended to, so each
+        (cell, block) entry is added only once */
+    private long[] blockCells = new long[16];
+    private int blockCellCount;
+
+    private final ByteBuffer writeBuffer =
+        ByteBuffer.allocate(WRITE_BATCH * RECORD_SIZE);
+    private final ByteBuffer indexBuffer =
+        ByteBuffer.allocate(WRITE_BATCH * ENTRY_SIZE)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+
+    /** the query result, reused for each record */
+    private final Fix result = new Fix();
+
+    /**
+     * Opens (or creates) the store in the specified directory.
+     */
+    TrackStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create " + directory);
+
+        dataFile = new RandomAccessFile(new File(directory, DATA_NAME), "rw");
+        indexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw");
+        data = dataFile.getChannel();
+        index = indexFile.getChannel();
+
+        try {
+            load();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory indexes.  A partial record or entry at
+     * the end (after a crash) is truncated.
+     */
+    private void load() throws IOException {
+        long dataSize = data.size() / RECORD_SIZE * RECORD_SIZE;
+        data.truncate(dataSize);
+        written = count = dataSize / RECORD_SIZE;
+
+        final int blocks = (int)((count + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+        final ByteBuffer time = ByteBuffer.allocate(8);
+        for (int block = 0; block < blocks; ++block) {
+            time.clear();
+            readFully(data, time, (long)block * BLOCK_SIZE);
+            addBlockTime(block, BinaryDecoder.getI64(time.array(), 0));
+        }
+
+        long indexSize = index.size() / ENTRY_SIZE * ENTRY_SIZE;
+        index.truncate(indexSize);
+        index.position(indexSize);
+
+        final ByteBuffer entries = readBuffer;
+        final byte[] b = entries.array();
+        for (long position = 0; position < indexSize;) {
+            int length = (int)Math.min(b.length / ENTRY_SIZE * ENTRY_SIZE,
+                                       indexSize - position);
+            entries.clear();
+            entries.limit(length);
+            readFully(index, entries, position);
+            position += length;
+
+            for (int p = 0; p < length; p += ENTRY_SIZE) {
+                int block = BinaryDecoder.getI32(b, p + 8);
+                if (block < blocks)
+                    getBlockList(BinaryDecoder.getI64(b, p)).add(block);
+            }
+        }
+
+        if (blocks > 0) {
+            /* the entries of the last block may be incomplete; this
+               also loads #blockCells and #lastTime */
+            final int last = blocks - 1;
+            final int n = readBlock(last);
+            for (int i = 0; i < n; ++i) {
+                BinaryDecoder.decodeFix(b, i * RECORD_SIZE, result);
+                addCell(cellOf(result.latitude, result.longitude), last, true);
+                lastTime = result.time;
+            }
+
+            flushIndex();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer,
+                                  long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0)
+                throw new IOException("Unexpected end of file");
+            position += n;
+        }
+
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+        throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void addBlockTime(int block, long time) {
+        if (block == blockTimes.length) {
+            long[] n = new long[block * 2];
+            System.arraycopy(blockTimes, 0, n, 0, block);
+            blockTimes = n;
+        }
+
+        blockTimes[block] = time;
+    }
+
+    private static long cellOf(double latitude, double longitude) {
+        long row = (long)Math.floor((latitude + 90) / CELL_DEGREES);
+        long column = (long)Math.floor((longitude + 180) / CELL_DEGREES);
+        return (row << 32) | column;
+    }
+
+    private BlockList getBlockList(long cell) {
+        BlockList list = cells.get(cell);
+        if (list == null) {
+            list = new BlockList();
+            cells.put(cell, list);
+        }
+
+        return list;
+    }
+
+    /**
+     * Adds the cell to the spatial index of the block being appended
+     * to, unless it is already there.
+     *
+     * @param loading the block is being reloaded; its entries may
+     * already be in the index
+     */
+    private void addCell(long cell, int block, boolean loading)
+        throws IOException {
+        for (int i = 0; i < blockCellCount; ++i)
+            if (blockCells[i] == cell)
+                return;
+
+        if (blockCellCount == blockCells.length) {
+            long[] n = new long[blockCellCount * 2];
+            System.arraycopy(blockCells, 0, n, 0, blockCellCount);
+            blockCells = n;
+        }
+
+        blockCells[blockCellCount++] = cell;
+
+        BlockList list = getBlockList(cell);
+        if (loading && list.count > 0 && list.blocks[list.count - 1] == block)
+            return;
+
+        list.add(block);
+
+        if (!indexBuffer.hasRemaining())
+            flushIndex();
+        indexBuffer.putLong(cell).putInt(block);
+    }
+
+    /**
+     * @return the number of records in the store
+     */
+    synchronized long size() {
+        return count;
+    }
+
+    /**
+     * Appends a fix.  Fixes must be in ascending time order; older
+     * fixes are ignored.
+     *
+     * @return true if the fix was stored
+     */
+    synchronized boolean append(Fix fix) throws IOException {
+        if (count > 0 && fix.time < lastTime)
+            return false;
+
+        final int block = (int)(count / BLOCK_RECORDS);
+        if (count % BLOCK_RECORDS == 0) {
+            addBlockTime(block, fix.time);
+            blockCellCount = 0;
+        }
+
+        addCell(cellOf(fix.latitude, fix.longitude), block, false);
+
+        final int p = writeBuffer.position();
+        BinaryEncoder.putFix(writeBuffer.array(), p, fix);
+        writeBuffer.position(p + RECORD_SIZE);
+
+        ++count;
+        lastTime = fix.time;
+
+        if (!writeBuffer.hasRemaining())
+            flush();
+
+        return true;
+    }
+
+    private void flushIndex() throws IOException {
+        if (indexBuffer.position() > 0)
+            writeFully(index, indexBuffer);
+    }
+
+    /**
+     * Writes pending records to the files.  The index entries are
+     * written first, so an entry never lacks for data that was
+     * written before it.
+     */
+    synchronized void flush() throws IOException {
+        flushIndex();
+
+        if (writeBuffer.position() > 0) {
+            data.position(written * RECORD_SIZE);
+            writeFully(data, writeBuffer);
+            written = count;
+        }
+    }
+
+    synchronized void close() throws IOException {
+        try {
+            if (data.isOpen())
+                flush();
+        } finally {
+            dataFile.close();
+            indexFile.close();
+        }
+    }
+
+    /**
+     * Reads one block into #readBuffer.
+     *
+     * @return the number of records in it
+     */
+    private int readBlock(int block) throws IOException {
+        final long first = (long)block * BLOCK_RECORDS;
+        final int n = (int)Math.min(BLOCK_RECORDS, count - first);
+
+        readBuffer.clear();
+        readBuffer.limit(n * RECORD_SIZE);
+        readFully(data, readBuffer, first * RECORD_SIZE);
+        return n;
+    }
+
+    /**
+     * Finds the fixes with from &lt;= time &lt;= to.
+     *
+     * @return the number of fixes passed to the visitor
+     */
+    synchronized int queryTime(long from, long to, Visitor visitor)
+        throws IOException {
+        flush();
+
+        final int blocks = (int)((count + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+
+        /* the last block starting at or before "from" */
+        int low = 0, high = blocks - 1, start = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (blockTimes[middle] <= from) {
+                start = middle;
+                low = middle + 1;
+            } else
+                high = middle - 1;
+        }
+
+        final byte[] b = readBuffer.array();
+        int found = 0;
+        for (int block = start; block < blocks && blockTimes[block] <= to;
+             ++block) {
+            final int n = readBlock(block);
+            for (int i = 0; i < n; ++i) {
+                long time = BinaryDecoder.getI64(b, i * RECORD_SIZE);
+                if (time > to)
+                    return found;
+                if (time < from)
+                    continue;
+
+                BinaryDecoder.decodeFix(b, i * RECORD_SIZE, result);
+                visitor.onFix(result);
+                ++found;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Finds the fixes within the specified distance of a position.
+     *
+     * @param radius the distance in meters
+     * @return the number of fixes passed to the visitor
+     */
+    synchronized int queryNear(double latitude, double longitude,
+                               double radius, Visitor visitor)
+        throws IOException {
+        flush();
+
+        final int blocks = (int)((count + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+        final double cosLatitude =
+            Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+        final double dLatitude = radius / METERS_PER_DEGREE;
+        final double dLongitude = Math.min(dLatitude / cosLatitude, 180);
+
+        /* the grid is not searched across the poles or the
+           antimeridian */
+        final long min = cellOf(Math.max(latitude - dLatitude, -90),
+                                Math.max(longitude - dLongitude, -180));
+        final long max = cellOf(Math.min(latitude + dLatitude, 90),
+                                Math.min(longitude + dLongitude, 180));
+        final long minRow = min >> 32, maxRow = max >> 32;
+        final long minColumn = min & 0xffffffffL, maxColumn = max & 0xffffffffL;
+
+        final BitSet selected = new BitSet(blocks);
+        if ((maxRow - minRow + 1) * (maxColumn - minColumn + 1) > MAX_QUERY_CELLS) {
+            selected.set(0, blocks);
+        } else {
+            for (long row = minRow; row <= maxRow; ++row) {
+                for (long column = minColumn; column <= maxColumn; ++column) {
+                    BlockList list = cells.get((row << 32) | column);
+                    if (list != null)
+                        for (int i = 0; i < list.count; ++i)
+                            selected.set(list.blocks[i]);
+                }
+            }
+        }
+
+        final double radiusDegrees2 = dLatitude * dLatitude;
+        final byte[] b = readBuffer.array();
+        int found = 0;
+        for (int block = selected.nextSetBit(0); block >= 0;
+             block = selected.nextSetBit(block + 1)) {
+            final int n = readBlock(block);
+            for (int i = 0; i < n; ++i) {
+                final int p = i * RECORD_SIZE;
+                double y = BinaryDecoder.getI32(b, p + 8) / 1e7 - latitude;
+                double x = (BinaryDecoder.getI32(b, p + 12) / 1e7 - longitude)
+                    * cosLatitude;
+                if (x * x + y * y > radiusDegrees2)
+                    continue;
+
+                BinaryDecoder.decodeFix(b, p, result);
+                visitor.onFix(result);
+                ++found;
+            }
+        }
+
+        return found;
+    }
+}
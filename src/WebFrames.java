@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The output of one #Epoch as WebSocket and Server-Sent Events
+ * frames.  Each kind of frame is built at most once, on first use,
+ * and the same byte array is then queued to all web clients which
+ * want it.
+ *
+ * An instance is created and used on the dispatcher thread only;
+ * the frames themselves are immutable.
+ */
+final class WebFrames {
+    private static final String WEBSOCKET_GUID =
+        "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final char[] BASE64 =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+        .toCharArray();
+
+    private final Epoch epoch;
+
+    private byte[] nmeaWebSocket, nmeaEvent, jsonWebSocket, jsonEvent;
+
+    WebFrames(Epoch _epoch) {
+        epoch = _epoch;
+    }
+
+    /**
+     * @param webSocket a WebSocket frame (true) or a Server-Sent
+     * Event (false)
+     * @param json the JSON fix object (true) or the NMEA sentences
+     * (false)
+     * @return the frame, or null if this epoch has no such data
+     */
+    byte[] get(boolean webSocket, boolean json) {
+        if (json) {
+            if (epoch.json == null)
+                return null;
+
+            if (webSocket) {
+                if (jsonWebSocket == null)
+                    jsonWebSocket = webSocketFrame(epoch.json);
+                return jsonWebSocket;
+            } else {
+                if (jsonEvent == null)
+                    jsonEvent = event("fix", epoch.json);
+                return jsonEvent;
+            }
+        } else {
+            if (webSocket) {
+                if (nmeaWebSocket == null)
+                    nmeaWebSocket = webSocketFrame(join(epoch.lines, "\r\n"));
+                return nmeaWebSocket;
+            } else {
+                if (nmeaEvent == null)
+                    /* one "data" field per sentence; the browser
+                       joins them with "\n" */
+                    nmeaEvent = event("nmea", join(epoch.lines, "\ndata: "));
+                return nmeaEvent;
+            }
+        }
+    }
+
+    private static String join(String[] lines, String separator) {
+        StringBuilder sb = new StringBuilder(lines.length * 80);
+        for (int i = 0; i < lines.length; ++i) {
+            if (i > 0)
+                sb.append(separator);
+            sb.append(lines[i]);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Converts ASCII text to bytes without a charset lookup.
+     */
+    private static void putAscii(byte[] b, int offset, String s) {
+        final int length = s.length();
+        for (int i = 0; i < length; ++i)
+            b[offset + i] = (byte)s.charAt(i);
+    }
+
+    /**
+     * Builds an unmasked WebSocket text frame (RFC 6455).
+     */
+    static byte[] webSocketFrame(String text) {
+        final int length = text.length();
+        final int header = length < 126 ? 2 : (length < 65536 ? 4 : 10);
+        byte[] b = new byte[header + length];
+
+        b[0] = (byte)0x81; /* FIN, opcode "text" */
+        if (length < 126) {
+            b[1] = (byte)length;
+        } else if (length < 65536) {
+            b[1] = 126;
+            b[2] = (byte)(length >> 8);
+            b[3] = (byte)length;
+        } else {
+            b[1] = 127;
+            for (int i = 0; i < 8; ++i)
+                b[2 + i] = (byte)((long)length >> (56 - 8 * i));
+        }
+
+        putAscii(b, header, text);
+        return b;
+    }
+
+    /**
+     * Builds an unmasked WebSocket control frame, e.g. a pong or a
+     * close frame.
+     *
+     * @param payload at most 125 bytes
+     */
+    static byte[] controlFrame(int opcode, byte[] payload) {
+        byte[] b = new byte[2 + payload.length];
+        b[0] = (byte)(0x80 | opcode); /* FIN */
+        b[1] = (byte)payload.length;
+        System.arraycopy(payload, 0, b, 2, payload.length);
+        return b;
+    }
+
+    /**
+     * Builds a Server-Sent Event.
+     */
+    static byte[] event(String name, String data) {
+        String s = "event: " + name + "\ndata: " + data + "\n\n";
+        byte[] b = new byte[s.length()];
+        putAscii(b, 0, s);
+        return b;
+    }
+
+    /**
+     * Formats a #Fix as a JSON object.
+     */
+    static String fixJson(Fix fix) {
+        StringBuilder sb = new StringBuilder(192);
+        sb.append("{\"time\":");
+        NMEA.appendInt(sb, Math.max(fix.time, 0));
+        sb.append(",\"lat\":");
+        NMEA.appendFixed(sb, fix.latitude, 7);
+        sb.append(",\"lon\":");
+        NMEA.appendFixed(sb, fix.longitude, 7);
+        if (fix.hasAltitude) {
+            sb.append(",\"alt\":");
+            NMEA.appendFixed(sb, fix.altitude, 1);
+        }
+        if (fix.hasSpeed) {
+            sb.append(",\"speed\":");
+            NMEA.appendFixed(sb, fix.speed, 2);
+        }
+        if (fix.hasBearing) {
+            sb.append(",\"bearing\":");
+            NMEA.appendFixed(sb, fix.bearing, 1);
+        }
+        sb.append(",\"accuracy\":");
+        NMEA.appendFixed(sb, fix.accuracy, 1);
+        if (fix.hdop > 0) {
+            sb.append(",\"hdop\":");
+            NMEA.appendFixed(sb, fix.hdop, 1);
+        }
+        if (fix.satellites >= 0) {
+            sb.append(",\"satellites\":");
+            NMEA.appendInt(sb, fix.satellites);
+        }
+        if (fix.estimated)
+            sb.append(",\"estimated\":true");
+        sb.append('}');
+        return sb.toString();
+    }
+
+    static String base64(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int n = (data[i] & 0xff) << 16;
+            if (i + 1 < data.length)
+                n |= (data[i + 1] & 0xff) << 8;
+            if (i + 2 < data.length)
+                n |= data[i + 2] & 0xff;
+
+            sb.append(BASE64[n >> 18]).append(BASE64[(n >> 12) & 0x3f]);
+            sb.append(i + 1 < data.length ? BASE64[(n >> 6) & 0x3f] : '=');
+            sb.append(i + 2 < data.length ? BASE64[n & 0x3f] : '=');
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Calculates the "Sec-WebSocket-Accept" header value.
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes());
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            /* every Java platform must provide SHA-1 */
+            throw new RuntimeException(e);
+        }
+    }
+}
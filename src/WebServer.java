@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2003-2011 Max Kellermann <max@duempel.org>
+ * http://max.kellermann.name/projects/blue-nmea/
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package name.kellermann.max.bluenmea;
+
+import java.util.LinkedList;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.ServerSocket;
+
+/**
+ * A browser connected over WebSocket or Server-Sent Events.  The
+ * HTTP request selects the protocol (an "Upgrade: websocket" header)
+ * and the data: "/json" for JSON fix objects, anything else for the
+ * NMEA sentences.  Like #BinaryStreamClient, it writes on its own
+ * thread; the frames come prebuilt from #WebFrames.
+ *
+ * A WebSocket client gets a second thread which reads its frames: a
+ * ping is answered with a pong and a close with a close, which is
+ * the last frame sent; data frames are ignored.
+ */
+class WebClient extends QueuedWriterClient<byte[]>
+    implements FanOut.WebListener {
+    /** the maximum number of queued frames; the oldest ones are
+        dropped when the client is too slow */
+    private static final int MAX_QUEUE = 32;
+
+    /** the time to receive the HTTP request */
+    private static final int REQUEST_TIMEOUT_MS = 10000;
+
+    private static final int MAX_REQUEST = 8192;
+
+    /* WebSocket opcodes */
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xa;
+
+    /** the maximum payload of a control frame */
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+
+    Socket socket;
+    String address;
+    InputStream is;
+
+    /** set by the handshake, before #ready */
+    private boolean webSocket, json;
+
+    /** has the handshake completed? */
+    private volatile boolean ready;
+
+    LinkedList<byte[]> queue = new LinkedList<byte[]>();
+
+    /** a pong or close frame to be sent before the next queued
+        frame; protected by "this" */
+    private byte[] control;
+
+    /** has the close frame been queued?  Nothing is sent after it;
+        protected by "this" */
+    private boolean closing;
+
+    /** reads incoming WebSocket frames; started by the handshake */
+    Thread reader = new Thread(new Runnable() {
+            @Override public void run() {
+                readFrames();
+            }
+        });
+
+    /** counters; protected by "this" */
+    private long sent, dropped, bytesSent;
+
+    /** the bytes in #queue, and the limit; protected by "this" */
+    private int queuedBytes, maxQueuedBytes = Integer.MAX_VALUE;
+
+    public WebClient(Listener _listener, Socket _socket) throws IOException {
+        super(_listener, _socket.getOutputStream());
+
+        socket = _socket;
+        address = socket.getInetAddress().getHostAddress() +
+            ":" + socket.getPort() + " (web)";
+    }
+
+    /** from Object */
+    @Override public String toString() {
+        return address;
+    }
+
+    /** from Client */
+    @Override protected synchronized void setQueueBudget(int bytes) {
+        maxQueuedBytes = bytes;
+    }
+
+    /** from Client */
+    @Override public void close() {
+        super.close();
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /** from Client */
+    @Override public synchronized Stats getStats() {
+        return new Stats(sent, dropped, bytesSent, queue.size());
+    }
+
+    /** from FanOut.NMEAListener */
+    @Override public void onLine(String line) {
+        /* not used: the Source sends prebuilt frames instead */
+    }
+
+    /** from FanOut.WebListener */
+    @Override public void onFrames(WebFrames frames) {
+        if (!ready)
+            return;
+
+        byte[] frame = frames.get(webSocket, json);
+        if (frame == null)
+            return;
+
+        synchronized(this) {
+            if (closing)
+                return;
+
+            while (!queue.isEmpty() &&
+                   (queue.size() >= MAX_QUEUE ||
+                    queuedBytes + frame.length > maxQueuedBytes)) {
+                queuedBytes -= queue.removeFirst().length;
+                ++dropped;
+            }
+
+            queue.add(frame);
+            queuedBytes += frame.length;
+
+            /* wake up the thread */
+            notify();
+        }
+    }
+
+    /**
+     * Queues a control frame; it is sent before the queued data
+     * frames.  A close frame replaces a pending pong, and nothing is
+     * queued after it.
+     */
+    private synchronized void sendControl(int opcode, byte[] payload) {
+        if (closing)
+            return;
+
+        control = WebFrames.controlFrame(opcode, payload);
+        if (opcode == OPCODE_CLOSE) {
+            closing = true;
+            dropped += queue.size();
+            queue.clear();
+            queuedBytes = 0;
+        }
+
+        notify();
+    }
+
+    private int readByte() throws IOException {
+        int b = is.read();
+        if (b < 0)
+            throw new EOFException("Connection closed by peer");
+        return b;
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        for (int p = 0; p < b.length;) {
+            int n = is.read(b, p, b.length - p);
+            if (n < 0)
+                throw new EOFException("Connection closed by peer");
+            p += n;
+        }
+    }
+
+    /**
+     * Reads one frame from the client, and answers it if it is a
+     * ping or a close frame.
+     *
+     * @return false after a close frame
+     */
+    private boolean readFrame() throws IOException {
+        final int opcode = readByte() & 0x0f;
+        final int b1 = readByte();
+        final boolean masked = (b1 & 0x80) != 0;
+
+        long length = b1 & 0x7f;
+        if (length == 126)
+            length = (readByte() << 8) | readByte();
+        else if (length == 127) {
+            length = 0;
+            for (int i = 0; i < 8; ++i)
+                length = (length << 8) | readByte();
+        }
+
+        final byte[] mask = new byte[masked ? 4 : 0];
+        readFully(mask);
+
+        if (opcode < OPCODE_CLOSE) {
+            /* a data frame: not used */
+            while (length > 0) {
+                long n = is.skip(length);
+                if (n <= 0) {
+                    readByte();
+                    n = 1;
+                }
+                length -= n;
+            }
+
+            return true;
+        }
+
+        if (length > MAX_CONTROL_PAYLOAD)
+            throw new IOException("Malformed WebSocket frame");
+
+        final byte[] payload = new byte[(int)length];
+        readFully(payload);
+        for (int i = 0; i < payload.length && masked; ++i)
+            payload[i] ^= mask[i & 3];
+
+        switch (opcode) {
+        case OPCODE_CLOSE:
+            /* echo the status code, without the reason */
+            byte[] status = new byte[Math.min(payload.length, 2)];
+            System.arraycopy(payload, 0, status, 0, status.length);
+            sendControl(OPCODE_CLOSE, status);
+            return false;
+
+        case OPCODE_PING:
+            sendControl(OPCODE_PONG, payload);
+            return true;
+
+        default:
+            /* a pong */
+            return true;
+        }
+    }
+
+    private void readFrames() {
+        try {
+            while (readFrame()) {
+            }
+        } catch (IOException e) {
+            if (!isClosed())
+                failed(e);
+        }
+    }
+
+    private static String readRequest(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder(512);
+        while (sb.length() < MAX_REQUEST) {
+            int ch = is.read();
+            if (ch < 0)
+                throw new IOException("Connection closed during request");
+
+            sb.append((char)ch);
+
+            int n = sb.length();
+            if (n >= 4 && sb.charAt(n - 1) == '\n' && sb.charAt(n - 2) == '\r' &&
+                sb.charAt(n - 3) == '\n' && sb.charAt(n - 4) == '\r')
+                return sb.toString();
+        }
+
+        throw new IOException("Request too large");
+    }
+
+    private static String getHeader(String[] lines, String name) {
+        for (int i = 1; i < lines.length; ++i) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon == name.length() && line.regionMatches(true, 0, name, 0, colon))
+                return line.substring(colon + 1).trim();
+        }
+
+        return null;
+    }
+
+    private void respond(String response) throws IOException {
+        OutputStream stream = os;
+        if (stream == null)
+            throw new IOException("Closed");
+
+        stream.write(response.getBytes());
+    }
+
+    /**
+     * Reads the HTTP request and sends the response header.
+     */
+    private void handshake() throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+        /* buffered, because the request is parsed one byte at a
+           time; the reader thread continues with the same stream */
+        is = new BufferedInputStream(socket.getInputStream());
+        String[] lines = readRequest(is).split("\r\n");
+
+        String[] request = lines[0].split(" ");
+        if (request.length != 3 || !request[0].equals("GET")) {
+            respond("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n");
+            throw new IOException("Bad request");
+        }
+
+        String path = request[1];
+        int query = path.indexOf('?');
+        if (query >= 0)
+            path = path.substring(0, query);
+        json = path.equals("/json");
+
+        String upgrade = getHeader(lines, "Upgrade");
+        webSocket = upgrade != null && upgrade.equalsIgnoreCase("websocket");
+
+        if (webSocket) {
+            String key = getHeader(lines, "Sec-WebSocket-Key");
+            if (key == null) {
+                respond("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n");
+                throw new IOException("No WebSocket key");
+            }
+
+            respond("HTTP/1.1 101 Switching Protocols\r\n" +
+                    "Upgrade: websocket\r\n" +
+                    "Connection: Upgrade\r\n" +
+                    "Sec-WebSocket-Accept: " + WebFrames.acceptKey(key) + "\r\n" +
+                    "\r\n");
+
+            socket.setSoTimeout(0);
+            reader.start();
+        } else {
+            respond("HTTP/1.1 200 OK\r\n" +
+                    "Content-Type: text/event-stream\r\n" +
+                    "Cache-Control: no-cache\r\n" +
+                    "Access-Control-Allow-Origin: *\r\n" +
+                    "\r\n");
+            socket.shutdownInput();
+        }
+
+        address += webSocket ? " websocket " + path : " sse " + path;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected void begin() throws IOException {
+        handshake();
+        ready = true;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected byte[] poll() {
+        if (control != null) {
+            byte[] frame = control;
+            control = null;
+            return frame;
+        }
+
+        if (queue.isEmpty())
+            return null;
+
+        byte[] frame = queue.removeFirst();
+        queuedBytes -= frame.length;
+        return frame;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected byte[] encode(byte[] frame) {
+        return frame;
+    }
+
+    /** from QueuedWriterClient */
+    @Override protected void onWritten(byte[] frame, int length, long nanos)
+        throws IOException {
+        ++sent;
+        bytesSent += length;
+
+        if (closing && control == null && queue.isEmpty())
+            /* the close frame has been sent */
+            throw new IOException("Closed by peer");
+    }
+}
+
+/**
+ * Serves NMEA sentences and JSON fixes to browsers over WebSocket and
+ * Server-Sent Events, see #WebClient.
+ */
+public class WebServer extends Server
+    implements Runnable {
+    private static final String TAG = "BlueNMEA";
+
+    Listener listener;
+    ServerSocket socket;
+    Thread thread;
+
+    public WebServer(Listener _listener, Admission _admission, int port)
+        throws IOException {
+        super(_admission);
+        listener = _listener;
+        socket = new ServerSocket(port);
+        thread = new Thread(this);
+        thread.start();
+    }
+
+    @Override public void close() throws IOException, InterruptedException {
+        ServerSocket s = socket;
+        socket = null;
+        s.close();
+        thread.join();
+    }
+
+    /** from Server */
+    @Override protected String formatRefusal(String reason) {
+        return "HTTP/1.1 503 Service Unavailable\r\n" +
+            "Content-Type: text/plain\r\n" +
+            "Connection: close\r\n\r\n" + reason + "\n";
+    }
+
+    /**
+     * Admits a new connection and announces its client.  On error,
+     * the caller closes the connection.
+     */
+    private void serve(Socket s) throws IOException {
+        Admission.Ticket ticket;
+        try {
+            ticket = admission.admit(s.getInetAddress().getHostAddress());
+        } catch (Admission.RefusedException e) {
+            refuse(s.getOutputStream(), e.getMessage());
+            s.close();
+            return;
+        }
+
+        Client client;
+        try {
+            client = new WebClient(listener, s);
+        } catch (IOException e) {
+            ticket.release();
+            throw e;
+        }
+
+        client.setTicket(ticket);
+        listener.onNewClient(client);
+        client.start();
+    }
+
+    @Override public void run() {
+        try {
+            while (true) {
+                Socket s = socket.accept();
+
+                try {
+                    serve(s);
+                } catch (IOException e) {
+                    /* only this connection has failed; keep
+                       accepting the others */
+                    Logger.e(TAG, e.getMessage());
+                    try {
+                        s.close();
+                    } catch (IOException e2) {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (socket != null)
+                Logger.e(TAG, e.getMessage());
+        }
+    }
+}